@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of reading and writing ticket attributes, for both the
+ * well-known fields kept in slots and custom fields in the overflow map
+ * @author James Femia <badgerr@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttribBenchmark {
+  private HashMap<String, Object> raw;
+  private Ticket ticket;
+  private boolean toggle = false;
+  
+  @Setup
+  public void setup()
+  {
+    raw = Fixtures.ticketAttribs(42);
+    ticket = Fixtures.ticket(42);
+  }
+  
+  @Benchmark
+  public String getKnownField()
+  {
+    return ticket.getOwner();
+  }
+  
+  @Benchmark
+  public Object getCustomField()
+  {
+    return ticket.attribs.get("customer");
+  }
+  
+  @Benchmark
+  public Set<String> setKnownField()
+  {
+    toggle = !toggle;
+    ticket.setOwner(toggle ? "alice" : "bob");
+    return ticket.getChangedAttribs();
+  }
+  
+  @Benchmark
+  public Set<String> setCustomField()
+  {
+    toggle = !toggle;
+    ticket.attribs.put("customer", toggle ? "Example Corp" : "Other Inc");
+    return ticket.getChangedAttribs();
+  }
+  
+  @Benchmark
+  public int iterate()
+  {
+    int ret = 0;
+    for(Map.Entry<String, Object> e : ticket.attribs.entrySet()) {
+      ret += e.getKey().length();
+    }
+    return ret;
+  }
+  
+  @Benchmark
+  public Ticket load()
+  {
+    Ticket t = new Ticket();
+    t.loadAttribs(raw);
+    return t;
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * Realistically sized Trac data, shaped as Trac returns it
+ * @author James Femia <badgerr@gmail.com>
+ */
+final class Fixtures {
+  private static final String[] STATUSES = {"new", "assigned", "accepted", "closed"};
+  private static final String[] OWNERS = {"alice", "bob", "carol", "dave", "erin"};
+  private static final long EPOCH = 1500000000000L;
+  
+  private Fixtures()
+  {
+  }
+  
+  /**
+   * Builds text of about the given length
+   */
+  static String text(int length)
+  {
+    StringBuilder sb = new StringBuilder(length + 64);
+    int word = 0;
+    while(sb.length() < length) {
+      sb.append("lorem ipsum dolor sit amet ".split(" ")[word++ % 5]).append(' ');
+      if(word % 16 == 0) {
+        sb.append('\n');
+      }
+    }
+    return sb.substring(0, length);
+  }
+  
+  /**
+   * Ticket attributes as returned in a ticket.get response, with a
+   * couple of custom fields and a 2KB description
+   */
+  static HashMap<String, Object> ticketAttribs(int id)
+  {
+    HashMap<String, Object> t = new HashMap<String, Object>();
+    t.put("summary", "Ticket " + id + " fails when the widget is frobbed");
+    t.put("description", text(2048));
+    t.put("status", STATUSES[id % STATUSES.length]);
+    t.put("resolution", "");
+    t.put("owner", OWNERS[id % OWNERS.length]);
+    t.put("reporter", OWNERS[(id + 2) % OWNERS.length]);
+    t.put("cc", "");
+    t.put("keywords", "widget frob");
+    t.put("priority", "major");
+    t.put("severity", "normal");
+    t.put("type", "defect");
+    t.put("component", "core");
+    t.put("version", "1.0");
+    t.put("milestone", "2.0");
+    t.put("time", new Date(EPOCH + id * 60000L));
+    t.put("changetime", new Date(EPOCH + id * 90000L));
+    t.put("_ts", String.valueOf((EPOCH + id * 90000L) * 1000));
+    t.put("estimate", "3");
+    t.put("customer", "Example Corp");
+    return t;
+  }
+  
+  /**
+   * A ticket.get response
+   */
+  static Object[] ticketResult(int id)
+  {
+    HashMap<String, Object> t = ticketAttribs(id);
+    return new Object[]{id, t.get("time"), t.get("changetime"), t};
+  }
+  
+  static Ticket ticket(int id)
+  {
+    Ticket t = new Ticket();
+    t.setId(id);
+    t.loadAttribs(ticketAttribs(id));
+    return t;
+  }
+  
+  static Milestone milestone()
+  {
+    Milestone m = new Milestone("2.0", new Date(EPOCH + 86400000L * 90));
+    m.setDescription(text(512));
+    m.setCompleted(false);
+    return m;
+  }
+  
+  static TicketVersion ticketVersion()
+  {
+    TicketVersion v = new TicketVersion("1.0");
+    v.attribs.put("time", new Date(EPOCH));
+    v.attribs.put("description", text(256));
+    return v;
+  }
+}
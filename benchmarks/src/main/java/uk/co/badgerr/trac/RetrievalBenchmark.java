@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares fetching tickets one request at a time with fetching them in
+ * system.multicall batches
+ * @author James Femia <badgerr@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RetrievalBenchmark {
+  @Param({"10", "100"})
+  public int count;
+  
+  private StubServer server;
+  private TracRpc rpc;
+  private List<Integer> ids;
+  
+  @Setup
+  public void setup() throws Exception
+  {
+    server = new StubServer();
+    TracRpcConfiguration config = new TracRpcConfiguration();
+    config.setServerAddress(server.getAddress());
+    config.setTransport(TracRpcConfiguration.Transport.POOLED);
+    rpc = new TracRpc(config);
+    ids = new ArrayList<Integer>(count);
+    for(int i = 1; i <= count; ++i) {
+      ids.add(i);
+    }
+  }
+  
+  @TearDown
+  public void tearDown()
+  {
+    rpc.close();
+    server.close();
+  }
+  
+  @Benchmark
+  public List<Ticket> oneByOne() throws TracRpcException
+  {
+    List<Ticket> ret = new ArrayList<Ticket>(count);
+    for(Integer id : ids) {
+      ret.add(rpc.getTicket(id));
+    }
+    return ret;
+  }
+  
+  @Benchmark
+  public BatchResult<Integer, Ticket> batched() throws TracRpcException
+  {
+    return rpc.getTickets(ids);
+  }
+}
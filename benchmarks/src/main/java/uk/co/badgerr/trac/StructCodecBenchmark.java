@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures writing the request that sends a struct to Trac, and reading
+ * the response that returns one, as XML-RPC through the xmlrpc library's
+ * own writer and parser with either the stock or the tuned type factory,
+ * or as JSON-RPC through JsonRpcCodec
+ * @author James Femia <badgerr@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StructCodecBenchmark {
+  @Param({"ticket", "milestone", "version"})
+  public String struct;
+  
+  @Param({"stock", "tuned", "json"})
+  public String codec;
+  
+  private XmlRpcCodec xml;
+  private JsonRpcCodec json;
+  private String func;
+  private Object[] params;
+  private byte[] response;
+  
+  @Setup
+  public void setup() throws Exception
+  {
+    xml = new XmlRpcCodec(codec.equals("tuned"));
+    json = codec.equals("json") ? new JsonRpcCodec() : null;
+    switch(struct) {
+      case "ticket":
+        Ticket t = Fixtures.ticket(42);
+        func = "ticket.create";
+        params = new Object[]{t.getSummary(), t.getDescription(), 
+                              t.attribs, false};
+        response = this.encodeResponse(Fixtures.ticketResult(42));
+        break;
+      case "milestone":
+        Milestone m = Fixtures.milestone();
+        func = "ticket.milestone.create";
+        params = new Object[]{m.getName(), m.attribs};
+        response = this.encodeResponse(new HashMap<String, Object>(m.attribs));
+        break;
+      default:
+        TicketVersion v = Fixtures.ticketVersion();
+        func = "ticket.version.create";
+        params = new Object[]{v.getName(), v.attribs};
+        response = this.encodeResponse(new HashMap<String, Object>(v.attribs));
+        break;
+    }
+  }
+  
+  private byte[] encodeResponse(Object result) throws Exception
+  {
+    if(json == null) {
+      return xml.encodeResponse(result);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try(JsonGenerator gen = new JsonFactory().createGenerator(out)) {
+      gen.writeStartObject();
+      gen.writeFieldName("result");
+      JsonRpcCodec.writeValue(gen, result);
+      gen.writeNullField("error");
+      gen.writeNumberField("id", 1);
+      gen.writeEndObject();
+    }
+    return out.toByteArray();
+  }
+  
+  @Benchmark
+  public byte[] encode() throws Exception
+  {
+    if(json == null) {
+      return xml.encodeRequest(func, params);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    json.writeRequest(out, func, params);
+    return out.toByteArray();
+  }
+  
+  @Benchmark
+  public AttribContainer decode() throws Exception
+  {
+    Object result = json == null ? xml.decodeResponse(response) 
+            : json.readResponse(new ByteArrayInputStream(response), "get");
+    switch(struct) {
+      case "ticket":
+        return TracRpc.ticketFromResult(result);
+      case "milestone":
+        return TracRpc.basicStructFromResult(result, Milestone.class);
+      default:
+        return TracRpc.basicStructFromResult(result, TicketVersion.class);
+    }
+  }
+}
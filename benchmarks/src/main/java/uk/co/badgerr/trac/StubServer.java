@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal in-process XML-RPC server answering ticket.get (and
+ * system.multicall of it) with fixture tickets, so call paths can be
+ * measured without a network or a real Trac
+ * @author James Femia <badgerr@gmail.com>
+ */
+final class StubServer implements Closeable {
+  private final XmlRpcCodec codec = new XmlRpcCodec(false);
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newFixedThreadPool(8);
+  
+  StubServer() throws IOException
+  {
+    server = HttpServer.create(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/rpc", this::handle);
+    server.setExecutor(executor);
+    server.start();
+  }
+  
+  /**
+   * @return the URL to configure TracRpc with
+   */
+  String getAddress()
+  {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/rpc";
+  }
+  
+  private void handle(HttpExchange exchange) throws IOException
+  {
+    byte[] response;
+    try(InputStream in = exchange.getRequestBody()) {
+      Object[] request = codec.decodeRequest(in);
+      response = codec.encodeResponse(dispatch((String)request[0], 
+              Arrays.copyOfRange(request, 1, request.length)));
+    } catch(Exception e) {
+      try {
+        response = codec.encodeFault(1, String.valueOf(e.getMessage()));
+      } catch(Exception e2) {
+        throw new IOException(e2);
+      }
+    }
+    exchange.getResponseHeaders().set("Content-Type", "text/xml");
+    exchange.sendResponseHeaders(200, response.length);
+    try(OutputStream out = exchange.getResponseBody()) {
+      out.write(response);
+    }
+  }
+  
+  private Object dispatch(String func, Object[] params)
+  {
+    switch(func) {
+      case "ticket.get":
+        return Fixtures.ticketResult((Integer)params[0]);
+      case "system.multicall":
+        Object[] calls = (Object[])params[0];
+        Object[] results = new Object[calls.length];
+        for(int i = 0; i < calls.length; ++i) {
+          Map<?, ?> call = (Map<?, ?>)calls[i];
+          results[i] = new Object[]{dispatch((String)call.get("methodName"), 
+                                             (Object[])call.get("params"))};
+        }
+        return results;
+      default:
+        throw new IllegalArgumentException("RPC method \"" + func + "\" not found");
+    }
+  }
+  
+  @Override
+  public void close()
+  {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+import org.apache.xmlrpc.client.XmlRpcClientRequestImpl;
+import org.apache.xmlrpc.common.TypeFactory;
+import org.apache.xmlrpc.common.TypeFactoryImpl;
+import org.apache.xmlrpc.parser.XmlRpcRequestParser;
+import org.apache.xmlrpc.parser.XmlRpcResponseParser;
+import org.apache.xmlrpc.serializer.DefaultXMLWriterFactory;
+import org.apache.xmlrpc.serializer.XmlRpcWriter;
+import org.apache.xmlrpc.util.SAXParsers;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+/**
+ * Writes and reads XML-RPC messages the way the xmlrpc client library does,
+ * without any transport, for benchmarks and the stub server
+ * @author James Femia <badgerr@gmail.com>
+ */
+final class XmlRpcCodec {
+  private final XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
+  private final TypeFactory typeFactory;
+  
+  /**
+   * @param tuned whether to use the TracTypeFactory that TracRpc installs,
+   *        rather than the stock one
+   */
+  XmlRpcCodec(boolean tuned)
+  {
+    XmlRpcClient client = new XmlRpcClient();
+    client.setConfig(config);
+    this.typeFactory = tuned ? new TracTypeFactory(client) 
+                             : new TypeFactoryImpl(client);
+  }
+  
+  byte[] encodeRequest(String func, Object[] params) throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer(out).write(new XmlRpcClientRequestImpl(config, func, params));
+    return out.toByteArray();
+  }
+  
+  byte[] encodeResponse(Object result) throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer(out).write(config, result);
+    return out.toByteArray();
+  }
+  
+  byte[] encodeFault(int code, String message) throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer(out).write(config, code, message);
+    return out.toByteArray();
+  }
+  
+  private XmlRpcWriter writer(OutputStream out) throws XmlRpcException
+  {
+    return new XmlRpcWriter(config, 
+            new DefaultXMLWriterFactory().getXmlWriter(config, out), 
+            typeFactory);
+  }
+  
+  /**
+   * Reads a request
+   * @return the method name followed by the parameters
+   */
+  Object[] decodeRequest(InputStream in) throws Exception
+  {
+    XmlRpcRequestParser parser = new XmlRpcRequestParser(config, typeFactory);
+    XMLReader reader = SAXParsers.newXMLReader();
+    reader.setContentHandler(parser);
+    reader.parse(new InputSource(in));
+    Object[] ret = new Object[parser.getParams().size() + 1];
+    ret[0] = parser.getMethodName();
+    for(int i = 1; i < ret.length; ++i) {
+      ret[i] = parser.getParams().get(i - 1);
+    }
+    return ret;
+  }
+  
+  Object decodeResponse(byte[] response) throws Exception
+  {
+    XmlRpcResponseParser parser = new XmlRpcResponseParser(config, typeFactory);
+    XMLReader reader = SAXParsers.newXMLReader();
+    reader.setContentHandler(parser);
+    reader.parse(new InputSource(new ByteArrayInputStream(response)));
+    if(!parser.isSuccess()) {
+      throw new XmlRpcException(parser.getErrorCode(), parser.getErrorMessage());
+    }
+    return parser.getResult();
+  }
+}
@@ -0,0 +1,535 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+import org.apache.xmlrpc.client.XmlRpcHttpTransport;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Calls that carry a file as a base64 parameter or result, streamed
+ * straight between the caller's streams and the HTTP body. Requests have
+ * the data base64 encoded as it is read, and responses are parsed with
+ * SAX, decoding the base64 text as the parser hands it over. So memory use
+ * doesn't grow with the size of the file, where an ordinary call would hold
+ * the file, its base64 text and the request all at once.
+ * 
+ * Requests are sent with a Content-Length rather than chunked, since
+ * mod_wsgi (by default) and tracd can't read chunked request bodies. The
+ * length of the base64 text follows from the length of the file, so a
+ * file of unknown length is first spooled to a temporary file.
+ * 
+ * The XML-RPC is written and read here rather than by the XML-RPC client,
+ * so these calls always use XML-RPC over HttpURLConnection whatever the
+ * configured transport and protocol.
+ * @author James Femia <badgerr@gmail.com>
+ */
+final class AttachmentTransfer {
+  private static final int CHUNK_SIZE = 64 * 1024;
+  
+  private final URL url;
+  private final String authorization;
+  private final int connectionTimeout;
+  private final int replyTimeout;
+  private final Proxy proxy;
+  
+  /**
+   * @param config server address, credentials and timeouts
+   * @param proxy HTTP proxy, or null to connect directly
+   */
+  AttachmentTransfer(XmlRpcClientConfigImpl config, Proxy proxy)
+  {
+    this.url = config.getServerURL();
+    this.authorization = config.getBasicUserName() == null ? null :
+            "Basic " + Base64.getEncoder().encodeToString(
+                    (config.getBasicUserName() + ":" + config.getBasicPassword())
+                    .getBytes(StandardCharsets.UTF_8));
+    this.connectionTimeout = config.getConnectionTimeout();
+    this.replyTimeout = config.getReplyTimeout();
+    this.proxy = proxy;
+  }
+  
+  /**
+   * Calls a function with a file of unknown length among its parameters.
+   * The file is spooled to a temporary file to find its length.
+   * @param func Name of the function to call
+   * @param before Parameters before the file
+   * @param data the file, read to the end but not closed
+   * @param after Parameters after the file
+   * @return The result of the function call
+   * @throws TracRpcException 
+   */
+  Object upload(String func, Object[] before, InputStream data, Object[] after) 
+          throws TracRpcException
+  {
+    Path spool = null;
+    try {
+      spool = Files.createTempFile("trac-rpc-attachment", null);
+      long length = Files.copy(data, spool, StandardCopyOption.REPLACE_EXISTING);
+      try(InputStream in = Files.newInputStream(spool)) {
+        return this.upload(func, before, in, length, after);
+      }
+    } catch(IOException e) {
+      throw new TracRpcException(e.getMessage(), e);
+    } finally {
+      if(spool != null) {
+        try {
+          Files.deleteIfExists(spool);
+        } catch(IOException e) {
+          // left for the OS to clean up
+        }
+      }
+    }
+  }
+  
+  /**
+   * Calls a function with the rest of a file channel among its parameters
+   * @param func Name of the function to call
+   * @param before Parameters before the file
+   * @param data the file, read from its position to the end but not closed
+   * @param after Parameters after the file
+   * @return The result of the function call
+   * @throws TracRpcException 
+   */
+  Object upload(String func, Object[] before, FileChannel data, Object[] after) 
+          throws TracRpcException
+  {
+    long length;
+    try {
+      length = data.size() - data.position();
+    } catch(IOException e) {
+      throw new TracRpcException(e.getMessage(), e);
+    }
+    // not closed, since that would close the channel
+    return this.upload(func, before, Channels.newInputStream(data), length, after);
+  }
+  
+  /**
+   * Calls a function with a file of known length among its parameters
+   * @param func Name of the function to call
+   * @param before Parameters before the file
+   * @param data the file, of which length bytes are read; not closed
+   * @param length the number of bytes in the file
+   * @param after Parameters after the file
+   * @return The result of the function call
+   * @throws TracRpcException 
+   */
+  Object upload(String func, Object[] before, InputStream data, long length, 
+          Object[] after) throws TracRpcException
+  {
+    if(length < 0) {
+      throw new IllegalArgumentException("Negative attachment length: " + length);
+    }
+    try {
+      StringWriter head = new StringWriter();
+      writeStart(head, func, before);
+      head.write("<param><value><base64>");
+      StringWriter tail = new StringWriter();
+      tail.write("</base64></value></param>");
+      writeEnd(tail, after);
+      byte[] headBytes = head.toString().getBytes(StandardCharsets.UTF_8);
+      byte[] tailBytes = tail.toString().getBytes(StandardCharsets.UTF_8);
+      
+      HttpURLConnection conn = this.open();
+      try {
+        conn.setFixedLengthStreamingMode(
+                headBytes.length + (length + 2) / 3 * 4 + tailBytes.length);
+        OutputStream out = new BufferedOutputStream(conn.getOutputStream(), 
+                                                    CHUNK_SIZE);
+        out.write(headBytes);
+        try(OutputStream encoder = Base64.getEncoder().wrap(new Unclosed(out))) {
+          copy(data, encoder, length);
+        }
+        out.write(tailBytes);
+        out.close();
+        return this.readResponse(conn, null);
+      } finally {
+        conn.disconnect();
+      }
+    } catch(IOException e) {
+      throw new TracRpcException(e.getMessage(), e);
+    }
+  }
+  
+  /**
+   * Copies exactly length bytes
+   * @throws IOException if in ends first
+   */
+  private static void copy(InputStream in, OutputStream out, long length) 
+          throws IOException
+  {
+    byte[] buf = new byte[CHUNK_SIZE];
+    long remaining = length;
+    while(remaining > 0) {
+      int n = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+      if(n < 0) {
+        throw new IOException("Attachment ended after " + (length - remaining) 
+                + " of " + length + " bytes");
+      }
+      out.write(buf, 0, n);
+      remaining -= n;
+    }
+  }
+  
+  /**
+   * Calls a function that returns a file
+   * @param func Name of the function to call
+   * @param params Parameters to pass to the function
+   * @param out where the file is written, not closed
+   * @throws TracRpcException if the call fails or the response holds no file
+   */
+  void download(String func, Object[] params, OutputStream out) 
+          throws TracRpcException
+  {
+    StringWriter request = new StringWriter();
+    try {
+      writeStart(request, func, params);
+      writeEnd(request, new Object[0]);
+    } catch(IOException e) {
+      throw new TracRpcException(e.getMessage(), e);
+    }
+    byte[] body = request.toString().getBytes(StandardCharsets.UTF_8);
+    
+    HttpURLConnection conn = this.open();
+    try {
+      conn.setFixedLengthStreamingMode(body.length);
+      try(OutputStream requestOut = conn.getOutputStream()) {
+        requestOut.write(body);
+      }
+      this.readResponse(conn, out);
+    } catch(IOException e) {
+      throw new TracRpcException(e.getMessage(), e);
+    } finally {
+      conn.disconnect();
+    }
+  }
+  
+  private HttpURLConnection open() throws TracRpcException
+  {
+    try {
+      HttpURLConnection conn = (HttpURLConnection)(this.proxy == null ? 
+              this.url.openConnection() : this.url.openConnection(this.proxy));
+      conn.setRequestMethod("POST");
+      conn.setDoOutput(true);
+      conn.setConnectTimeout(this.connectionTimeout);
+      conn.setReadTimeout(this.replyTimeout);
+      conn.setRequestProperty("Content-Type", "text/xml");
+      conn.setRequestProperty("User-Agent", XmlRpcHttpTransport.USER_AGENT);
+      if(this.authorization != null) {
+        conn.setRequestProperty("Authorization", this.authorization);
+      }
+      return conn;
+    } catch(IOException e) {
+      throw new TracRpcException(e.getMessage(), e);
+    }
+  }
+  
+  private static void writeStart(Writer writer, String func, Object[] params) 
+          throws IOException
+  {
+    writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?><methodCall><methodName>");
+    writer.write(escape(func));
+    writer.write("</methodName><params>");
+    writeParams(writer, params);
+  }
+  
+  private static void writeEnd(Writer writer, Object[] params) throws IOException
+  {
+    writeParams(writer, params);
+    writer.write("</params></methodCall>");
+    writer.close();
+  }
+  
+  /**
+   * Writes the scalar parameters these calls take
+   */
+  private static void writeParams(Writer writer, Object[] params) throws IOException
+  {
+    for(Object param : params) {
+      writer.write("<param><value>");
+      if(param instanceof Integer) {
+        writer.write("<int>" + param + "</int>");
+      }
+      else if(param instanceof Boolean) {
+        writer.write("<boolean>" + ((Boolean)param ? 1 : 0) + "</boolean>");
+      }
+      else {
+        writer.write("<string>" + escape(String.valueOf(param)) + "</string>");
+      }
+      writer.write("</value></param>");
+    }
+  }
+  
+  private static String escape(String s)
+  {
+    return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+  
+  /**
+   * Reads the response, writing a base64 result to out
+   * @return a scalar result, or null for a base64 one
+   */
+  private Object readResponse(HttpURLConnection conn, OutputStream out) 
+          throws IOException, TracRpcException
+  {
+    int status = conn.getResponseCode();
+    if(status != HttpURLConnection.HTTP_OK) {
+      throw new TracRpcException("HTTP server returned unexpected status: " 
+              + conn.getResponseMessage());
+    }
+    ResponseHandler handler = new ResponseHandler(out);
+    try(InputStream in = conn.getInputStream()) {
+      newParser().parse(in, handler);
+    } catch(SAXException e) {
+      if(e.getCause() instanceof IOException) {
+        throw (IOException)e.getCause();
+      }
+      throw new TracRpcException("Failed to parse server's response: " 
+              + e.getMessage(), e);
+    }
+    if(handler.fault) {
+      throw new TracRpcException(handler.faultString, handler.faultCode, null);
+    }
+    if(out != null && !handler.decoded) {
+      throw new TracRpcException("Server's response did not contain a file");
+    }
+    return handler.result;
+  }
+  
+  private static SAXParser newParser() throws TracRpcException
+  {
+    try {
+      SAXParserFactory factory = SAXParserFactory.newInstance();
+      factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+      return factory.newSAXParser();
+    } catch(ParserConfigurationException | SAXException e) {
+      throw new TracRpcException(e.getMessage(), e);
+    }
+  }
+  
+  /**
+   * Picks the result or fault out of a methodResponse, streaming base64
+   * text through a decoder as it arrives
+   */
+  private static final class ResponseHandler extends DefaultHandler {
+    private final OutputStream out;
+    private final StringBuilder text = new StringBuilder();
+    private Base64Decoder decoder = null;
+    private boolean typed = false;
+    private String memberName = null;
+    Object result = null;
+    boolean decoded = false;
+    boolean fault = false;
+    int faultCode = 0;
+    String faultString = null;
+    
+    ResponseHandler(OutputStream out)
+    {
+      this.out = out;
+    }
+    
+    @Override
+    public void startElement(String uri, String localName, String qName, 
+            Attributes attributes)
+    {
+      text.setLength(0);
+      switch(qName) {
+        case "fault":
+          fault = true;
+          break;
+        case "value":
+          typed = false;
+          break;
+        case "base64":
+          if(!fault && out != null) {
+            decoder = new Base64Decoder(out);
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException
+    {
+      if(decoder == null) {
+        text.append(ch, start, length);
+        return;
+      }
+      try {
+        decoder.write(ch, start, length);
+      } catch(IOException e) {
+        throw new SAXException(e);
+      }
+    }
+    
+    @Override
+    public void endElement(String uri, String localName, String qName) 
+            throws SAXException
+    {
+      switch(qName) {
+        case "base64":
+          typed = true;
+          if(decoder != null) {
+            try {
+              decoder.finish();
+            } catch(IOException e) {
+              throw new SAXException(e);
+            }
+            decoder = null;
+            decoded = true;
+          }
+          break;
+        case "int":
+        case "i4":
+          typed = true;
+          result = Integer.valueOf(text.toString().trim());
+          break;
+        case "boolean":
+          typed = true;
+          result = text.toString().trim().equals("1");
+          break;
+        case "string":
+          typed = true;
+          result = text.toString();
+          break;
+        case "value":
+          if(!typed) {
+            result = text.toString();
+          }
+          break;
+        case "name":
+          memberName = text.toString();
+          break;
+        case "member":
+          if(fault && "faultCode".equals(memberName)) {
+            faultCode = result instanceof Integer ? (Integer)result : 0;
+          }
+          else if(fault && "faultString".equals(memberName)) {
+            faultString = String.valueOf(result);
+          }
+          break;
+        default:
+          break;
+      }
+      text.setLength(0);
+    }
+  }
+  
+  /**
+   * Decodes base64 text handed over in pieces, a buffer at a time
+   */
+  private static final class Base64Decoder {
+    private final OutputStream out;
+    private final byte[] encoded = new byte[CHUNK_SIZE];
+    private final byte[] decoded = new byte[CHUNK_SIZE / 4 * 3];
+    private int length = 0;
+    
+    Base64Decoder(OutputStream out)
+    {
+      this.out = out;
+    }
+    
+    void write(char[] ch, int start, int count) throws IOException
+    {
+      for(int i = start; i < start + count; ++i) {
+        char c = ch[i];
+        if(Character.isWhitespace(c)) {
+          continue;
+        }
+        encoded[length++] = (byte)c;
+        if(length == encoded.length) {
+          int n = this.decode(encoded);
+          out.write(decoded, 0, n);
+          length = 0;
+        }
+      }
+    }
+    
+    void finish() throws IOException
+    {
+      if(length > 0) {
+        int n = this.decode(Arrays.copyOf(encoded, length));
+        out.write(decoded, 0, n);
+        length = 0;
+      }
+    }
+    
+    private int decode(byte[] src) throws IOException
+    {
+      try {
+        return Base64.getDecoder().decode(src, decoded);
+      } catch(IllegalArgumentException e) {
+        throw new IOException("Invalid base64 in response", e);
+      }
+    }
+  }
+  
+  /**
+   * Lets the base64 encoder be closed, to write its padding, without
+   * closing the request body under it
+   */
+  private static final class Unclosed extends FilterOutputStream {
+    Unclosed(OutputStream out)
+    {
+      super(out);
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      out.write(b, off, len);
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+      out.flush();
+    }
+  }
+}
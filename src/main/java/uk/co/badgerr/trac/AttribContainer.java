@@ -23,23 +23,44 @@
  */
 package uk.co.badgerr.trac;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
- * Contains attributes in a HashMap and provides accessors to it
- * and utility for reading strings (creating empty ones when needed)
+ * Contains attributes in a map and provides accessors to it
+ * and utility for reading strings (creating empty ones when needed).
+ * Changes to the attributes are tracked so that updates can send only
+ * what was modified.
  * @author James Femia <badgerr@gmail.com>
  */
 public class AttribContainer {
+  /**
+   * The attributes. Changes made through the map are tracked, unless a
+   * subclass replaces it with a map of its own, in which case every
+   * attribute counts as changed.
+   */
   protected HashMap<String,Object> attribs;
 
   public AttribContainer()
   {
-    attribs = new HashMap();
+    attribs = new AttribMap();
+  }
+  
+  /**
+   * Creates a container that stores the layout's attributes compactly
+   * @param layout the well-known attributes of the subclass
+   */
+  AttribContainer(AttribMap.Layout layout)
+  {
+    attribs = new AttribMap(layout);
   }
   
   /**
-   * Direct accessor to our attributes
+   * Direct accessor to our attributes. Changes made through the map are
+   * tracked.
    * @return 
    */
   public HashMap<String, Object> getAttribs() {
@@ -47,12 +68,58 @@ public class AttribContainer {
   }
 
   /**
-   * Overwrites all attributes with the specified hashmap
+   * Overwrites all attributes with the contents of the specified hashmap.
+   * Attributes that differ from the current ones count as changed.
    * @param attribs 
    */
   public void setAttribs(HashMap<String, Object> attribs) {
-    if(attribs != null)
+    if(attribs == null) {
+      return;
+    }
+    if(this.attribs instanceof AttribMap) {
+      this.attribs.keySet().retainAll(attribs.keySet());
+      this.attribs.putAll(attribs);
+    }
+    else {
       this.attribs = attribs;
+    }
+  }
+  
+  /**
+   * Replaces all attributes with ones freshly read from Trac, leaving no
+   * changes recorded
+   * @param attribs attributes as Trac reported them
+   */
+  void loadAttribs(Map<String, Object> attribs) {
+    if(this.attribs instanceof AttribMap) {
+      ((AttribMap)this.attribs).load(attribs);
+    }
+    else {
+      this.attribs.clear();
+      this.attribs.putAll(attribs);
+    }
+  }
+  
+  /**
+   * Gets the names of attributes that have been set or removed since the
+   * object was read from (or last sent to) Trac
+   * @return unmodifiable set of changed attribute names
+   */
+  public Set<String> getChangedAttribs() {
+    if(this.attribs instanceof AttribMap) {
+      return ((AttribMap)this.attribs).getChanged();
+    }
+    return Collections.unmodifiableSet(new HashSet<String>(this.attribs.keySet()));
+  }
+  
+  /**
+   * Forgets all recorded changes, treating the current attributes as the
+   * ones Trac holds
+   */
+  public void clearChanges() {
+    if(this.attribs instanceof AttribMap) {
+      ((AttribMap)this.attribs).markClean();
+    }
   }
   
   /**
@@ -0,0 +1,608 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Attribute map that remembers which attributes have been changed since it
+ * was last marked clean, so that updates can send only those attributes.
+ * 
+ * Every way of modifying the map, including through its views, is tracked.
+ * Putting a value equal to the current one is not a change.
+ * 
+ * Attributes named by the map's {@link Layout Layout} are kept in a plain
+ * array rather than as hash entries, which matters when hundreds of
+ * thousands of tickets are held in memory. Any other attribute (e.g. a
+ * custom ticket field) goes into an overflow map created on first use.
+ * 
+ * It is a HashMap so that it can stand in wherever AttribContainer has
+ * always exposed one, but it never uses HashMap's own table: every method
+ * is overridden to work on the slots and overflow map. It is cloned and
+ * serialized as a plain HashMap.
+ * @author James Femia <badgerr@gmail.com>
+ */
+final class AttribMap extends HashMap<String, Object> {
+  private static final long serialVersionUID = 1L;
+
+  /** Marks an empty slot, since null is a valid attribute value */
+  private static final Object ABSENT = new Object();
+  
+  /**
+   * The well-known attribute names for one kind of object. Shared by all
+   * instances of that kind.
+   */
+  static final class Layout {
+    static final Layout EMPTY = new Layout();
+    
+    private final String[] names;
+    private final HashMap<String, Integer> slots = new HashMap<String, Integer>();
+    
+    /**
+     * @param names the attribute names to store in slots, at most 64
+     */
+    Layout(String... names) {
+      if(names.length > 64) {
+        throw new IllegalArgumentException("Too many slots: " + names.length);
+      }
+      this.names = names;
+      for(int i = 0; i < names.length; ++i) {
+        slots.put(names[i], i);
+      }
+    }
+    
+    int slot(Object name) {
+      Integer slot = slots.get(name);
+      return slot == null ? -1 : slot;
+    }
+  }
+  
+  private final transient Layout layout;
+  private final transient Object[] slots;
+  private transient int slotCount = 0;
+  private transient HashMap<String, Object> overflow = null;
+  private transient long changedSlots = 0;
+  private transient Set<String> changedOverflow = null;
+  
+  AttribMap() {
+    this(Layout.EMPTY);
+  }
+  
+  AttribMap(Layout layout) {
+    this.layout = layout;
+    this.slots = new Object[layout.names.length];
+    Arrays.fill(this.slots, ABSENT);
+  }
+  
+  @Override
+  public int size() {
+    return slotCount + (overflow == null ? 0 : overflow.size());
+  }
+  
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+  
+  @Override
+  public boolean containsKey(Object key) {
+    int slot = layout.slot(key);
+    if(slot >= 0) {
+      return slots[slot] != ABSENT;
+    }
+    return overflow != null && overflow.containsKey(key);
+  }
+  
+  @Override
+  public Object get(Object key) {
+    int slot = layout.slot(key);
+    if(slot >= 0) {
+      Object value = slots[slot];
+      return value == ABSENT ? null : value;
+    }
+    return overflow == null ? null : overflow.get(key);
+  }
+  
+  @Override
+  public boolean containsValue(Object value) {
+    for(Map.Entry<String, Object> e : entrySet()) {
+      if(Objects.equals(e.getValue(), value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  @Override
+  public Object getOrDefault(Object key, Object defaultValue) {
+    return containsKey(key) ? get(key) : defaultValue;
+  }
+  
+  @Override
+  public Object put(String key, Object value) {
+    int slot = layout.slot(key);
+    if(slot >= 0) {
+      Object old = slots[slot];
+      if(old == ABSENT) {
+        ++slotCount;
+        old = null;
+        changedSlots |= 1L << slot;
+      }
+      else if(!Objects.equals(old, value)) {
+        changedSlots |= 1L << slot;
+      }
+      slots[slot] = value;
+      return old;
+    }
+    
+    if(overflow == null) {
+      overflow = new HashMap<String, Object>();
+    }
+    boolean present = overflow.containsKey(key);
+    Object old = overflow.put(key, value);
+    if(!present || !Objects.equals(old, value)) {
+      markChanged(key);
+    }
+    return old;
+  }
+  
+  @Override
+  public Object remove(Object key) {
+    int slot = layout.slot(key);
+    if(slot >= 0) {
+      Object old = slots[slot];
+      if(old == ABSENT) {
+        return null;
+      }
+      clearSlot(slot);
+      return old;
+    }
+    if(overflow == null || !overflow.containsKey(key)) {
+      return null;
+    }
+    markChanged((String)key);
+    return overflow.remove(key);
+  }
+  
+  @Override
+  public void putAll(Map<? extends String, ? extends Object> m) {
+    for(Map.Entry<? extends String, ? extends Object> e : m.entrySet()) {
+      put(e.getKey(), e.getValue());
+    }
+  }
+  
+  @Override
+  public Object putIfAbsent(String key, Object value) {
+    Object old = get(key);
+    if(old == null) {
+      put(key, value);
+    }
+    return old;
+  }
+  
+  @Override
+  public boolean remove(Object key, Object value) {
+    if(!containsKey(key) || !Objects.equals(get(key), value)) {
+      return false;
+    }
+    remove(key);
+    return true;
+  }
+  
+  @Override
+  public Object replace(String key, Object value) {
+    return containsKey(key) ? put(key, value) : null;
+  }
+  
+  @Override
+  public boolean replace(String key, Object oldValue, Object newValue) {
+    if(!containsKey(key) || !Objects.equals(get(key), oldValue)) {
+      return false;
+    }
+    put(key, newValue);
+    return true;
+  }
+  
+  @Override
+  public Object computeIfAbsent(String key, 
+          Function<? super String, ? extends Object> mappingFunction) {
+    Object old = get(key);
+    if(old != null) {
+      return old;
+    }
+    Object value = mappingFunction.apply(key);
+    if(value != null) {
+      put(key, value);
+    }
+    return value;
+  }
+  
+  @Override
+  public Object computeIfPresent(String key, 
+          BiFunction<? super String, ? super Object, ? extends Object> remappingFunction) {
+    Object old = get(key);
+    if(old == null) {
+      return null;
+    }
+    return store(key, remappingFunction.apply(key, old));
+  }
+  
+  @Override
+  public Object compute(String key, 
+          BiFunction<? super String, ? super Object, ? extends Object> remappingFunction) {
+    return store(key, remappingFunction.apply(key, get(key)));
+  }
+  
+  @Override
+  public Object merge(String key, Object value, 
+          BiFunction<? super Object, ? super Object, ? extends Object> remappingFunction) {
+    Object old = get(key);
+    return store(key, old == null ? value : remappingFunction.apply(old, value));
+  }
+  
+  /**
+   * Puts a computed value, or removes the attribute if it is null
+   */
+  private Object store(String key, Object value) {
+    if(value == null) {
+      remove(key);
+    }
+    else {
+      put(key, value);
+    }
+    return value;
+  }
+  
+  @Override
+  public void forEach(BiConsumer<? super String, ? super Object> action) {
+    for(Map.Entry<String, Object> e : entrySet()) {
+      action.accept(e.getKey(), e.getValue());
+    }
+  }
+  
+  @Override
+  public void replaceAll(
+          BiFunction<? super String, ? super Object, ? extends Object> function) {
+    for(Map.Entry<String, Object> e : entrySet()) {
+      e.setValue(function.apply(e.getKey(), e.getValue()));
+    }
+  }
+  
+  /**
+   * @return a plain HashMap holding the same attributes
+   */
+  @Override
+  public Object clone() {
+    return new HashMap<String, Object>(this);
+  }
+  
+  private Object writeReplace() {
+    return new HashMap<String, Object>(this);
+  }
+  
+  private void clearSlot(int slot) {
+    slots[slot] = ABSENT;
+    --slotCount;
+    changedSlots |= 1L << slot;
+  }
+  
+  @Override
+  public void clear() {
+    for(int i = 0; i < slots.length; ++i) {
+      if(slots[i] != ABSENT) {
+        clearSlot(i);
+      }
+    }
+    if(overflow != null) {
+      for(String key : overflow.keySet()) {
+        markChanged(key);
+      }
+      overflow.clear();
+    }
+  }
+  
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet() {
+    return new AbstractSet<Map.Entry<String, Object>>() {
+      @Override
+      public int size() {
+        return AttribMap.this.size();
+      }
+      
+      @Override
+      public Iterator<Map.Entry<String, Object>> iterator() {
+        return new EntryIterator();
+      }
+    };
+  }
+  
+  @Override
+  public Set<String> keySet() {
+    return new AbstractSet<String>() {
+      @Override
+      public int size() {
+        return AttribMap.this.size();
+      }
+      
+      @Override
+      public boolean contains(Object o) {
+        return containsKey(o);
+      }
+      
+      @Override
+      public boolean remove(Object o) {
+        if(!containsKey(o)) {
+          return false;
+        }
+        AttribMap.this.remove(o);
+        return true;
+      }
+      
+      @Override
+      public Iterator<String> iterator() {
+        final Iterator<Map.Entry<String, Object>> it = new EntryIterator();
+        return new Iterator<String>() {
+          @Override
+          public boolean hasNext() {
+            return it.hasNext();
+          }
+          
+          @Override
+          public String next() {
+            return it.next().getKey();
+          }
+          
+          @Override
+          public void remove() {
+            it.remove();
+          }
+        };
+      }
+    };
+  }
+  
+  @Override
+  public Collection<Object> values() {
+    return new AbstractCollection<Object>() {
+      @Override
+      public int size() {
+        return AttribMap.this.size();
+      }
+      
+      @Override
+      public Iterator<Object> iterator() {
+        final Iterator<Map.Entry<String, Object>> it = new EntryIterator();
+        return new Iterator<Object>() {
+          @Override
+          public boolean hasNext() {
+            return it.hasNext();
+          }
+          
+          @Override
+          public Object next() {
+            return it.next().getValue();
+          }
+          
+          @Override
+          public void remove() {
+            it.remove();
+          }
+        };
+      }
+    };
+  }
+  
+  /**
+   * Walks the filled slots, then the overflow map
+   */
+  private final class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+    private int nextSlot = nextFilled(0);
+    private int lastSlot = -1;
+    private Iterator<Map.Entry<String, Object>> overflowIt = null;
+    private Map.Entry<String, Object> lastOverflow = null;
+    
+    private int nextFilled(int from) {
+      while(from < slots.length && slots[from] == ABSENT) {
+        ++from;
+      }
+      return from;
+    }
+    
+    @Override
+    public boolean hasNext() {
+      if(nextSlot < slots.length) {
+        return true;
+      }
+      if(overflowIt == null && overflow != null) {
+        overflowIt = overflow.entrySet().iterator();
+      }
+      return overflowIt != null && overflowIt.hasNext();
+    }
+    
+    @Override
+    public Map.Entry<String, Object> next() {
+      if(!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      if(nextSlot < slots.length) {
+        lastSlot = nextSlot;
+        nextSlot = nextFilled(nextSlot + 1);
+        return new SlotEntry(lastSlot);
+      }
+      lastSlot = -1;
+      lastOverflow = overflowIt.next();
+      return new OverflowEntry(lastOverflow);
+    }
+    
+    @Override
+    public void remove() {
+      if(lastSlot >= 0) {
+        if(slots[lastSlot] == ABSENT) {
+          throw new IllegalStateException();
+        }
+        clearSlot(lastSlot);
+      }
+      else if(lastOverflow != null) {
+        overflowIt.remove();
+        markChanged(lastOverflow.getKey());
+        lastOverflow = null;
+      }
+      else {
+        throw new IllegalStateException();
+      }
+    }
+  }
+  
+  /**
+   * Live entry for a slot, whose setValue goes through change tracking
+   */
+  private final class SlotEntry implements Map.Entry<String, Object> {
+    private final int slot;
+    
+    SlotEntry(int slot) {
+      this.slot = slot;
+    }
+    
+    @Override
+    public String getKey() {
+      return layout.names[slot];
+    }
+    
+    @Override
+    public Object getValue() {
+      Object value = slots[slot];
+      return value == ABSENT ? null : value;
+    }
+    
+    @Override
+    public Object setValue(Object value) {
+      return put(getKey(), value);
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+      if(!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>)o;
+      return getKey().equals(e.getKey()) && Objects.equals(getValue(), e.getValue());
+    }
+    
+    @Override
+    public int hashCode() {
+      return getKey().hashCode() ^ Objects.hashCode(getValue());
+    }
+    
+    @Override
+    public String toString() {
+      return getKey() + "=" + getValue();
+    }
+  }
+  
+  /**
+   * Entry for an overflow attribute whose setValue goes through change
+   * tracking
+   */
+  private final class OverflowEntry extends AbstractMap.SimpleEntry<String, Object> {
+    private static final long serialVersionUID = 1L;
+    private final Map.Entry<String, Object> entry;
+    
+    OverflowEntry(Map.Entry<String, Object> entry) {
+      super(entry);
+      this.entry = entry;
+    }
+    
+    @Override
+    public Object setValue(Object value) {
+      super.setValue(value);
+      Object old = entry.setValue(value);
+      if(!Objects.equals(old, value)) {
+        markChanged(entry.getKey());
+      }
+      return old;
+    }
+  }
+  
+  private void markChanged(String key) {
+    if(changedOverflow == null) {
+      changedOverflow = new HashSet<String>();
+    }
+    changedOverflow.add(key);
+  }
+  
+  /**
+   * Replaces all attributes and marks the map clean
+   * @param attribs the new attributes
+   */
+  void load(Map<String, Object> attribs) {
+    Arrays.fill(slots, ABSENT);
+    slotCount = 0;
+    overflow = null;
+    putAll(attribs);
+    markClean();
+  }
+  
+  /**
+   * Gets the names of attributes changed since the map was last marked clean
+   * @return unmodifiable set of attribute names, including removed ones
+   */
+  Set<String> getChanged() {
+    if(changedSlots == 0 && changedOverflow == null) {
+      return Collections.<String>emptySet();
+    }
+    Set<String> ret = new HashSet<String>();
+    for(int i = 0; i < slots.length; ++i) {
+      if((changedSlots & (1L << i)) != 0) {
+        ret.add(layout.names[i]);
+      }
+    }
+    if(changedOverflow != null) {
+      ret.addAll(changedOverflow);
+    }
+    return Collections.unmodifiableSet(ret);
+  }
+  
+  /**
+   * Forgets all changes, making the current attributes the baseline
+   */
+  void markClean() {
+    changedSlots = 0;
+    changedOverflow = null;
+  }
+}
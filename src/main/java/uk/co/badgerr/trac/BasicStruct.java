@@ -28,6 +28,19 @@ package uk.co.badgerr.trac;
  * @author James Femia <badgerr@gmail.com>
  */
 public class BasicStruct extends AttribContainer {
+  public BasicStruct()
+  {
+  }
+  
+  /**
+   * Creates a struct that stores the layout's attributes compactly
+   * @param layout the well-known attributes of the subclass
+   */
+  BasicStruct(AttribMap.Layout layout)
+  {
+    super(layout);
+  }
+  
   /**
    * Gets the name of this object
    * @return name
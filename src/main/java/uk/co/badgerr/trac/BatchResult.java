@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the outcome of a batched operation, such as fetching many tickets
+ * with a single system.multicall. Each key ends up either in the results or
+ * in the errors, never both.
+ * @param <K> the type used to identify each item (e.g. a ticket id)
+ * @param <V> the type of each successful result
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class BatchResult<K, V> {
+  private final Map<K, V> results = new LinkedHashMap<K, V>();
+  private final Map<K, TracRpcException> errors = 
+          new LinkedHashMap<K, TracRpcException>();
+
+  /**
+   * Records a successful result for an item
+   * @param key the item
+   * @param value the result
+   */
+  synchronized void addResult(K key, V value) {
+    this.results.put(key, value);
+  }
+
+  /**
+   * Records a failure for an item
+   * @param key the item
+   * @param error what went wrong
+   */
+  synchronized void addError(K key, TracRpcException error) {
+    this.errors.put(key, error);
+  }
+
+  /**
+   * Gets the successful results, in the order they were requested (or for
+   * operations run concurrently, the order they completed)
+   * @return unmodifiable map of item to result
+   */
+  public synchronized Map<K, V> getResults() {
+    return Collections.unmodifiableMap(new LinkedHashMap<K, V>(results));
+  }
+
+  /**
+   * Gets the failed items, in the order they were requested (or for
+   * operations run concurrently, the order they completed)
+   * @return unmodifiable map of item to the error it produced
+   */
+  public synchronized Map<K, TracRpcException> getErrors() {
+    return Collections.unmodifiableMap(
+            new LinkedHashMap<K, TracRpcException>(errors));
+  }
+
+  /**
+   * Gets whether any item in the batch failed
+   * @return true if there was at least one error
+   */
+  public synchronized boolean hasErrors() {
+    return !this.errors.isEmpty();
+  }
+}
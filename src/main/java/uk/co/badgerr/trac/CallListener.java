@@ -0,0 +1,57 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+/**
+ * Observes every RPC made through {@link TracRpc#call TracRpc.call} and
+ * {@link TracRpc#callAsync TracRpc.callAsync}. Set one with
+ * {@link TracRpcConfiguration#setCallListener(CallListener) 
+ * setCallListener}; {@link CallMetrics CallMetrics} is the standard
+ * implementation.
+ * 
+ * Methods are called on whichever thread makes or completes the call, so
+ * implementations must be thread safe and quick.
+ * @author James Femia <badgerr@gmail.com>
+ */
+public interface CallListener {
+  /**
+   * Called before a request is sent
+   * @param method the RPC method, e.g. ticket.get or system.multicall
+   */
+  void callStarted(String method);
+  
+  /**
+   * Called once a call has finished, successfully or not
+   * @param method the RPC method
+   * @param nanos time taken, including serialization and parsing
+   * @param requestBytes size of the request body as sent
+   * @param responseBytes size of the response body as received (compressed,
+   *        if the server compressed it)
+   * @param error null on success, otherwise the failure; see
+   *        {@link TracRpcException#isFault() isFault} to tell server faults
+   *        from transport errors
+   */
+  void callCompleted(String method, long nanos, long requestBytes, 
+          long responseBytes, TracRpcException error);
+}
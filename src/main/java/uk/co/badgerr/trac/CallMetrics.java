@@ -0,0 +1,239 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Records per-method call statistics: latency percentiles, request and
+ * response sizes, calls in flight, and failures by fault code. Read them
+ * with {@link snapshot() snapshot} or publish them over JMX with
+ * {@link registerMBean(String) registerMBean}.
+ * 
+ * Usage:
+ *   CallMetrics metrics = new CallMetrics();
+ *   config.setCallListener(metrics);
+ *   ...
+ *   long p99 = metrics.snapshot().get("ticket.get").getLatencyP99();
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class CallMetrics implements CallListener, CallMetricsMXBean {
+  private final ConcurrentHashMap<String, Method> methods = 
+          new ConcurrentHashMap<String, Method>();
+  private final AtomicLong inFlight = new AtomicLong();
+  
+  /**
+   * Live counters for one method
+   */
+  private static final class Method {
+    final LatencyHistogram latency = new LatencyHistogram();
+    final AtomicLong inFlight = new AtomicLong();
+    final LongAdder calls = new LongAdder();
+    final LongAdder requestBytes = new LongAdder();
+    final LongAdder responseBytes = new LongAdder();
+    final LongAdder transportErrors = new LongAdder();
+    final ConcurrentHashMap<Integer, LongAdder> faults = 
+            new ConcurrentHashMap<Integer, LongAdder>();
+    final LongAccumulator maxRequestBytes = new LongAccumulator(Math::max, 0);
+    final LongAccumulator maxResponseBytes = new LongAccumulator(Math::max, 0);
+  }
+  
+  private Method method(String name)
+  {
+    return methods.computeIfAbsent(name, k -> new Method());
+  }
+  
+  @Override
+  public void callStarted(String method)
+  {
+    inFlight.incrementAndGet();
+    method(method).inFlight.incrementAndGet();
+  }
+
+  @Override
+  public void callCompleted(String method, long nanos, long requestBytes, 
+          long responseBytes, TracRpcException error)
+  {
+    inFlight.decrementAndGet();
+    Method m = method(method);
+    m.inFlight.decrementAndGet();
+    m.calls.increment();
+    m.latency.record(nanos / 1000);
+    m.requestBytes.add(requestBytes);
+    m.responseBytes.add(responseBytes);
+    m.maxRequestBytes.accumulate(requestBytes);
+    m.maxResponseBytes.accumulate(responseBytes);
+    if(error != null) {
+      if(error.isFault()) {
+        m.faults.computeIfAbsent(error.getFaultCode(), k -> new LongAdder())
+                .increment();
+      }
+      else {
+        m.transportErrors.increment();
+      }
+    }
+  }
+  
+  @Override
+  public long getInFlight()
+  {
+    return inFlight.get();
+  }
+  
+  @Override
+  public Map<String, MethodStats> getMethods()
+  {
+    return snapshot();
+  }
+  
+  /**
+   * Gets the current statistics for every method called so far
+   * @return unmodifiable map of method name to statistics, sorted by name
+   */
+  public Map<String, MethodStats> snapshot()
+  {
+    TreeMap<String, MethodStats> ret = new TreeMap<String, MethodStats>();
+    for(Map.Entry<String, Method> e : methods.entrySet()) {
+      Method m = e.getValue();
+      long[] latency = m.latency.snapshot();
+      TreeMap<Integer, Long> faults = new TreeMap<Integer, Long>();
+      long faultCount = 0;
+      for(Map.Entry<Integer, LongAdder> f : m.faults.entrySet()) {
+        faults.put(f.getKey(), f.getValue().sum());
+        faultCount += f.getValue().sum();
+      }
+      ret.put(e.getKey(), new MethodStats(m.calls.sum(), Math.max(0, m.inFlight.get()), 
+              faultCount, m.transportErrors.sum(), faults,
+              LatencyHistogram.valueAt(latency, 50), 
+              LatencyHistogram.valueAt(latency, 90),
+              LatencyHistogram.valueAt(latency, 99), 
+              LatencyHistogram.valueAt(latency, 100),
+              m.requestBytes.sum(), m.responseBytes.sum(), 
+              m.maxRequestBytes.get(), m.maxResponseBytes.get()));
+    }
+    return Collections.unmodifiableMap(ret);
+  }
+  
+  @Override
+  public void reset()
+  {
+    methods.clear();
+  }
+  
+  /**
+   * Publishes these metrics as an MXBean on the platform MBean server,
+   * under uk.co.badgerr.trac:type=CallMetrics,name=<name>
+   * @param name distinguishes this instance, e.g. the Trac server's host
+   * @return the name it was registered under
+   * @throws JMException if registration fails, e.g. the name is taken
+   */
+  public ObjectName registerMBean(String name) throws JMException
+  {
+    ObjectName objectName = new ObjectName("uk.co.badgerr.trac:type=CallMetrics,name=" 
+            + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    return objectName;
+  }
+  
+  /**
+   * Statistics for one RPC method at a point in time. Latencies are in
+   * microseconds and sizes in bytes.
+   */
+  public static final class MethodStats {
+    private final long calls;
+    private final long inFlight;
+    private final long faults;
+    private final long transportErrors;
+    private final Map<Integer, Long> faultCodes;
+    private final long latencyP50;
+    private final long latencyP90;
+    private final long latencyP99;
+    private final long latencyMax;
+    private final long requestBytes;
+    private final long responseBytes;
+    private final long maxRequestBytes;
+    private final long maxResponseBytes;
+    
+    @ConstructorProperties({"calls", "inFlight", "faults", "transportErrors", 
+        "faultCodes", "latencyP50", "latencyP90", "latencyP99", "latencyMax", 
+        "requestBytes", "responseBytes", "maxRequestBytes", "maxResponseBytes"})
+    public MethodStats(long calls, long inFlight, long faults, 
+            long transportErrors, Map<Integer, Long> faultCodes, 
+            long latencyP50, long latencyP90, long latencyP99, long latencyMax, 
+            long requestBytes, long responseBytes, 
+            long maxRequestBytes, long maxResponseBytes)
+    {
+      this.calls = calls;
+      this.inFlight = inFlight;
+      this.faults = faults;
+      this.transportErrors = transportErrors;
+      this.faultCodes = Collections.unmodifiableMap(faultCodes);
+      this.latencyP50 = latencyP50;
+      this.latencyP90 = latencyP90;
+      this.latencyP99 = latencyP99;
+      this.latencyMax = latencyMax;
+      this.requestBytes = requestBytes;
+      this.responseBytes = responseBytes;
+      this.maxRequestBytes = maxRequestBytes;
+      this.maxResponseBytes = maxResponseBytes;
+    }
+    
+    /** @return completed calls */
+    public long getCalls() { return calls; }
+    /** @return calls in progress */
+    public long getInFlight() { return inFlight; }
+    /** @return calls answered with a server fault */
+    public long getFaults() { return faults; }
+    /** @return calls that failed without a server answer */
+    public long getTransportErrors() { return transportErrors; }
+    /** @return number of faults for each fault code */
+    public Map<Integer, Long> getFaultCodes() { return faultCodes; }
+    /** @return median latency */
+    public long getLatencyP50() { return latencyP50; }
+    /** @return 90th percentile latency */
+    public long getLatencyP90() { return latencyP90; }
+    /** @return 99th percentile latency */
+    public long getLatencyP99() { return latencyP99; }
+    /** @return highest latency */
+    public long getLatencyMax() { return latencyMax; }
+    /** @return total request bytes sent */
+    public long getRequestBytes() { return requestBytes; }
+    /** @return total response bytes received */
+    public long getResponseBytes() { return responseBytes; }
+    /** @return largest request */
+    public long getMaxRequestBytes() { return maxRequestBytes; }
+    /** @return largest response */
+    public long getMaxResponseBytes() { return maxResponseBytes; }
+  }
+}
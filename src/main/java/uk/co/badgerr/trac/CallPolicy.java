@@ -0,0 +1,367 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Retries, circuit breaking and hedging around individual call attempts.
+ * 
+ * Only transport errors count as failures: a fault means the server is up
+ * and answered. Retries and hedges are only made for idempotent methods,
+ * i.e. those whose name ends in a get... or query segment, and
+ * system.multicall batches made up only of such methods.
+ * 
+ * The circuit breaker opens after a run of consecutive failures and then
+ * fails every call at once for a while, before letting a single trial call
+ * through to see whether the server has recovered.
+ * 
+ * A hedged call sends a second request if the first hasn't answered within
+ * the method's recent latency at the configured percentile, and takes
+ * whichever answer comes first. Older latencies are decayed away, so the
+ * threshold follows the server as it speeds up or slows down.
+ * @author James Femia <badgerr@gmail.com>
+ */
+final class CallPolicy {
+  /** Successful attempts needed before a method is hedged */
+  private static final int HEDGE_MIN_SAMPLES = 20;
+  /**
+   * Successful attempts between halvings of a method's latency histogram,
+   * which keeps the hedge threshold weighted towards the last thousand or
+   * so calls
+   */
+  private static final int HEDGE_DECAY_INTERVAL = 512;
+  
+  /**
+   * Failure of a call refused by the open circuit breaker, which is never
+   * retried
+   */
+  private static final class CircuitOpenException extends TracRpcException {
+    private static final long serialVersionUID = 1L;
+    
+    CircuitOpenException(String message)
+    {
+      super(message);
+    }
+  }
+  
+  /**
+   * One blocking attempt at a call
+   */
+  interface Attempt {
+    Object run() throws TracRpcException;
+  }
+  
+  private final int maxRetries;
+  private final long retryBackoff;
+  private final long retryMaxBackoff;
+  private final int breakerThreshold;
+  private final long breakerOpenTime;
+  private final double hedgePercentile;
+  
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private volatile long openUntil = 0;
+  private final AtomicBoolean trialInProgress = new AtomicBoolean();
+  private final Map<String, HedgeStats> hedgeStats = 
+          new ConcurrentHashMap<String, HedgeStats>();
+  
+  /**
+   * Recent latencies of one method, for the hedge threshold. The histogram
+   * is halved every HEDGE_DECAY_INTERVAL samples.
+   */
+  private static final class HedgeStats {
+    final LatencyHistogram latency = new LatencyHistogram();
+    final AtomicLong samples = new AtomicLong();
+    volatile long threshold = -1;
+  }
+  
+  CallPolicy(TracRpcConfiguration config)
+  {
+    this.maxRetries = config.getMaxRetries();
+    this.retryBackoff = config.getRetryBackoff();
+    this.retryMaxBackoff = config.getRetryMaxBackoff();
+    this.breakerThreshold = config.getCircuitBreakerThreshold();
+    this.breakerOpenTime = config.getCircuitBreakerOpenTime();
+    this.hedgePercentile = config.getHedgePercentile();
+  }
+  
+  /**
+   * Gets whether a configuration asks for any of retries, circuit breaking
+   * or hedging
+   * @param config the configuration
+   * @return true if a CallPolicy is needed
+   */
+  static boolean isEnabled(TracRpcConfiguration config)
+  {
+    return config.getMaxRetries() > 0 || config.getCircuitBreakerThreshold() > 0
+           || config.getHedgePercentile() > 0;
+  }
+  
+  /**
+   * Gets whether calling a method twice has the same effect as calling it
+   * once
+   * @param func method name
+   * @param params call parameters, inspected for system.multicall
+   * @return true if the call can safely be repeated
+   */
+  static boolean isIdempotent(String func, Object[] params)
+  {
+    if(func.equals("system.multicall")) {
+      for(Object call : (Object[])params[0]) {
+        if(!isIdempotent((String)((Map)call).get("methodName"), null)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    String last = func.substring(func.lastIndexOf('.') + 1);
+    return last.startsWith("get") || last.equals("query");
+  }
+  
+  /**
+   * Whether hedging applies to a call
+   */
+  boolean isHedged(String func, Object[] params)
+  {
+    return hedgePercentile > 0 && isIdempotent(func, params);
+  }
+  
+  /**
+   * Makes a call synchronously, retrying on the calling thread
+   * @param func method name
+   * @param params call parameters
+   * @param attempt makes one attempt
+   * @return the call result
+   * @throws TracRpcException from the last attempt, or if the circuit is open
+   */
+  Object call(String func, Object[] params, Attempt attempt) 
+          throws TracRpcException
+  {
+    int retries = isIdempotent(func, params) ? maxRetries : 0;
+    for(int i = 0; ; ++i) {
+      boolean trial = this.acquire();
+      long start = System.nanoTime();
+      try {
+        Object ret = attempt.run();
+        this.succeeded(func, System.nanoTime() - start, trial);
+        return ret;
+      } catch(TracRpcException e) {
+        this.completed(e, trial);
+        if(e.isFault() || i >= retries) {
+          throw e;
+        }
+      }
+      try {
+        Thread.sleep(this.backoff(i));
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new TracRpcException("Interrupted waiting to retry " + func, e);
+      }
+    }
+  }
+  
+  /**
+   * Makes a call asynchronously, hedging it if configured
+   * @param func method name
+   * @param params call parameters
+   * @param attempt starts one attempt
+   * @return future for the call result
+   */
+  CompletableFuture<Object> callAsync(String func, Object[] params, 
+          Supplier<CompletableFuture<Object>> attempt)
+  {
+    int retries = isIdempotent(func, params) ? maxRetries : 0;
+    CompletableFuture<Object> ret = new CompletableFuture<Object>();
+    this.attemptAsync(func, params, attempt, 0, retries, ret);
+    return ret;
+  }
+  
+  private void attemptAsync(String func, Object[] params, 
+          Supplier<CompletableFuture<Object>> attempt, int i, int retries, 
+          CompletableFuture<Object> ret)
+  {
+    CompletableFuture<Object> result = this.isHedged(func, params) 
+            ? this.hedged(func, attempt) : this.tracked(func, attempt);
+    result.whenComplete((value, error) -> {
+      if(error == null) {
+        ret.complete(value);
+        return;
+      }
+      TracRpcException e = TracRpc.translate(unwrap(error));
+      // an open breaker fails the call outright, as for call
+      if(e.isFault() || e instanceof CircuitOpenException || i >= retries) {
+        ret.completeExceptionally(e);
+        return;
+      }
+      CompletableFuture.delayedExecutor(this.backoff(i), TimeUnit.MILLISECONDS)
+              .execute(() -> this.attemptAsync(func, params, attempt, 
+                                               i + 1, retries, ret));
+    });
+  }
+  
+  /**
+   * Runs one attempt through the circuit breaker
+   */
+  private CompletableFuture<Object> tracked(String func, 
+          Supplier<CompletableFuture<Object>> attempt)
+  {
+    final boolean trial;
+    try {
+      trial = this.acquire();
+    } catch(TracRpcException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    long start = System.nanoTime();
+    CompletableFuture<Object> result;
+    try {
+      result = attempt.get();
+    } catch(RuntimeException e) {
+      result = CompletableFuture.failedFuture(e);
+    }
+    return result.whenComplete((value, error) -> {
+      if(error == null) {
+        this.succeeded(func, System.nanoTime() - start, trial);
+      }
+      else {
+        this.completed(TracRpc.translate(unwrap(error)), trial);
+      }
+    });
+  }
+  
+  /**
+   * Starts an attempt, and a second one if the first is slower than the
+   * hedge threshold. Completes with the first success, or the last failure.
+   */
+  private CompletableFuture<Object> hedged(String func, 
+          Supplier<CompletableFuture<Object>> attempt)
+  {
+    HedgeStats stats = hedgeStats.get(func);
+    long threshold = stats == null ? -1 : stats.threshold;
+    CompletableFuture<Object> first = this.tracked(func, attempt);
+    if(threshold < 0) {
+      return first;
+    }
+    
+    CompletableFuture<Object> ret = new CompletableFuture<Object>();
+    AtomicInteger pending = new AtomicInteger(2);
+    BiConsumer<Object, Throwable> onComplete = (value, error) -> {
+      if(error == null) {
+        ret.complete(value);
+      }
+      else if(pending.decrementAndGet() == 0) {
+        ret.completeExceptionally(error);
+      }
+    };
+    first.whenComplete(onComplete);
+    CompletableFuture.delayedExecutor(threshold, TimeUnit.MICROSECONDS).execute(() -> {
+      if(ret.isDone()) {
+        pending.decrementAndGet();
+        return;
+      }
+      this.tracked(func, attempt).whenComplete(onComplete);
+    });
+    return ret;
+  }
+  
+  /**
+   * Lets a call through the circuit breaker
+   * @return true if this call is the trial after the breaker was open
+   * @throws TracRpcException if the breaker is open
+   */
+  private boolean acquire() throws TracRpcException
+  {
+    if(breakerThreshold <= 0 || consecutiveFailures.get() < breakerThreshold) {
+      return false;
+    }
+    if(System.currentTimeMillis() >= openUntil && trialInProgress.compareAndSet(false, true)) {
+      return true;
+    }
+    throw new CircuitOpenException("Circuit breaker open after " 
+            + consecutiveFailures.get() + " consecutive failures");
+  }
+  
+  private void succeeded(String func, long nanos, boolean trial)
+  {
+    this.release(true, trial);
+    if(hedgePercentile > 0) {
+      HedgeStats stats = hedgeStats.computeIfAbsent(func, k -> new HedgeStats());
+      stats.latency.record(nanos / 1000);
+      long n = stats.samples.incrementAndGet();
+      if(n % HEDGE_DECAY_INTERVAL == 0) {
+        stats.latency.decay();
+      }
+      if(n == HEDGE_MIN_SAMPLES || (n > HEDGE_MIN_SAMPLES && n % 64 == 0)) {
+        stats.threshold = LatencyHistogram.valueAt(stats.latency.snapshot(), 
+                                                   hedgePercentile);
+      }
+    }
+  }
+  
+  private void completed(TracRpcException e, boolean trial)
+  {
+    // A fault still shows the server is answering
+    this.release(e.isFault(), trial);
+  }
+  
+  private void release(boolean answered, boolean trial)
+  {
+    if(answered) {
+      consecutiveFailures.set(0);
+    }
+    else if(breakerThreshold > 0 
+            && consecutiveFailures.incrementAndGet() >= breakerThreshold) {
+      openUntil = System.currentTimeMillis() + breakerOpenTime;
+    }
+    if(trial) {
+      trialInProgress.set(false);
+    }
+  }
+  
+  /**
+   * Exponential backoff with full jitter
+   * @param retry how many retries have been made already
+   * @return milliseconds to wait
+   */
+  private long backoff(int retry)
+  {
+    long cap = Math.min(retryMaxBackoff, retryBackoff << Math.min(retry, 30));
+    return cap <= 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+  }
+  
+  private static Throwable unwrap(Throwable error)
+  {
+    return error instanceof CompletionException && error.getCause() != null 
+            ? error.getCause() : error;
+  }
+}
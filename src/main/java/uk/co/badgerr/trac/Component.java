@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+/**
+ * Represents a Trac ticket component
+ * @author James Femia <badgerr@gmail.com>
+ */
+public final class Component extends BasicStruct {
+  private static final AttribMap.Layout LAYOUT = new AttribMap.Layout(
+          "name", "owner", "description");
+
+  /**
+   * Create an empty component
+   */
+  public Component()
+  {
+    super(LAYOUT);
+  }
+
+  /**
+   * Create a component with the specified name
+   * @param name 
+   */
+  public Component(String name)
+  {
+    this();
+    this.setName(name);
+  }
+
+  /**
+   * Gets the default owner of tickets in this component (username)
+   * @return owner
+   */
+  public String getOwner() {
+    return this.getAttribString("owner");
+  }
+
+  /**
+   * Sets the default owner of tickets in this component
+   * @param owner user name
+   */
+  public void setOwner(String owner) {
+    this.attribs.put("owner", owner);
+  }
+
+  /**
+   * Gets the description text for this component
+   * @return description
+   */
+  public String getDescription() {
+    return this.getAttribString("description");
+  }
+
+  /**
+   * Sets the description text for this component
+   * @param description new description
+   */
+  public void setDescription(String description) {
+    this.attribs.put("description", description);
+  }
+}
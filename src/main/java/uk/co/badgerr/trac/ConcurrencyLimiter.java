@@ -0,0 +1,216 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Limits the number of requests in flight to a Trac server, adapting the
+ * limit to the latency and errors seen so that the server is kept busy
+ * without building up a queue.
+ * 
+ * The limit follows a gradient: while requests take about as long as the
+ * server's long run average, the limit grows by roughly its square root
+ * each time it is used; as latency rises above the average, the limit
+ * shrinks in proportion. A transport error cuts it by a tenth. Calls over
+ * the limit wait for a request to finish.
+ * 
+ * Share one limiter between every TracRpc talking to a server, either by
+ * setting the same object on each configuration or with
+ * {@link forServer(String) forServer}:
+ *   config.setConcurrencyLimiter(ConcurrencyLimiter.forServer(address));
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class ConcurrencyLimiter {
+  private static final Map<String, ConcurrencyLimiter> servers = 
+          new ConcurrentHashMap<String, ConcurrencyLimiter>();
+  
+  /** Weight of each new sample in the long run latency average */
+  private static final double LONG_RTT_WEIGHT = 1.0 / 600;
+  /** Weight of each new limit estimate in the limit */
+  private static final double SMOOTHING = 0.2;
+  /** Latency may be this much over the average before the limit shrinks */
+  private static final double TOLERANCE = 1.5;
+  
+  private final int minLimit;
+  private final int maxLimit;
+  private final ArrayDeque<CompletableFuture<Void>> waiters = 
+          new ArrayDeque<CompletableFuture<Void>>();
+  private double limit;
+  private double longRtt = 0;
+  private int inFlight = 0;
+  
+  /**
+   * Creates a limiter starting at 20 requests, adapting between 1 and 200
+   */
+  public ConcurrencyLimiter()
+  {
+    this(20, 1, 200);
+  }
+  
+  /**
+   * Creates a limiter
+   * @param initialLimit requests allowed in flight to start with
+   * @param minLimit the fewest requests ever allowed in flight
+   * @param maxLimit the most requests ever allowed in flight
+   */
+  public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit)
+  {
+    if(minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit 
+            || initialLimit > maxLimit) {
+      throw new IllegalArgumentException("Limits must satisfy 1 <= min <= initial <= max");
+    }
+    this.limit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+  }
+  
+  /**
+   * Gets the limiter shared by everything talking to a server, creating
+   * one with default limits the first time
+   * @param serverAddress the Trac RPC address
+   * @return the limiter for that address
+   */
+  public static ConcurrencyLimiter forServer(String serverAddress)
+  {
+    return servers.computeIfAbsent(serverAddress, k -> new ConcurrencyLimiter());
+  }
+  
+  /**
+   * Gets the number of requests currently allowed in flight
+   * @return the current limit
+   */
+  public synchronized int getLimit()
+  {
+    return (int)limit;
+  }
+  
+  /**
+   * Gets the number of requests in flight
+   * @return requests acquired and not yet released
+   */
+  public synchronized int getInFlight()
+  {
+    return inFlight;
+  }
+  
+  /**
+   * Waits until a request may be sent
+   * @throws TracRpcException if interrupted while waiting
+   */
+  void acquire() throws TracRpcException
+  {
+    CompletableFuture<Void> permit = this.acquireAsync();
+    try {
+      permit.get();
+    } catch(InterruptedException e) {
+      if(!permit.cancel(false)) {
+        // granted just as we were interrupted
+        this.release(0, false);
+      }
+      Thread.currentThread().interrupt();
+      throw new TracRpcException("Interrupted waiting to send a request", e);
+    } catch(ExecutionException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+  
+  /**
+   * Gets a future completing once a request may be sent
+   * @return future for the permission to send
+   */
+  synchronized CompletableFuture<Void> acquireAsync()
+  {
+    if(inFlight < (int)limit && waiters.isEmpty()) {
+      ++inFlight;
+      return CompletableFuture.completedFuture(null);
+    }
+    CompletableFuture<Void> waiter = new CompletableFuture<Void>();
+    waiters.add(waiter);
+    return waiter;
+  }
+  
+  /**
+   * Records that a request has finished, adjusting the limit and letting
+   * waiting requests go
+   * @param nanos how long the request took
+   * @param dropped true if it failed with a transport error
+   */
+  void release(long nanos, boolean dropped)
+  {
+    CompletableFuture<Void> next;
+    synchronized(this) {
+      int used = inFlight--;
+      if(dropped) {
+        limit = Math.max(minLimit, limit * 0.9);
+      }
+      else if(nanos > 0) {
+        this.sample(nanos, used);
+      }
+      next = this.grant();
+    }
+    // complete outside the lock, as callers continue on this thread
+    while(next != null) {
+      if(!next.complete(null)) {
+        // cancelled by an interrupted caller
+        synchronized(this) {
+          --inFlight;
+        }
+      }
+      synchronized(this) {
+        next = this.grant();
+      }
+    }
+  }
+  
+  private CompletableFuture<Void> grant()
+  {
+    if(inFlight < (int)limit && !waiters.isEmpty()) {
+      ++inFlight;
+      return waiters.poll();
+    }
+    return null;
+  }
+  
+  private void sample(long nanos, int used)
+  {
+    longRtt = longRtt == 0 ? nanos : longRtt + (nanos - longRtt) * LONG_RTT_WEIGHT;
+    if(longRtt > nanos * 2) {
+      // recover quickly once a period of high latency has passed
+      longRtt = (longRtt + nanos) / 2;
+    }
+    double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / nanos));
+    double estimate = limit * gradient;
+    if(used * 2 >= limit) {
+      // only grow a limit that is being used
+      estimate += Math.sqrt(limit);
+    }
+    double next = limit * (1 - SMOOTHING) + estimate * SMOOTHING;
+    limit = Math.max(minLimit, Math.min(maxLimit, next));
+  }
+}
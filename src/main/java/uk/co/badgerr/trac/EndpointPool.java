@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.io.Closeable;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+
+/**
+ * Spreads calls over a primary Trac frontend and its read-only replicas.
+ * 
+ * Writes always go to the primary. Reads go to whichever of two randomly
+ * chosen healthy endpoints has fewer calls in flight, which keeps load
+ * even without the herding that always picking the least loaded causes.
+ * An endpoint is taken out of rotation when a call to it fails with a
+ * transport error, and put back once a health check reaches it again.
+ * @author James Femia <badgerr@gmail.com>
+ */
+final class EndpointPool implements Closeable {
+  /**
+   * One frontend serving the Trac RPC
+   */
+  static final class Endpoint {
+    private final XmlRpcClientConfigImpl config;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean healthy = true;
+    
+    Endpoint(XmlRpcClientConfigImpl config)
+    {
+      this.config = config;
+    }
+    
+    XmlRpcClientConfigImpl getConfig()
+    {
+      return config;
+    }
+    
+    int getInFlight()
+    {
+      return inFlight.get();
+    }
+    
+    boolean isHealthy()
+    {
+      return healthy;
+    }
+  }
+  
+  private final XmlRpcClient client;
+  private final Endpoint primary;
+  private final Endpoint[] all;
+  private volatile Endpoint[] healthy;
+  private final ScheduledExecutorService healthChecker;
+  
+  /**
+   * Creates the pool, starting a daemon thread for health checks
+   * @param client client used for health checks
+   * @param primaryConfig configuration for the primary
+   * @param replicaAddresses addresses of the replicas
+   * @param healthCheckInterval milliseconds between health checks, or 0
+   *        to disable them, leaving failed endpoints out of rotation
+   * @throws MalformedURLException if a replica address is not a URL
+   */
+  EndpointPool(XmlRpcClient client, XmlRpcClientConfigImpl primaryConfig, 
+          List<String> replicaAddresses, long healthCheckInterval) 
+          throws MalformedURLException
+  {
+    this.client = client;
+    this.primary = new Endpoint(primaryConfig);
+    List<Endpoint> endpoints = new ArrayList<Endpoint>();
+    endpoints.add(this.primary);
+    for(String address : replicaAddresses) {
+      XmlRpcClientConfigImpl config = primaryConfig.cloneMe();
+      config.setServerURL(new URL(address));
+      endpoints.add(new Endpoint(config));
+    }
+    this.all = endpoints.toArray(new Endpoint[endpoints.size()]);
+    this.healthy = this.all;
+    
+    if(healthCheckInterval > 0) {
+      this.healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "trac-rpc-health-check");
+        t.setDaemon(true);
+        return t;
+      });
+      this.healthChecker.scheduleWithFixedDelay(this::checkHealth, 
+              healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+    }
+    else {
+      this.healthChecker = null;
+    }
+  }
+  
+  /**
+   * Chooses an endpoint for a call and counts the call as in flight on it.
+   * Every call to acquire must be followed by a {@link release release}.
+   * @param read true if the call only reads, and may go to a replica
+   * @return the endpoint to send the call to
+   */
+  Endpoint acquire(boolean read)
+  {
+    Endpoint ret = read ? this.choose() : this.primary;
+    ret.inFlight.incrementAndGet();
+    return ret;
+  }
+  
+  private Endpoint choose()
+  {
+    Endpoint[] candidates = this.healthy;
+    if(candidates.length == 0) {
+      return this.primary;
+    }
+    if(candidates.length == 1) {
+      return candidates[0];
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int a = random.nextInt(candidates.length);
+    int b = random.nextInt(candidates.length - 1);
+    if(b >= a) {
+      ++b;
+    }
+    return candidates[a].inFlight.get() <= candidates[b].inFlight.get() 
+           ? candidates[a] : candidates[b];
+  }
+  
+  /**
+   * Records that a call has finished
+   * @param endpoint the endpoint the call was sent to
+   * @param failed true if the call failed with a transport error
+   */
+  void release(Endpoint endpoint, boolean failed)
+  {
+    endpoint.inFlight.decrementAndGet();
+    if(failed && endpoint.healthy) {
+      this.setHealthy(endpoint, false);
+    }
+  }
+  
+  /**
+   * Gets every endpoint, the primary first
+   */
+  Endpoint[] getEndpoints()
+  {
+    return all.clone();
+  }
+  
+  private synchronized void setHealthy(Endpoint endpoint, boolean healthy)
+  {
+    if(endpoint.healthy == healthy) {
+      return;
+    }
+    endpoint.healthy = healthy;
+    List<Endpoint> up = new ArrayList<Endpoint>();
+    for(Endpoint e : all) {
+      if(e.healthy) {
+        up.add(e);
+      }
+    }
+    this.healthy = up.toArray(new Endpoint[up.size()]);
+  }
+  
+  /**
+   * Probes every endpoint, so that failed ones return to rotation and
+   * unreachable ones leave it before calls are sent to them
+   */
+  void checkHealth()
+  {
+    for(Endpoint endpoint : all) {
+      boolean up;
+      try {
+        this.client.execute(endpoint.config, "system.getAPIVersion", new Object[0]);
+        up = true;
+      } catch(XmlRpcException e) {
+        // a fault still means the endpoint is answering
+        up = TracRpc.translate(e).isFault();
+      } catch(RuntimeException e) {
+        up = false;
+      }
+      this.setHealthy(endpoint, up);
+    }
+  }
+  
+  /**
+   * Stops health checks
+   */
+  @Override
+  public void close()
+  {
+    if(this.healthChecker != null) {
+      this.healthChecker.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,401 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientException;
+import org.apache.xmlrpc.client.XmlRpcHttpClientConfig;
+import org.apache.xmlrpc.client.XmlRpcHttpTransport;
+import org.apache.xmlrpc.client.XmlRpcHttpTransportException;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.client.XmlRpcTransportFactory;
+import org.apache.xmlrpc.common.XmlRpcStreamRequestConfig;
+import org.xml.sax.SAXException;
+
+/**
+ * XML-RPC transport built on java.net.http.HttpClient. A single shared
+ * HttpClient multiplexes requests over a few HTTP/2 connections (or a pool
+ * of HTTP/1.1 keep-alive connections when the server doesn't speak HTTP/2),
+ * and {@link sendRequestAsync(XmlRpcRequest) sendRequestAsync} performs a
+ * call without holding a thread while waiting for the server. Given an
+ * {@link RpcCodec RpcCodec}, requests and responses are in its format
+ * instead of XML-RPC. Given {@link ConnectionLimits ConnectionLimits},
+ * synchronous requests wait for a free connection rather than opening more.
+ * @author James Femia <badgerr@gmail.com>
+ */
+class HttpClientTransport extends XmlRpcHttpTransport {
+  private static final String USER_AGENT = 
+          XmlRpcHttpTransport.USER_AGENT + " (java.net.http)";
+  
+  private final HttpClient httpClient;
+  private final Duration replyTimeout;
+  private final RpcCodec codec;
+  private String method;
+  private HttpRequest.Builder requestBuilder;
+  private HttpResponse<InputStream> response;
+  private final ConnectionLimits limits;
+  private Semaphore heldConnection = null;
+  
+  /**
+   * Caps the connections in use at once, per host and in total, by holding
+   * a permit for each synchronous request from sending it until its
+   * response has been read. HttpClient keeps idle HTTP/1.1 connections
+   * alive for reuse, but opens as many as there are requests in progress,
+   * so with these limits it holds at most as many as there are permits.
+   */
+  static final class ConnectionLimits {
+    private final int perHost;
+    private final Semaphore total;
+    private final ConcurrentHashMap<String, Semaphore> hosts = 
+            new ConcurrentHashMap<String, Semaphore>();
+    private volatile boolean closed = false;
+    
+    /**
+     * @param perHost most connections in use to a single host
+     * @param total most connections in use across all hosts
+     */
+    ConnectionLimits(int perHost, int total)
+    {
+      this.perHost = perHost;
+      this.total = new Semaphore(total);
+    }
+    
+    /**
+     * Waits for a connection to the server
+     * @param uri the server address
+     * @return the host's permit, to pass to {@link release release}
+     * @throws XmlRpcClientException if interrupted or closed
+     */
+    Semaphore acquire(URI uri) throws XmlRpcClientException
+    {
+      if(closed) {
+        throw new XmlRpcClientException("Transport has been closed", null);
+      }
+      Semaphore host = hosts.computeIfAbsent(uri.getHost() + ":" + uri.getPort(), 
+                                             k -> new Semaphore(perHost));
+      try {
+        host.acquire();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new XmlRpcClientException("Interrupted waiting for a connection", e);
+      }
+      try {
+        total.acquire();
+      } catch(InterruptedException e) {
+        host.release();
+        Thread.currentThread().interrupt();
+        throw new XmlRpcClientException("Interrupted waiting for a connection", e);
+      }
+      return host;
+    }
+    
+    void release(Semaphore host)
+    {
+      total.release();
+      host.release();
+    }
+    
+    /**
+     * Fails any later requests
+     */
+    void close()
+    {
+      closed = true;
+    }
+  }
+  
+  /**
+   * Creates HttpClientTransport instances sharing one HttpClient
+   */
+  static class Factory implements XmlRpcTransportFactory {
+    private final XmlRpcClient client;
+    private final HttpClient httpClient;
+    private final Duration replyTimeout;
+    private final RpcCodec codec;
+    private final ConnectionLimits limits;
+    
+    /**
+     * @param client the XML-RPC client the transports belong to
+     * @param httpClient the shared HTTP client
+     * @param replyTimeout reply timeout in milliseconds, or 0 for none
+     */
+    Factory(XmlRpcClient client, HttpClient httpClient, int replyTimeout)
+    {
+      this(client, httpClient, replyTimeout, null, null);
+    }
+    
+    /**
+     * @param client the XML-RPC client the transports belong to
+     * @param httpClient the shared HTTP client
+     * @param replyTimeout reply timeout in milliseconds, or 0 for none
+     * @param codec wire format, or null for XML-RPC
+     * @param limits connection limits for synchronous requests, or null for
+     *        none
+     */
+    Factory(XmlRpcClient client, HttpClient httpClient, int replyTimeout, 
+            RpcCodec codec, ConnectionLimits limits)
+    {
+      this.client = client;
+      this.httpClient = httpClient;
+      this.replyTimeout = replyTimeout > 0 ? Duration.ofMillis(replyTimeout) : null;
+      this.codec = codec;
+      this.limits = limits;
+    }
+    
+    @Override
+    public XmlRpcTransport getTransport() {
+      return newTransport();
+    }
+    
+    /**
+     * @return a new transport for a single request
+     */
+    HttpClientTransport newTransport() {
+      return new HttpClientTransport(client, httpClient, replyTimeout, codec, 
+                                     limits);
+    }
+  }
+  
+  HttpClientTransport(XmlRpcClient client, HttpClient httpClient, 
+          Duration replyTimeout, RpcCodec codec, ConnectionLimits limits)
+  {
+    super(client, USER_AGENT);
+    this.httpClient = httpClient;
+    this.replyTimeout = replyTimeout;
+    this.codec = codec;
+    this.limits = limits;
+  }
+  
+  @Override
+  public Object sendRequest(XmlRpcRequest request) throws XmlRpcException
+  {
+    startRequest(request);
+    return super.sendRequest(request);
+  }
+  
+  /**
+   * Sends a request without blocking. Serialization happens on the calling
+   * thread; the response is parsed on the HttpClient's executor once it has
+   * fully arrived.
+   * @param request the request to send
+   * @return future for the call result, completing exceptionally with an
+   *         XmlRpcException if the call fails
+   */
+  CompletableFuture<Object> sendRequestAsync(XmlRpcRequest request)
+  {
+    final XmlRpcStreamRequestConfig config = 
+            (XmlRpcStreamRequestConfig)request.getConfig();
+    HttpRequest httpRequest;
+    try {
+      startRequest(request);
+      httpRequest = buildRequest(newReqWriter(request));
+    } catch(XmlRpcException e) {
+      return CompletableFuture.failedFuture(e);
+    } catch(IOException | SAXException e) {
+      return CompletableFuture.failedFuture(
+              new XmlRpcClientException("Failed to write request: " + e.getMessage(), e));
+    }
+    
+    final PayloadCounter counter = PayloadCounter.current();
+    return httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofByteArray())
+            .thenApply(resp -> {
+              if(counter != null) {
+                counter.addResponseBytes(resp.body().length);
+              }
+              try {
+                checkStatus(resp);
+                InputStream in = new ByteArrayInputStream(resp.body());
+                if(isGzip(resp)) {
+                  in = new GZIPInputStream(in);
+                }
+                return readResponse(config, in);
+              } catch(XmlRpcException e) {
+                throw new CompletionException(e);
+              } catch(IOException e) {
+                throw new CompletionException(new XmlRpcClientException(
+                        "Failed to read response: " + e.getMessage(), e));
+              }
+            });
+  }
+  
+  /**
+   * Starts building the HTTP request for an XML-RPC request, and lets the
+   * base class add its headers (user agent, content type, credentials...)
+   */
+  private void startRequest(XmlRpcRequest request) 
+          throws XmlRpcClientException
+  {
+    XmlRpcHttpClientConfig config = (XmlRpcHttpClientConfig)request.getConfig();
+    this.method = request.getMethodName();
+    try {
+      this.requestBuilder = HttpRequest.newBuilder(config.getServerURL().toURI());
+    } catch(URISyntaxException e) {
+      throw new XmlRpcClientException("Invalid server URL: " + e.getMessage(), e);
+    }
+    if(this.replyTimeout != null) {
+      this.requestBuilder.timeout(this.replyTimeout);
+    }
+    initHttpHeaders(request);
+  }
+  
+  /**
+   * Serializes the request body and completes the HTTP request
+   */
+  private HttpRequest buildRequest(ReqWriter writer) 
+          throws XmlRpcException, IOException, SAXException
+  {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    writer.write(body);
+    if(this.codec != null && PayloadCounter.current() != null) {
+      // XML-RPC requests are counted by the client's XmlWriterFactory
+      PayloadCounter.current().addRequestBytes(body.size());
+    }
+    return requestBuilder
+            .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()))
+            .build();
+  }
+  
+  private static void checkStatus(HttpResponse<?> resp) 
+          throws XmlRpcHttpTransportException
+  {
+    if(resp.statusCode() < 200 || resp.statusCode() > 299) {
+      throw new XmlRpcHttpTransportException(resp.statusCode(), 
+              "HTTP status " + resp.statusCode());
+    }
+  }
+  
+  private static boolean isGzip(HttpResponse<?> resp)
+  {
+    return resp.headers().firstValue("Content-Encoding")
+            .map(v -> v.equalsIgnoreCase("gzip")).orElse(false);
+  }
+
+  @Override
+  protected void setRequestHeader(String header, String value)
+  {
+    if(this.codec != null && header.equalsIgnoreCase("Content-Type")) {
+      value = this.codec.getContentType();
+    }
+    this.requestBuilder.setHeader(header, value);
+  }
+  
+  @Override
+  protected ReqWriter newReqWriter(final XmlRpcRequest request) 
+          throws XmlRpcException, IOException, SAXException
+  {
+    if(this.codec == null) {
+      return super.newReqWriter(request);
+    }
+    final Object[] params = new Object[request.getParameterCount()];
+    for(int i = 0; i < params.length; ++i) {
+      params[i] = request.getParameter(i);
+    }
+    return out -> this.codec.writeRequest(out, request.getMethodName(), params);
+  }
+  
+  @Override
+  protected Object readResponse(XmlRpcStreamRequestConfig config, 
+          InputStream in) throws XmlRpcException
+  {
+    if(this.codec == null) {
+      return super.readResponse(config, in);
+    }
+    try {
+      return this.codec.readResponse(in, this.method);
+    } catch(IOException e) {
+      throw new XmlRpcClientException("Failed to read response: " + e.getMessage(), e);
+    }
+  }
+
+  @Override
+  protected void setContentLength(int length)
+  {
+    // HttpClient sets Content-Length itself and rejects it as a header
+  }
+
+  @Override
+  protected void writeRequest(ReqWriter writer) 
+          throws XmlRpcException, IOException, SAXException
+  {
+    HttpRequest httpRequest = buildRequest(writer);
+    if(this.limits != null) {
+      // released by close, which the base class calls however the call ends
+      this.heldConnection = this.limits.acquire(httpRequest.uri());
+    }
+    try {
+      this.response = httpClient.send(httpRequest, 
+              HttpResponse.BodyHandlers.ofInputStream());
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new XmlRpcClientException("Interrupted waiting for response", e);
+    }
+    checkStatus(this.response);
+  }
+
+  @Override
+  protected InputStream getInputStream() throws XmlRpcException
+  {
+    return PayloadCounter.countResponse(this.response.body());
+  }
+
+  @Override
+  protected boolean isResponseGzipCompressed(XmlRpcStreamRequestConfig config)
+  {
+    return isGzip(this.response);
+  }
+
+  @Override
+  protected void close() throws XmlRpcClientException
+  {
+    try {
+      if(this.response != null) {
+        this.response.body().close();
+      }
+    } catch(IOException e) {
+      throw new XmlRpcClientException("Failed to close response: " + e.getMessage(), e);
+    } finally {
+      if(this.heldConnection != null) {
+        this.limits.release(this.heldConnection);
+        this.heldConnection = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,363 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * Codec for the JSON-RPC protocol the Trac RPC plugin serves alongside
+ * XML-RPC, reading and writing with Jackson's streaming parser and
+ * generator so no intermediate tree is built.
+ * 
+ * Trac marks dates and binary data with a class hint, e.g.
+ * {"__jsonclass__": ["datetime", "2011-02-03T04:05:06"]}, with dates in
+ * UTC. system.multicall takes and returns JSON-RPC request and response
+ * objects rather than XML-RPC's methodName/params structs and one element
+ * arrays, so those are converted both ways.
+ * @author James Femia <badgerr@gmail.com>
+ */
+final class JsonRpcCodec implements RpcCodec {
+  private static final JsonFactory factory = new JsonFactory();
+  private static final String CLASS_HINT = "__jsonclass__";
+  private static final DateTimeFormatter DATE_FORMAT = 
+          DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+  
+  @Override
+  public String getContentType()
+  {
+    return "application/json";
+  }
+  
+  @Override
+  public void writeRequest(OutputStream out, String method, Object[] params) 
+          throws IOException
+  {
+    try(JsonGenerator gen = factory.createGenerator(out)) {
+      gen.writeStartObject();
+      gen.writeStringField("method", method);
+      gen.writeFieldName("params");
+      if(method.equals("system.multicall")) {
+        writeMulticallParams(gen, (Object[])params[0]);
+      }
+      else {
+        writeValue(gen, params);
+      }
+      gen.writeNumberField("id", 1);
+      gen.writeEndObject();
+    }
+  }
+  
+  /**
+   * Writes XML-RPC style multicall structs as JSON-RPC requests
+   */
+  private static void writeMulticallParams(JsonGenerator gen, Object[] calls) 
+          throws IOException
+  {
+    gen.writeStartArray();
+    for(int i = 0; i < calls.length; ++i) {
+      Map<?, ?> call = (Map<?, ?>)calls[i];
+      gen.writeStartObject();
+      gen.writeStringField("method", (String)call.get("methodName"));
+      gen.writeFieldName("params");
+      writeValue(gen, call.get("params"));
+      gen.writeNumberField("id", i);
+      gen.writeEndObject();
+    }
+    gen.writeEndArray();
+  }
+  
+  @Override
+  public Object readResponse(InputStream in, String method) 
+          throws XmlRpcException, IOException
+  {
+    try(JsonParser parser = factory.createParser(in)) {
+      if(method.equals("system.multicall")) {
+        JsonToken token = parser.nextToken();
+        if(token == JsonToken.START_ARRAY) {
+          return readMulticallResults(parser);
+        }
+        // a fault for the whole batch
+        expect(token, JsonToken.START_OBJECT);
+        return readEnvelope(parser, true);
+      }
+      expect(parser.nextToken(), JsonToken.START_OBJECT);
+      return readEnvelope(parser, false);
+    }
+  }
+  
+  /**
+   * Reads the rest of a response object, after its opening brace
+   * @param multicall true if the result is a list of response objects
+   */
+  private static Object readEnvelope(JsonParser parser, boolean multicall) 
+          throws XmlRpcException, IOException
+  {
+    Object result = null;
+    XmlRpcException error = null;
+    while(parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.currentName();
+      JsonToken token = parser.nextToken();
+      if(field.equals("result")) {
+        result = multicall && token == JsonToken.START_ARRAY 
+                ? readMulticallResults(parser) : readValue(parser);
+      }
+      else if(field.equals("error") && token != JsonToken.VALUE_NULL) {
+        error = readError(parser);
+      }
+      else {
+        parser.skipChildren();
+      }
+    }
+    if(error != null) {
+      throw error;
+    }
+    return result;
+  }
+  
+  /**
+   * Reads a JSON-RPC error object, after its opening brace
+   */
+  private static XmlRpcException readError(JsonParser parser) throws IOException
+  {
+    Object error = readValue(parser);
+    if(!(error instanceof Map)) {
+      return new XmlRpcException(String.valueOf(error));
+    }
+    Map<?, ?> map = (Map<?, ?>)error;
+    Object code = map.get("code");
+    return new XmlRpcException(code instanceof Number ? ((Number)code).intValue() : 0, 
+                               String.valueOf(map.get("message")));
+  }
+  
+  /**
+   * Reads a list of JSON-RPC response objects, after its opening bracket,
+   * into XML-RPC style multicall results: a one element array for a
+   * result, or a faultCode/faultString struct for an error
+   */
+  private static Object[] readMulticallResults(JsonParser parser) 
+          throws IOException
+  {
+    List<Object> ret = new ArrayList<Object>();
+    while(parser.nextToken() == JsonToken.START_OBJECT) {
+      try {
+        ret.add(new Object[]{ readEnvelope(parser, false) });
+      } catch(XmlRpcException e) {
+        Map<String, Object> fault = new HashMap<String, Object>();
+        fault.put("faultCode", e.code);
+        fault.put("faultString", e.getMessage());
+        ret.add(fault);
+      }
+    }
+    return ret.toArray();
+  }
+  
+  /**
+   * Writes a value in the form XML-RPC calls take, with the class hints
+   * Trac expects
+   * @param gen where to write
+   * @param value String, Number, Boolean, Date, byte[], Map, array or
+   *        Collection, or null
+   * @throws IOException if writing fails or the value has no JSON form
+   */
+  static void writeValue(JsonGenerator gen, Object value) throws IOException
+  {
+    if(value == null) {
+      gen.writeNull();
+    }
+    else if(value instanceof String) {
+      gen.writeString((String)value);
+    }
+    else if(value instanceof Integer || value instanceof Long 
+            || value instanceof Short || value instanceof Byte) {
+      gen.writeNumber(((Number)value).longValue());
+    }
+    else if(value instanceof Number) {
+      gen.writeNumber(((Number)value).doubleValue());
+    }
+    else if(value instanceof Boolean) {
+      gen.writeBoolean((Boolean)value);
+    }
+    else if(value instanceof Date) {
+      writeClassHint(gen, "datetime", DATE_FORMAT.format(LocalDateTime.ofInstant(
+              ((Date)value).toInstant(), ZoneOffset.UTC)));
+    }
+    else if(value instanceof byte[]) {
+      writeClassHint(gen, "binary", 
+                     Base64.getEncoder().encodeToString((byte[])value));
+    }
+    else if(value instanceof Map) {
+      gen.writeStartObject();
+      for(Map.Entry<?, ?> e : ((Map<?, ?>)value).entrySet()) {
+        gen.writeFieldName(String.valueOf(e.getKey()));
+        writeValue(gen, e.getValue());
+      }
+      gen.writeEndObject();
+    }
+    else if(value instanceof Object[]) {
+      gen.writeStartArray();
+      for(Object o : (Object[])value) {
+        writeValue(gen, o);
+      }
+      gen.writeEndArray();
+    }
+    else if(value instanceof Collection) {
+      gen.writeStartArray();
+      for(Object o : (Collection<?>)value) {
+        writeValue(gen, o);
+      }
+      gen.writeEndArray();
+    }
+    else {
+      throw new IOException("Can't write " + value.getClass().getName() + " as JSON");
+    }
+  }
+  
+  private static void writeClassHint(JsonGenerator gen, String type, String value) 
+          throws IOException
+  {
+    gen.writeStartObject();
+    gen.writeArrayFieldStart(CLASS_HINT);
+    gen.writeString(type);
+    gen.writeString(value);
+    gen.writeEndArray();
+    gen.writeEndObject();
+  }
+  
+  /**
+   * Reads the value starting at the parser's current token into the form
+   * the XML-RPC library would produce: Map, Object[], Integer (or Long if
+   * too large), Double, Boolean, String, Date, byte[] or null
+   * @param parser parser positioned on the value's first token
+   * @return the value
+   * @throws IOException if the JSON is malformed
+   */
+  static Object readValue(JsonParser parser) throws IOException
+  {
+    switch(parser.currentToken()) {
+      case VALUE_STRING:
+        return parser.getText();
+      case VALUE_NUMBER_INT:
+        if(parser.getNumberType() == JsonParser.NumberType.INT) {
+          return parser.getIntValue();
+        }
+        return parser.getLongValue();
+      case VALUE_NUMBER_FLOAT:
+        return parser.getDoubleValue();
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_NULL:
+        return null;
+      case START_ARRAY:
+        List<Object> list = new ArrayList<Object>();
+        while(parser.nextToken() != JsonToken.END_ARRAY) {
+          list.add(readValue(parser));
+        }
+        return list.toArray();
+      case START_OBJECT:
+        return readObject(parser);
+      default:
+        throw new IOException("Unexpected " + parser.currentToken() + " in JSON");
+    }
+  }
+  
+  private static Object readObject(JsonParser parser) throws IOException
+  {
+    Map<String, Object> map = new HashMap<String, Object>();
+    while(parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.currentName();
+      parser.nextToken();
+      if(field.equals(CLASS_HINT) && map.isEmpty()) {
+        Object hinted = readClassHint(parser);
+        expect(parser.nextToken(), JsonToken.END_OBJECT);
+        return hinted;
+      }
+      map.put(field, readValue(parser));
+    }
+    return map;
+  }
+  
+  private static Object readClassHint(JsonParser parser) throws IOException
+  {
+    Object hint = readValue(parser);
+    if(!(hint instanceof Object[]) || ((Object[])hint).length != 2) {
+      throw new IOException("Malformed " + CLASS_HINT);
+    }
+    String type = String.valueOf(((Object[])hint)[0]);
+    String value = String.valueOf(((Object[])hint)[1]);
+    if(type.equals("datetime")) {
+      return parseDate(value);
+    }
+    if(type.equals("binary")) {
+      return Base64.getMimeDecoder().decode(value);
+    }
+    throw new IOException("Unknown " + CLASS_HINT + " " + type);
+  }
+  
+  /**
+   * Parses an ISO 8601 date and time, taken as UTC unless it has an offset
+   */
+  static Date parseDate(String value) throws IOException
+  {
+    try {
+      TemporalAccessor parsed = DateTimeFormatter.ISO_DATE_TIME.parseBest(
+              value, OffsetDateTime::from, LocalDateTime::from);
+      if(parsed instanceof OffsetDateTime) {
+        return Date.from(((OffsetDateTime)parsed).toInstant());
+      }
+      return Date.from(((LocalDateTime)parsed).toInstant(ZoneOffset.UTC));
+    } catch(DateTimeParseException e) {
+      throw new IOException("Malformed datetime " + value, e);
+    }
+  }
+  
+  private static void expect(JsonToken token, JsonToken expected) 
+          throws IOException
+  {
+    if(token != expected) {
+      throw new IOException("Expected " + expected + " in JSON but found " + token);
+    }
+  }
+}
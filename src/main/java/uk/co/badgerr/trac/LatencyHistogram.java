@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values with about 1.5% relative
+ * precision, in the style of HdrHistogram: values below 128 get a bucket
+ * each, and every power-of-two range above that is split into 64 buckets.
+ * Values up to 2^40 are kept distinct; larger ones share the top bucket.
+ * @author James Femia <badgerr@gmail.com>
+ */
+final class LatencyHistogram {
+  private static final int SUB_BUCKETS = 64;
+  private static final int MAX_SHIFT = 34;
+  private static final long MAX_VALUE = (1L << (MAX_SHIFT + 7)) - 1;
+  
+  private final AtomicLongArray counts = 
+          new AtomicLongArray(2 * SUB_BUCKETS + MAX_SHIFT * SUB_BUCKETS);
+  
+  /**
+   * Records one value
+   * @param value the value, negative values count as 0
+   */
+  void record(long value)
+  {
+    counts.incrementAndGet(index(Math.max(0, Math.min(value, MAX_VALUE))));
+  }
+  
+  static int index(long value)
+  {
+    if(value < 2 * SUB_BUCKETS) {
+      return (int)value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+    return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS 
+           + (int)(value >>> shift) - SUB_BUCKETS;
+  }
+  
+  /**
+   * The largest value that lands in a bucket
+   */
+  static long highestValue(int index)
+  {
+    if(index < 2 * SUB_BUCKETS) {
+      return index;
+    }
+    int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+    long sub = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+  
+  /**
+   * Halves every count, so values recorded before carry half the weight of
+   * those recorded after
+   */
+  void decay()
+  {
+    for(int i = 0; i < counts.length(); ++i) {
+      counts.updateAndGet(i, c -> c >>> 1);
+    }
+  }
+  
+  /**
+   * Gets a copy of the bucket counts, for a consistent set of percentiles
+   * @return counts per bucket
+   */
+  long[] snapshot()
+  {
+    long[] ret = new long[counts.length()];
+    for(int i = 0; i < ret.length; ++i) {
+      ret[i] = counts.get(i);
+    }
+    return ret;
+  }
+  
+  /**
+   * Gets the value at a percentile of a snapshot
+   * @param snapshot counts from {@link snapshot() snapshot}
+   * @param percentile between 0 and 100
+   * @return the highest value equivalent to the percentile, or 0 if
+   *         nothing has been recorded
+   */
+  static long valueAt(long[] snapshot, double percentile)
+  {
+    long total = 0;
+    for(long c : snapshot) {
+      total += c;
+    }
+    if(total == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long)Math.ceil(total * percentile / 100.0));
+    long seen = 0;
+    for(int i = 0; i < snapshot.length; ++i) {
+      seen += snapshot[i];
+      if(seen >= target) {
+        return highestValue(i);
+      }
+    }
+    return highestValue(snapshot.length - 1);
+  }
+}
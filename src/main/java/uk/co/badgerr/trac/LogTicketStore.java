@@ -0,0 +1,622 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Persists tickets in a directory as an append-only log of ticket snapshots,
+ * plus an index of where each ticket's latest snapshot is. Reads go through
+ * memory-mapped views of the log, so a lookup costs a map access and a
+ * decode rather than any I/O.
+ * 
+ * Each {@link put(Ticket) put} appends a record; {@link flush() flush} forces
+ * the log to disk and rewrites the index. After a crash, records appended
+ * since the last index write are replayed from the log, and a torn record at
+ * its end is discarded. An index whose offsets don't point at records for
+ * the tickets it names is ignored, along with its high-water mark, and the
+ * whole log replayed instead.
+ * Superseded records stay in the log until {@link compact() compact} is
+ * called.
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class LogTicketStore implements TicketStore, Closeable {
+  private static final String LOG_FILE = "tickets.log";
+  private static final String INDEX_FILE = "tickets.idx";
+  private static final int INDEX_MAGIC = 0x54524958;
+  private static final int INDEX_VERSION = 1;
+  /** Record header: id, payload length (-1 for removal), CRC32 of payload */
+  private static final int HEADER_SIZE = 12;
+  private static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+  
+  private static final byte TYPE_NULL = 0;
+  private static final byte TYPE_STRING = 1;
+  private static final byte TYPE_DATE = 2;
+  private static final byte TYPE_INTEGER = 3;
+  private static final byte TYPE_BOOLEAN = 4;
+  private static final byte TYPE_DOUBLE = 5;
+  
+  private final File directory;
+  private final int segmentSize;
+  private FileChannel log;
+  private long logLength;
+  private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+  /** Log offset of each ticket's latest record, indexed by id; -1 if none */
+  private long[] offsets = new long[1024];
+  private int size = 0;
+  private Date highWaterMark = null;
+  
+  /**
+   * Open a store in a directory, creating it if necessary
+   * @param directory where to keep the log and index
+   * @throws IOException 
+   */
+  public LogTicketStore(File directory) throws IOException
+  {
+    this(directory, DEFAULT_SEGMENT_SIZE);
+  }
+  
+  /**
+   * Open a store with a specific mapping segment size. Records never span
+   * segments, so a segment must be larger than the biggest ticket.
+   * @param directory where to keep the log and index
+   * @param segmentSize bytes per memory-mapped segment
+   * @throws IOException 
+   */
+  LogTicketStore(File directory, int segmentSize) throws IOException
+  {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    Arrays.fill(offsets, -1);
+    if(!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Can't create " + directory);
+    }
+    
+    this.log = FileChannel.open(new File(directory, LOG_FILE).toPath(), 
+            StandardOpenOption.CREATE, StandardOpenOption.READ, 
+            StandardOpenOption.WRITE);
+    this.logLength = this.log.size();
+    long indexed = this.readIndex();
+    this.segments.clear();
+    this.replay(indexed);
+  }
+  
+  @Override
+  public synchronized Ticket get(Integer id)
+  {
+    if(id == null || id < 0 || id >= offsets.length || offsets[id] < 0) {
+      return null;
+    }
+    ByteBuffer record = this.record(offsets[id]);
+    if(record.getInt(record.position() - HEADER_SIZE) != id) {
+      throw new IllegalStateException("Ticket log doesn't match its index");
+    }
+    Ticket t = new Ticket();
+    t.setId(id);
+    t.loadAttribs(decode(record));
+    return t;
+  }
+
+  @Override
+  public synchronized void put(Ticket t) throws IOException
+  {
+    if(t.getId() == null || t.getId() < 0) {
+      throw new IllegalArgumentException("Can't store a ticket without an id");
+    }
+    int id = t.getId();
+    byte[] payload = encode(t.attribs);
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    
+    long offset = this.append(id, payload.length, (int)crc.getValue(), payload);
+    if(this.setOffset(id, offset)) {
+      ++size;
+    }
+  }
+
+  @Override
+  public synchronized void remove(Integer id) throws IOException
+  {
+    if(id == null || id < 0 || id >= offsets.length || offsets[id] < 0) {
+      return;
+    }
+    this.append(id, -1, 0, new byte[0]);
+    offsets[id] = -1;
+    --size;
+  }
+
+  @Override
+  public synchronized Collection<Integer> getIds()
+  {
+    List<Integer> ids = new ArrayList<Integer>(size);
+    for(int id = 0; id < offsets.length; ++id) {
+      if(offsets[id] >= 0) {
+        ids.add(id);
+      }
+    }
+    return ids;
+  }
+
+  @Override
+  public synchronized int size()
+  {
+    return size;
+  }
+
+  @Override
+  public synchronized Date getHighWaterMark()
+  {
+    return highWaterMark;
+  }
+
+  @Override
+  public synchronized void setHighWaterMark(Date highWaterMark)
+  {
+    this.highWaterMark = highWaterMark;
+  }
+
+  /**
+   * Forces the log to disk, then rewrites the index and high-water mark
+   * @throws IOException 
+   */
+  @Override
+  public synchronized void flush() throws IOException
+  {
+    log.force(false);
+    this.writeIndex();
+  }
+  
+  /**
+   * Rewrites the log keeping only each ticket's latest record. The index is
+   * removed before the new log replaces the old one, so a crash part way
+   * through leaves whichever log is in place to be replayed in full.
+   * @throws IOException 
+   */
+  public synchronized void compact() throws IOException
+  {
+    File compacted = new File(directory, LOG_FILE + ".compact");
+    FileChannel old = this.log;
+    long[] oldOffsets = this.offsets;
+    long oldLength = this.logLength;
+    
+    this.log = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, 
+            StandardOpenOption.WRITE);
+    this.logLength = 0;
+    this.offsets = new long[oldOffsets.length];
+    Arrays.fill(this.offsets, -1);
+    this.segments.clear();
+    try {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      for(int id = 0; id < oldOffsets.length; ++id) {
+        if(oldOffsets[id] < 0) {
+          continue;
+        }
+        header.clear();
+        readFully(old, header, oldOffsets[id] - HEADER_SIZE);
+        ByteBuffer payload = ByteBuffer.allocate(header.getInt(4));
+        readFully(old, payload, oldOffsets[id]);
+        this.offsets[id] = this.append(id, payload.capacity(), 
+                                       header.getInt(8), payload.array());
+      }
+      this.log.force(false);
+    } catch(IOException e) {
+      this.log.close();
+      this.log = old;
+      this.logLength = oldLength;
+      this.offsets = oldOffsets;
+      this.segments.clear();
+      throw e;
+    }
+    
+    old.close();
+    Files.deleteIfExists(new File(directory, INDEX_FILE).toPath());
+    Files.move(compacted.toPath(), new File(directory, LOG_FILE).toPath(), 
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    this.writeIndex();
+  }
+
+  /**
+   * Flushes and closes the store
+   * @throws IOException 
+   */
+  @Override
+  public synchronized void close() throws IOException
+  {
+    if(log.isOpen()) {
+      this.flush();
+      log.close();
+    }
+    segments.clear();
+  }
+  
+  /**
+   * Appends a record, padding to the next segment if it wouldn't fit in the
+   * current one
+   * @return the log offset of the record's payload
+   */
+  private long append(int id, int length, int crc, byte[] payload) 
+          throws IOException
+  {
+    int recordSize = HEADER_SIZE + payload.length;
+    if(recordSize > segmentSize) {
+      throw new IOException("Ticket " + id + " is too large to store");
+    }
+    long remaining = segmentSize - (logLength % segmentSize);
+    if(recordSize > remaining) {
+      this.writeFully(ByteBuffer.allocate((int)remaining), logLength);
+      logLength += remaining;
+    }
+    
+    ByteBuffer buf = ByteBuffer.allocate(recordSize);
+    buf.putInt(id).putInt(length).putInt(crc).put(payload).flip();
+    this.writeFully(buf, logLength);
+    long offset = logLength + HEADER_SIZE;
+    logLength += recordSize;
+    return offset;
+  }
+  
+  private void writeFully(ByteBuffer buf, long position) throws IOException
+  {
+    while(buf.hasRemaining()) {
+      position += log.write(buf, position);
+    }
+  }
+  
+  /**
+   * Records a ticket's latest offset
+   * @return true if the ticket wasn't stored before
+   */
+  private boolean setOffset(int id, long offset)
+  {
+    if(id >= offsets.length) {
+      int oldLength = offsets.length;
+      offsets = Arrays.copyOf(offsets, Math.max(id + 1, oldLength * 2));
+      Arrays.fill(offsets, oldLength, offsets.length, -1);
+    }
+    boolean added = offsets[id] < 0;
+    offsets[id] = offset;
+    return added;
+  }
+  
+  /**
+   * Gets a view of a record's payload, mapping or remapping the containing
+   * segment if it doesn't cover the whole record yet
+   * @param offset log offset of the payload
+   */
+  private ByteBuffer record(long offset)
+  {
+    int segment = (int)(offset / segmentSize);
+    int position = (int)(offset % segmentSize);
+    while(segments.size() <= segment) {
+      segments.add(null);
+    }
+    MappedByteBuffer mapped = segments.get(segment);
+    if(mapped == null || position >= mapped.capacity() || 
+            position + mapped.getInt(position - HEADER_SIZE + 4) > mapped.capacity()) {
+      long start = (long)segment * segmentSize;
+      try {
+        mapped = log.map(FileChannel.MapMode.READ_ONLY, start, 
+                         Math.min(segmentSize, logLength - start));
+      } catch(IOException e) {
+        throw new IllegalStateException("Can't map ticket log", e);
+      }
+      segments.set(segment, mapped);
+    }
+    
+    ByteBuffer buf = mapped.duplicate();
+    buf.position(position);
+    return buf;
+  }
+  
+  /**
+   * Checks that an indexed offset holds a record for the ticket the index
+   * says it does, lying wholly within one segment and the indexed part of
+   * the log
+   */
+  private boolean recordMatches(int id, long offset, long indexed)
+  {
+    if(id < 0 || offset < HEADER_SIZE || offset >= indexed 
+            || offset % segmentSize < HEADER_SIZE) {
+      return false;
+    }
+    ByteBuffer record = this.record(offset);
+    int header = record.position() - HEADER_SIZE;
+    int length = record.getInt(header + 4);
+    return record.getInt(header) == id && length >= 0 
+            && offset + length <= indexed
+            && offset % segmentSize + length <= segmentSize;
+  }
+  
+  /**
+   * Rebuilds the index from log records starting at an offset, truncating
+   * any torn record at the end of the log
+   */
+  private void replay(long position) throws IOException
+  {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    while(position < logLength) {
+      long remaining = segmentSize - (position % segmentSize);
+      if(remaining < HEADER_SIZE) {
+        position += remaining;
+        continue;
+      }
+      header.clear();
+      if(readFully(log, header, position) < HEADER_SIZE) {
+        break;
+      }
+      int id = header.getInt(0);
+      int length = header.getInt(4);
+      int crc = header.getInt(8);
+      if(id == 0 && length == 0 && crc == 0) {
+        // padding up to the next segment
+        position += remaining;
+        continue;
+      }
+      if(length == -1) {
+        if(id >= 0 && id < offsets.length && offsets[id] >= 0) {
+          offsets[id] = -1;
+          --size;
+        }
+        position += HEADER_SIZE;
+        continue;
+      }
+      if(id < 0 || length < 0 || position + HEADER_SIZE + length > logLength) {
+        break;
+      }
+      ByteBuffer payload = ByteBuffer.allocate(length);
+      readFully(log, payload, position + HEADER_SIZE);
+      CRC32 check = new CRC32();
+      check.update(payload.array());
+      if((int)check.getValue() != crc) {
+        break;
+      }
+      if(this.setOffset(id, position + HEADER_SIZE)) {
+        ++size;
+      }
+      position += HEADER_SIZE + length;
+    }
+    
+    if(position < logLength) {
+      log.truncate(position);
+      logLength = position;
+    }
+  }
+  
+  private static int readFully(FileChannel channel, ByteBuffer buf, 
+          long position) throws IOException
+  {
+    int total = 0;
+    while(buf.hasRemaining()) {
+      int n = channel.read(buf, position + total);
+      if(n < 0) {
+        break;
+      }
+      total += n;
+    }
+    return total;
+  }
+  
+  /**
+   * Loads the index file, if there is a valid one. Each entry is checked
+   * against the record it points at before it's used, and an index with
+   * any bad entry is ignored so the whole log is replayed.
+   * @return the log length the index covers
+   */
+  private long readIndex() throws IOException
+  {
+    File index = new File(directory, INDEX_FILE);
+    if(!index.exists()) {
+      return 0;
+    }
+    try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(index)))) {
+      if(in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+        return 0;
+      }
+      long indexed = in.readLong();
+      long hwm = in.readLong();
+      int count = in.readInt();
+      // an index covering more than the log describes records that never
+      // reached the disk; every record is at least a header and a count
+      if(indexed < 0 || indexed > logLength || count < 0 
+              || count > indexed / (HEADER_SIZE + 2)) {
+        return 0;
+      }
+      for(int i = 0; i < count; ++i) {
+        int id = in.readInt();
+        long offset = in.readLong();
+        // an entry that doesn't match the log means it has been replaced
+        // since, so the high-water mark can't be trusted either
+        if(!this.recordMatches(id, offset, indexed) 
+                || !this.setOffset(id, offset)) {
+          this.resetIndex();
+          return 0;
+        }
+        ++size;
+      }
+      this.highWaterMark = hwm < 0 ? null : new Date(hwm);
+      return indexed;
+    } catch(EOFException e) {
+      // a partial index; rebuild everything from the log
+      this.resetIndex();
+      return 0;
+    }
+  }
+  
+  /**
+   * Forgets everything loaded from the index, including the high-water
+   * mark, ready for a full replay of the log
+   */
+  private void resetIndex()
+  {
+    Arrays.fill(offsets, -1);
+    size = 0;
+    this.highWaterMark = null;
+  }
+  
+  /**
+   * Writes the index file atomically
+   */
+  private void writeIndex() throws IOException
+  {
+    File tmp = new File(directory, INDEX_FILE + ".tmp");
+    try (FileOutputStream fos = new FileOutputStream(tmp);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+      out.writeInt(INDEX_MAGIC);
+      out.writeInt(INDEX_VERSION);
+      out.writeLong(logLength);
+      out.writeLong(highWaterMark == null ? -1 : highWaterMark.getTime());
+      out.writeInt(size);
+      for(int id = 0; id < offsets.length; ++id) {
+        if(offsets[id] >= 0) {
+          out.writeInt(id);
+          out.writeLong(offsets[id]);
+        }
+      }
+      out.flush();
+      fos.getFD().sync();
+    }
+    Files.move(tmp.toPath(), new File(directory, INDEX_FILE).toPath(), 
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  /**
+   * Encodes ticket attributes compactly
+   */
+  static byte[] encode(Map<String, Object> attribs) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeShort(attribs.size());
+    for(Map.Entry<String, Object> e : attribs.entrySet()) {
+      writeString(out, e.getKey());
+      Object value = e.getValue();
+      if(value == null) {
+        out.writeByte(TYPE_NULL);
+      }
+      else if(value instanceof String) {
+        out.writeByte(TYPE_STRING);
+        writeString(out, (String)value);
+      }
+      else if(value instanceof Date) {
+        out.writeByte(TYPE_DATE);
+        out.writeLong(((Date)value).getTime());
+      }
+      else if(value instanceof Integer) {
+        out.writeByte(TYPE_INTEGER);
+        out.writeInt((Integer)value);
+      }
+      else if(value instanceof Boolean) {
+        out.writeByte(TYPE_BOOLEAN);
+        out.writeBoolean((Boolean)value);
+      }
+      else if(value instanceof Double) {
+        out.writeByte(TYPE_DOUBLE);
+        out.writeDouble((Double)value);
+      }
+      else {
+        throw new IOException("Can't store attribute " + e.getKey() + 
+                " of type " + value.getClass().getName());
+      }
+    }
+    return bytes.toByteArray();
+  }
+  
+  private static void writeString(DataOutputStream out, String s) 
+          throws IOException
+  {
+    byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(utf8.length);
+    out.write(utf8);
+  }
+  
+  /**
+   * Decodes ticket attributes written by {@link encode(Map) encode}
+   */
+  static HashMap<String, Object> decode(ByteBuffer buf)
+  {
+    int count = buf.getShort() & 0xffff;
+    HashMap<String, Object> attribs = new HashMap<String, Object>(count * 2);
+    for(int i = 0; i < count; ++i) {
+      String key = readString(buf);
+      byte type = buf.get();
+      switch(type) {
+        case TYPE_NULL:
+          attribs.put(key, null);
+          break;
+        case TYPE_STRING:
+          attribs.put(key, ValuePool.TICKETS.canonical(key, readString(buf)));
+          break;
+        case TYPE_DATE:
+          attribs.put(key, new Date(buf.getLong()));
+          break;
+        case TYPE_INTEGER:
+          attribs.put(key, buf.getInt());
+          break;
+        case TYPE_BOOLEAN:
+          attribs.put(key, buf.get() != 0);
+          break;
+        case TYPE_DOUBLE:
+          attribs.put(key, buf.getDouble());
+          break;
+        default:
+          throw new IllegalStateException("Corrupt ticket record");
+      }
+    }
+    return attribs;
+  }
+  
+  private static String readString(ByteBuffer buf)
+  {
+    byte[] utf8 = new byte[buf.getInt()];
+    buf.get(utf8);
+    return new String(utf8, StandardCharsets.UTF_8);
+  }
+}
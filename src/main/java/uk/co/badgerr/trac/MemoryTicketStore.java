@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps tickets in memory. If given a snapshot file, the store is loaded from
+ * it on construction and written back to it on {@link flush() flush}, so a
+ * {@link TicketMirror TicketMirror} can resume from its high-water mark after
+ * a restart.
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class MemoryTicketStore implements TicketStore {
+  private static final int SNAPSHOT_VERSION = 1;
+  
+  private final ConcurrentHashMap<Integer, HashMap<String, Object>> tickets = 
+          new ConcurrentHashMap<Integer, HashMap<String, Object>>();
+  private final File snapshot;
+  private volatile Date highWaterMark = null;
+  
+  /**
+   * Create an empty store that isn't persisted
+   */
+  public MemoryTicketStore()
+  {
+    this.snapshot = null;
+  }
+  
+  /**
+   * Create a store persisted to a snapshot file, loading it if it exists
+   * @param snapshot the snapshot file
+   * @throws IOException if the snapshot exists but can't be read
+   */
+  public MemoryTicketStore(File snapshot) throws IOException
+  {
+    this.snapshot = snapshot;
+    if(snapshot.exists()) {
+      this.load();
+    }
+  }
+  
+  @Override
+  public Ticket get(Integer id)
+  {
+    HashMap<String, Object> attribs = tickets.get(id);
+    if(attribs == null) {
+      return null;
+    }
+    Ticket t = new Ticket();
+    t.setId(id);
+    t.loadAttribs(attribs);
+    return t;
+  }
+
+  @Override
+  public void put(Ticket t)
+  {
+    tickets.put(t.getId(), new HashMap<String, Object>(t.attribs));
+  }
+
+  @Override
+  public void remove(Integer id)
+  {
+    tickets.remove(id);
+  }
+
+  @Override
+  public Collection<Integer> getIds()
+  {
+    return new ArrayList<Integer>(tickets.keySet());
+  }
+
+  @Override
+  public int size()
+  {
+    return tickets.size();
+  }
+
+  @Override
+  public Date getHighWaterMark()
+  {
+    return highWaterMark;
+  }
+
+  @Override
+  public void setHighWaterMark(Date highWaterMark)
+  {
+    this.highWaterMark = highWaterMark;
+  }
+
+  /**
+   * Writes the snapshot file, if there is one. The file is replaced
+   * atomically so a crash never leaves a partial snapshot behind.
+   * @throws IOException 
+   */
+  @Override
+  public synchronized void flush() throws IOException
+  {
+    if(snapshot == null) {
+      return;
+    }
+    
+    File tmp = new File(snapshot.getPath() + ".tmp");
+    try (ObjectOutputStream out = new ObjectOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      out.writeInt(SNAPSHOT_VERSION);
+      Date hwm = highWaterMark;
+      out.writeLong(hwm == null ? -1 : hwm.getTime());
+      for(Integer id : tickets.keySet()) {
+        HashMap<String, Object> attribs = tickets.get(id);
+        if(attribs != null) {
+          out.writeInt(id);
+          out.writeObject(attribs);
+        }
+      }
+      out.writeInt(-1);
+    }
+    Files.move(tmp.toPath(), snapshot.toPath(), 
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  /**
+   * Reads the snapshot file
+   * @throws IOException 
+   */
+  private void load() throws IOException
+  {
+    try (ObjectInputStream in = new ObjectInputStream(
+            new BufferedInputStream(new FileInputStream(snapshot)))) {
+      if(in.readInt() != SNAPSHOT_VERSION) {
+        throw new IOException("Unsupported snapshot version in " + snapshot);
+      }
+      long hwm = in.readLong();
+      this.highWaterMark = hwm < 0 ? null : new Date(hwm);
+      for(int id = in.readInt(); id >= 0; id = in.readInt()) {
+        @SuppressWarnings("unchecked")
+        HashMap<String, Object> attribs = (HashMap<String, Object>)in.readObject();
+        ValuePool.TICKETS.canonicalize(attribs);
+        tickets.put(id, attribs);
+      }
+    } catch(ClassNotFoundException e) {
+      throw new IOException("Corrupt snapshot " + snapshot, e);
+    }
+  }
+}
@@ -30,11 +30,15 @@ import java.util.Date;
  * @author James Femia <badgerr@gmail.com>
  */
 public final class Milestone extends BasicStruct {
+  private static final AttribMap.Layout LAYOUT = new AttribMap.Layout(
+          "name", "due", "completed", "description");
+
   /**
    * Create an empty milestone
    */
   public Milestone()
   {
+    super(LAYOUT);
   }
   
   /**
@@ -44,6 +48,7 @@ public final class Milestone extends BasicStruct {
    */
   public Milestone(String name, Date due)
   {
+    this();
     this.setName(name);
     this.setDue(due);
   }
@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.common.XmlRpcStreamConfig;
+import org.apache.xmlrpc.serializer.XmlWriterFactory;
+import org.xml.sax.ContentHandler;
+
+/**
+ * Counts the bytes of XML-RPC requests and responses as they go over the
+ * wire. A call that wants its sizes measured starts a counter on its own
+ * thread; the request writer and the transports then feed whatever counter
+ * is current. Threads without a counter pay nothing beyond the lookup.
+ * @author James Femia <badgerr@gmail.com>
+ */
+final class PayloadCounter {
+  private static final ThreadLocal<PayloadCounter> CURRENT = 
+          new ThreadLocal<PayloadCounter>();
+  
+  private volatile long requestBytes = 0;
+  private volatile long responseBytes = 0;
+  
+  /**
+   * Starts counting for the current thread
+   * @return the counter, to pass to {@link stop(PayloadCounter) stop}
+   */
+  static PayloadCounter start()
+  {
+    PayloadCounter counter = new PayloadCounter();
+    CURRENT.set(counter);
+    return counter;
+  }
+  
+  /**
+   * Stops counting for the current thread
+   */
+  static void stop()
+  {
+    CURRENT.remove();
+  }
+  
+  /**
+   * Gets the counter for the current thread
+   * @return the counter, or null if the thread isn't counting
+   */
+  static PayloadCounter current()
+  {
+    return CURRENT.get();
+  }
+  
+  long getRequestBytes()
+  {
+    return requestBytes;
+  }
+  
+  long getResponseBytes()
+  {
+    return responseBytes;
+  }
+  
+  void addRequestBytes(long count)
+  {
+    requestBytes += count;
+  }
+  
+  void addResponseBytes(long count)
+  {
+    responseBytes += count;
+  }
+  
+  /**
+   * Wraps a response stream so the current thread's counter sees every
+   * byte read from it
+   * @param in the stream as it comes off the wire
+   * @return a counting stream, or in itself if the thread isn't counting
+   */
+  static InputStream countResponse(InputStream in)
+  {
+    final PayloadCounter counter = CURRENT.get();
+    if(counter == null) {
+      return in;
+    }
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if(b >= 0) {
+          counter.responseBytes++;
+        }
+        return b;
+      }
+      
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if(n > 0) {
+          counter.responseBytes += n;
+        }
+        return n;
+      }
+    };
+  }
+  
+  /**
+   * XmlWriterFactory that counts the request bytes written through it
+   */
+  static final class WriterFactory implements XmlWriterFactory {
+    private final XmlWriterFactory delegate;
+    
+    WriterFactory(XmlWriterFactory delegate)
+    {
+      this.delegate = delegate;
+    }
+    
+    @Override
+    public ContentHandler getXmlWriter(XmlRpcStreamConfig config, 
+            OutputStream out) throws XmlRpcException
+    {
+      final PayloadCounter counter = CURRENT.get();
+      if(counter == null) {
+        return delegate.getXmlWriter(config, out);
+      }
+      return delegate.getXmlWriter(config, new FilterOutputStream(out) {
+        @Override
+        public void write(int b) throws IOException {
+          out.write(b);
+          counter.requestBytes++;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          out.write(b, off, len);
+          counter.requestBytes += len;
+        }
+      });
+    }
+  }
+}
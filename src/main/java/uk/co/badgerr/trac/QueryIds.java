@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the ticket ids matching a Trac query, fetching them a page
+ * at a time with ticket.query's max and page arguments.
+ * 
+ * Trac answers a page past the end with a fault when the results span
+ * several pages, and ignores page altogether (answering with every match)
+ * when they fit on one, so iteration stops at the first short page, a
+ * fault saying a later page is beyond the end, or a later page that starts
+ * over from the first. Any other fault is an error, whichever page it is
+ * for, so a transient failure can't pass for the end of the results.
+ * @author James Femia <badgerr@gmail.com>
+ */
+final class QueryIds implements Iterator<Integer> {
+  private static final Object[] EMPTY = new Object[0];
+  /**
+   * Part of the message of the fault Trac answers a page past the end with
+   */
+  private static final String BEYOND_LAST_PAGE = "beyond the number of pages";
+  
+  private final TracRpc rpc;
+  private final String query;
+  private final int pageSize;
+  private Object[] page = null;
+  private int pos = 0;
+  private int pageNumber = 0;
+  private boolean lastPage = false;
+  private Object firstId = null;
+  
+  /**
+   * @param rpc where to run the query
+   * @param query the Trac query string, without max or page
+   * @param pageSize ids fetched per request
+   */
+  QueryIds(TracRpc rpc, String query, int pageSize)
+  {
+    this.rpc = rpc;
+    this.query = query;
+    this.pageSize = pageSize;
+  }
+  
+  @Override
+  public boolean hasNext()
+  {
+    while(page == null || pos >= page.length) {
+      if(lastPage) {
+        return false;
+      }
+      this.load();
+    }
+    return true;
+  }
+  
+  @Override
+  public Integer next()
+  {
+    if(!this.hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return (Integer)page[pos++];
+  }
+  
+  private void load()
+  {
+    ++pageNumber;
+    String paged = (query.isEmpty() ? "" : query + "&") 
+            + "max=" + pageSize + "&page=" + pageNumber;
+    Object[] ids;
+    try {
+      ids = (Object[])rpc.call("ticket.query", new Object[]{paged});
+    } catch(TracRpcException e) {
+      if(e.isFault() && pageNumber > 1 && e.getMessage() != null 
+              && e.getMessage().contains(BEYOND_LAST_PAGE)) {
+        this.end();
+        return;
+      }
+      throw new UncheckedTracRpcException(e);
+    }
+    
+    if(pageNumber == 1 && ids.length > 0) {
+      firstId = ids[0];
+    }
+    else if(ids.length > 0 && ids[0].equals(firstId)) {
+      this.end();
+      return;
+    }
+    page = ids;
+    pos = 0;
+    lastPage = ids.length < pageSize;
+  }
+  
+  private void end()
+  {
+    page = EMPTY;
+    pos = 0;
+    lastPage = true;
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * Turns calls into request bodies and response bodies into results, for
+ * wire formats other than the XML-RPC the library speaks itself.
+ * 
+ * Results are given in the shapes the XML-RPC library produces (Map for a
+ * struct, Object[] for an array, Integer, Date...) so that callers can't
+ * tell which format was used. Faults are thrown as an XmlRpcException
+ * carrying the fault code.
+ * @author James Femia <badgerr@gmail.com>
+ */
+interface RpcCodec {
+  /**
+   * @return the Content-Type of request bodies
+   */
+  String getContentType();
+  
+  /**
+   * Writes the request body for a call
+   * @param out where to write the body
+   * @param method the RPC method
+   * @param params the call parameters
+   * @throws IOException if writing fails
+   */
+  void writeRequest(OutputStream out, String method, Object[] params) 
+          throws IOException;
+  
+  /**
+   * Reads the response body for a call
+   * @param in the response body
+   * @param method the RPC method that was called
+   * @return the call result
+   * @throws XmlRpcException if the server returned a fault
+   * @throws IOException if the body can't be read or parsed
+   */
+  Object readResponse(InputStream in, String method) 
+          throws XmlRpcException, IOException;
+}
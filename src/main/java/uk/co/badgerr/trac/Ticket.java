@@ -30,6 +30,11 @@ import java.util.Date;
  * @author James Femia <badgerr@gmail.com>
  */
 public final class Ticket extends AttribContainer {
+  private static final AttribMap.Layout LAYOUT = new AttribMap.Layout(
+          "summary", "description", "status", "resolution", "owner", "reporter",
+          "cc", "keywords", "priority", "severity", "type", "component", 
+          "version", "milestone", "time", "changetime", "_ts");
+
   private Integer id = null;
 
   /**
@@ -37,6 +42,7 @@ public final class Ticket extends AttribContainer {
    */
   public Ticket()
   {
+    super(LAYOUT);
   }
 
   /**
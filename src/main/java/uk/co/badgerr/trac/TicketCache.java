@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded, least recently used cache of tickets, used by
+ * {@link TracRpc TracRpc} to serve repeated ticket reads without a round
+ * trip. Entries are evicted when Trac reports the ticket changed, and the
+ * ticket's modified time (changetime) is used as a version stamp so an older
+ * copy never replaces a newer one.
+ * 
+ * Callers always receive their own copy of a cached ticket, so modifying a
+ * returned ticket doesn't affect the cache.
+ * @author James Femia <badgerr@gmail.com>
+ */
+class TicketCache {
+  private final LinkedHashMap<Integer, Ticket> entries;
+  private long generation = 0;
+  
+  /**
+   * Create an empty cache
+   * @param maxSize maximum number of tickets to hold
+   */
+  TicketCache(final int maxSize)
+  {
+    this.entries = new LinkedHashMap<Integer, Ticket>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, Ticket> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+  
+  /**
+   * Gets a copy of a cached ticket
+   * @param id ticket id
+   * @return a copy of the ticket, or null if it isn't cached
+   */
+  synchronized Ticket get(Integer id)
+  {
+    Ticket t = entries.get(id);
+    return t == null ? null : copy(t);
+  }
+  
+  /**
+   * Gets the invalidation generation. Capture this before fetching a ticket
+   * and pass it to {@link put(Ticket, long) put}, so that a ticket fetched
+   * before an invalidation isn't cached after it.
+   * @return the current generation
+   */
+  synchronized long generation()
+  {
+    return generation;
+  }
+  
+  /**
+   * Caches a copy of a ticket, unless the cache has been invalidated since
+   * it was fetched or a newer version is already cached
+   * @param t ticket to cache
+   * @param fetchedGeneration the {@link generation() generation} before the
+   *        ticket was fetched
+   */
+  synchronized void put(Ticket t, long fetchedGeneration)
+  {
+    if(t.getId() == null || fetchedGeneration != generation) {
+      return;
+    }
+    Ticket existing = entries.get(t.getId());
+    if(existing != null && isNewer(existing.getModified(), t.getModified())) {
+      return;
+    }
+    entries.put(t.getId(), copy(t));
+  }
+  
+  /**
+   * Evicts tickets that have changed
+   * @param ids ids of the changed tickets
+   */
+  synchronized void invalidate(Collection<Integer> ids)
+  {
+    ++generation;
+    for(Integer id : ids) {
+      entries.remove(id);
+    }
+  }
+  
+  /**
+   * Evicts every ticket
+   */
+  synchronized void clear()
+  {
+    ++generation;
+    entries.clear();
+  }
+  
+  /**
+   * @return number of cached tickets
+   */
+  synchronized int size()
+  {
+    return entries.size();
+  }
+  
+  private static boolean isNewer(Date a, Date b)
+  {
+    return a != null && b != null && a.after(b);
+  }
+  
+  /**
+   * Copies a ticket, including its dates, which are mutable and would
+   * otherwise let a caller change the cached version stamp
+   */
+  private static Ticket copy(Ticket t)
+  {
+    Map<String, Object> attribs = new HashMap<String, Object>(t.attribs);
+    for(Map.Entry<String, Object> e : attribs.entrySet()) {
+      if(e.getValue() instanceof Date) {
+        e.setValue(((Date)e.getValue()).clone());
+      }
+    }
+    Ticket ret = new Ticket();
+    ret.setId(t.getId());
+    ret.loadAttribs(attribs);
+    return ret;
+  }
+}
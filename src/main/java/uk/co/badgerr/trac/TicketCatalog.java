@@ -0,0 +1,303 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * In-memory catalog of a Trac instance's ticket metadata: milestones,
+ * versions, components, priorities, severities and types. Everything is
+ * loaded by {@link refresh() refresh} in two system.multicall round trips,
+ * one for the names and one for the milestone, version and component
+ * details, after which lookups never touch the network.
+ * 
+ * A refresh replaces the whole catalog at once, so readers always see a
+ * consistent set of metadata. Milestones, versions and components are
+ * handed out as copies, so changing one doesn't change the catalog.
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class TicketCatalog implements Closeable {
+  private static final List<String> GET_ALL = Arrays.asList(
+          "ticket.milestone.getAll", "ticket.version.getAll", 
+          "ticket.component.getAll", "ticket.priority.getAll", 
+          "ticket.severity.getAll", "ticket.type.getAll");
+  
+  private final TracRpc rpc;
+  private volatile Contents contents = new Contents();
+  private final Object refresherLock = new Object();
+  private ScheduledExecutorService refresher = null;
+  
+  /**
+   * One consistent load of the catalog
+   */
+  private static final class Contents {
+    final Map<String, Milestone> milestones = new LinkedHashMap<String, Milestone>();
+    final Map<String, TicketVersion> versions = new LinkedHashMap<String, TicketVersion>();
+    final Map<String, Component> components = new LinkedHashMap<String, Component>();
+    List<String> priorities = Collections.emptyList();
+    List<String> severities = Collections.emptyList();
+    List<String> types = Collections.emptyList();
+  }
+  
+  /**
+   * Create an empty catalog. Call {@link refresh() refresh} to load it.
+   * @param rpc the Trac instance to read metadata from
+   */
+  public TicketCatalog(TracRpc rpc)
+  {
+    this.rpc = rpc;
+  }
+  
+  /**
+   * Reloads all metadata from Trac
+   * @throws TracRpcException if the metadata can't be loaded; the previous
+   *         contents are kept
+   */
+  public void refresh() throws TracRpcException
+  {
+    List<Object[]> noParams = Collections.nCopies(GET_ALL.size(), new Object[0]);
+    Object[] names = rpc.multicall(GET_ALL, noParams);
+    for(Object result : names) {
+      if(result instanceof TracRpcException) {
+        throw (TracRpcException)result;
+      }
+    }
+    
+    List<String> funcs = new ArrayList<String>();
+    List<Object[]> params = new ArrayList<Object[]>();
+    addGets(funcs, params, "ticket.milestone.get", names[0]);
+    addGets(funcs, params, "ticket.version.get", names[1]);
+    addGets(funcs, params, "ticket.component.get", names[2]);
+    Object[] structs = rpc.multicall(funcs, params);
+    
+    Contents loaded = new Contents();
+    for(int i = 0; i < structs.length; ++i) {
+      // anything deleted between the two round trips is left out
+      if(structs[i] instanceof TracRpcException) {
+        continue;
+      }
+      switch(funcs.get(i)) {
+        case "ticket.milestone.get":
+          Milestone m = TracRpc.basicStructFromResult(structs[i], Milestone.class);
+          loaded.milestones.put(m.getName(), m);
+          break;
+        case "ticket.version.get":
+          TicketVersion v = TracRpc.basicStructFromResult(structs[i], TicketVersion.class);
+          loaded.versions.put(v.getName(), v);
+          break;
+        default:
+          Component c = TracRpc.basicStructFromResult(structs[i], Component.class);
+          loaded.components.put(c.getName(), c);
+          break;
+      }
+    }
+    loaded.priorities = toNames(names[3]);
+    loaded.severities = toNames(names[4]);
+    loaded.types = toNames(names[5]);
+    this.contents = loaded;
+  }
+  
+  private static void addGets(List<String> funcs, List<Object[]> params, 
+          String func, Object names)
+  {
+    for(Object name : (Object[])names) {
+      funcs.add(func);
+      params.add(new Object[]{name});
+    }
+  }
+  
+  private static List<String> toNames(Object names)
+  {
+    List<String> ret = new ArrayList<String>();
+    for(Object name : (Object[])names) {
+      ret.add((String)name);
+    }
+    return Collections.unmodifiableList(ret);
+  }
+  
+  /**
+   * Copies a struct held by the catalog, including any dates in it
+   * @param <T> struct type
+   * @param struct struct to copy, may be null
+   * @param factory creates an empty T
+   * @return the copy, or null if struct is null
+   */
+  private static <T extends BasicStruct> T copy(T struct, Supplier<T> factory)
+  {
+    if(struct == null) {
+      return null;
+    }
+    Map<String, Object> attribs = new HashMap<String, Object>(struct.attribs);
+    for(Map.Entry<String, Object> e : attribs.entrySet()) {
+      if(e.getValue() instanceof Date) {
+        e.setValue(((Date)e.getValue()).clone());
+      }
+    }
+    T ret = factory.get();
+    ret.loadAttribs(attribs);
+    return ret;
+  }
+  
+  private static <T extends BasicStruct> Collection<T> copyAll(
+          Collection<T> structs, Supplier<T> factory)
+  {
+    List<T> ret = new ArrayList<T>(structs.size());
+    for(T struct : structs) {
+      ret.add(copy(struct, factory));
+    }
+    return Collections.unmodifiableList(ret);
+  }
+  
+  /**
+   * Refreshes on a daemon thread at a fixed interval until
+   * {@link close() close} is called. The first refresh happens immediately.
+   * Failed refreshes keep the previous contents and retry at the next
+   * interval.
+   * @param interval milliseconds between refreshes
+   */
+  public void start(long interval)
+  {
+    synchronized(refresherLock) {
+      if(refresher != null) {
+        return;
+      }
+      refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "trac-rpc-ticket-catalog");
+        t.setDaemon(true);
+        return t;
+      });
+      refresher.scheduleWithFixedDelay(() -> {
+        try {
+          this.refresh();
+        } catch(TracRpcException e) {
+          // keep serving the previous contents
+        }
+      }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+  
+  /**
+   * Stops background refreshing started by {@link start(long) start}
+   */
+  @Override
+  public void close()
+  {
+    ScheduledExecutorService r;
+    synchronized(refresherLock) {
+      r = refresher;
+      refresher = null;
+    }
+    if(r != null) {
+      r.shutdownNow();
+    }
+  }
+  
+  /**
+   * Gets a milestone by name
+   * @param name milestone name
+   * @return a copy of the milestone, or null if there is no such milestone
+   */
+  public Milestone getMilestone(String name) {
+    return copy(contents.milestones.get(name), Milestone::new);
+  }
+  
+  /**
+   * Gets all milestones
+   * @return copies of the milestones in the order Trac lists them
+   */
+  public Collection<Milestone> getMilestones() {
+    return copyAll(contents.milestones.values(), Milestone::new);
+  }
+  
+  /**
+   * Gets a ticket version by name
+   * @param name version name
+   * @return a copy of the version, or null if there is no such version
+   */
+  public TicketVersion getTicketVersion(String name) {
+    return copy(contents.versions.get(name), TicketVersion::new);
+  }
+  
+  /**
+   * Gets all ticket versions
+   * @return copies of the versions in the order Trac lists them
+   */
+  public Collection<TicketVersion> getTicketVersions() {
+    return copyAll(contents.versions.values(), TicketVersion::new);
+  }
+  
+  /**
+   * Gets a component by name
+   * @param name component name
+   * @return a copy of the component, or null if there is no such component
+   */
+  public Component getComponent(String name) {
+    return copy(contents.components.get(name), Component::new);
+  }
+  
+  /**
+   * Gets all components
+   * @return copies of the components in the order Trac lists them
+   */
+  public Collection<Component> getComponents() {
+    return copyAll(contents.components.values(), Component::new);
+  }
+  
+  /**
+   * Gets the ticket priorities
+   * @return priority names, highest first
+   */
+  public List<String> getPriorities() {
+    return contents.priorities;
+  }
+  
+  /**
+   * Gets the ticket severities
+   * @return severity names, most severe first
+   */
+  public List<String> getSeverities() {
+    return contents.severities;
+  }
+  
+  /**
+   * Gets the ticket types
+   * @return type names
+   */
+  public List<String> getTypes() {
+    return contents.types;
+  }
+}
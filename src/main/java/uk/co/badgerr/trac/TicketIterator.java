@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Iterates over the tickets for a sequence of ids, fetching them in
+ * multicall batches. The next batch is fetched in the background while
+ * the caller works through the current one, so at most two batches are
+ * held at a time however many ids there are.
+ * 
+ * Tickets that no longer exist when their batch is fetched are skipped;
+ * any other fault fetching a ticket is thrown from hasNext or next.
+ * @author James Femia <badgerr@gmail.com>
+ */
+final class TicketIterator implements Iterator<Ticket>, Closeable {
+  private final TracRpc rpc;
+  private final Iterator<Integer> ids;
+  private final int batchSize;
+  private final Executor executor;
+  private Iterator<Ticket> current = Collections.emptyIterator();
+  private CompletableFuture<List<Ticket>> next;
+  
+  /**
+   * Starts fetching the first batch
+   * @param rpc where to fetch tickets from
+   * @param ids the tickets to fetch, only read by the background fetch
+   * @param batchSize tickets fetched per request
+   * @param executor runs the background fetches
+   */
+  TicketIterator(TracRpc rpc, Iterator<Integer> ids, int batchSize, 
+          Executor executor)
+  {
+    this.rpc = rpc;
+    this.ids = ids;
+    this.batchSize = batchSize;
+    this.executor = executor;
+    this.next = this.fetch();
+  }
+  
+  private CompletableFuture<List<Ticket>> fetch()
+  {
+    return CompletableFuture.supplyAsync(this::fetchBatch, executor);
+  }
+  
+  /**
+   * Fetches the tickets for the next batch of ids
+   * @return the tickets, or null if there are no more ids
+   */
+  private List<Ticket> fetchBatch()
+  {
+    List<Integer> batch = new ArrayList<Integer>(batchSize);
+    while(batch.size() < batchSize && ids.hasNext()) {
+      batch.add(ids.next());
+    }
+    if(batch.isEmpty()) {
+      return null;
+    }
+    return fetchExisting(rpc, batch);
+  }
+  
+  /**
+   * Fetches a batch of tickets in one multicall, skipping those that don't
+   * exist. Any other fault for a ticket, such as a permission error, fails
+   * the batch rather than quietly losing the ticket.
+   * @param rpc where to fetch tickets from
+   * @param batch the ids to fetch
+   * @return the tickets that exist, in the order of their ids
+   * @throws UncheckedTracRpcException when the whole batch fails, or any
+   *         ticket in it faults with anything but not found
+   */
+  static List<Ticket> fetchExisting(TracRpc rpc, List<Integer> batch)
+  {
+    BatchResult<Integer, Ticket> fetched;
+    try {
+      fetched = rpc.getTickets(batch);
+    } catch(TracRpcException e) {
+      throw new UncheckedTracRpcException(e);
+    }
+    for(TracRpcException e : fetched.getErrors().values()) {
+      if(!e.isNotFound()) {
+        throw new UncheckedTracRpcException(e);
+      }
+    }
+    Map<Integer, Ticket> results = fetched.getResults();
+    List<Ticket> ret = new ArrayList<Ticket>(results.size());
+    for(Integer id : batch) {
+      Ticket t = results.get(id);
+      if(t != null) {
+        ret.add(t);
+      }
+    }
+    return ret;
+  }
+  
+  @Override
+  public boolean hasNext()
+  {
+    while(!current.hasNext()) {
+      if(next == null) {
+        return false;
+      }
+      List<Ticket> batch;
+      try {
+        batch = next.join();
+      } catch(CompletionException e) {
+        next = null;
+        if(e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException)e.getCause();
+        }
+        throw e;
+      }
+      if(batch == null) {
+        next = null;
+        return false;
+      }
+      next = this.fetch();
+      current = batch.iterator();
+    }
+    return true;
+  }
+  
+  @Override
+  public Ticket next()
+  {
+    if(!this.hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return current.next();
+  }
+  
+  /**
+   * Abandons the fetch in progress, if any
+   */
+  @Override
+  public void close()
+  {
+    if(next != null) {
+      next.cancel(false);
+      next = null;
+    }
+    current = Collections.emptyIterator();
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a complete local copy of a Trac instance's tickets in a
+ * {@link TicketStore TicketStore}. The first {@link sync() sync} loads every
+ * ticket; later syncs fetch only the tickets reported by
+ * ticket.getRecentChanges since the store's high-water mark. With a
+ * persistent store, a restarted mirror resumes from where it left off
+ * instead of reloading everything.
+ * 
+ * The high-water mark is taken from Trac's own change times, so the mirror
+ * doesn't depend on the client and server clocks agreeing.
+ * 
+ * Trac doesn't report deleted tickets as changes, so an incremental sync
+ * only notices a deletion if the ticket also changed since the last one.
+ * Otherwise deleted tickets stay in the store until a full
+ * {@link resync() resync}.
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class TicketMirror implements Closeable {
+  /**
+   * Number of ticket ids fetched and stored at a time
+   */
+  private static final int CHUNK_SIZE = 1000;
+  
+  private final TracRpc rpc;
+  private final TicketStore store;
+  private final Object syncerLock = new Object();
+  private ScheduledExecutorService syncer = null;
+  
+  /**
+   * Create a mirror
+   * @param rpc the Trac instance to mirror
+   * @param store where to keep the tickets
+   */
+  public TicketMirror(TracRpc rpc, TicketStore store)
+  {
+    this.rpc = rpc;
+    this.store = store;
+  }
+
+  /**
+   * Gets the store holding the mirrored tickets
+   * @return the store
+   */
+  public TicketStore getStore() {
+    return store;
+  }
+  
+  /**
+   * Gets a mirrored ticket without contacting Trac
+   * @param id the ticket id
+   * @return the ticket as of the last sync, or null if it doesn't exist
+   */
+  public Ticket getTicket(Integer id)
+  {
+    return store.get(id);
+  }
+  
+  /**
+   * Brings the store up to date: a full load if it has never been filled,
+   * otherwise the tickets changed since its high-water mark.
+   * @throws TracRpcException if Trac can't be reached, or faults fetching
+   *         a ticket for any reason but it not existing; the high-water
+   *         mark isn't advanced, so the next sync picks up where this one
+   *         failed
+   * @throws IOException if the store can't be flushed
+   */
+  public synchronized void sync() throws TracRpcException, IOException
+  {
+    this.sync(store.getHighWaterMark() == null);
+  }
+  
+  /**
+   * Reloads every ticket, as for the first sync, and removes any stored
+   * tickets that no longer exist in Trac. This is the only way deletions
+   * of unchanged tickets are caught.
+   * @throws TracRpcException as for {@link sync() sync}
+   * @throws IOException if the store can't be flushed
+   */
+  public synchronized void resync() throws TracRpcException, IOException
+  {
+    this.sync(true);
+  }
+  
+  private void sync(boolean full) throws TracRpcException, IOException
+  {
+    // replicas lag by different amounts, so read everything from the
+    // primary or the mark could be newer than the changes fetched
+    boolean pinned = rpc.pinToPrimary(true);
+    try {
+      // Anything changed after this point has a later change time, so it's
+      // a safe place to resume from whatever happens during the sync
+      Date mark = rpc.latestChangeTime();
+      Date since = store.getHighWaterMark();
+      
+      if(full) {
+        Object[] ids = (Object[])rpc.call("ticket.query", 
+                                          new Object[]{"max=0&order=id"});
+        this.fetch(ids);
+        Set<Object> existing = new HashSet<Object>(Arrays.asList(ids));
+        for(Integer id : new ArrayList<Integer>(store.getIds())) {
+          if(!existing.contains(id)) {
+            store.remove(id);
+          }
+        }
+      }
+      else {
+        // change times have one second resolution, so overlap by a second
+        Object[] ids = (Object[])rpc.call("ticket.getRecentChanges", 
+                new Object[]{new Date(since.getTime() - 1000)});
+        this.fetch(ids);
+      }
+      
+      if(mark != null) {
+        store.setHighWaterMark(mark);
+      }
+      else if(since == null) {
+        store.setHighWaterMark(new Date(0));
+      }
+      store.flush();
+    } finally {
+      rpc.pinToPrimary(pinned);
+    }
+  }
+  
+  /**
+   * Fetches tickets into the store in chunks, bypassing any ticket cache on
+   * the TracRpc. Tickets Trac says don't exist are removed. Any other fault
+   * leaves the stored copy alone and, once the rest are stored, fails the
+   * fetch so the sync is retried.
+   * @param ids ticket ids to fetch
+   * @throws TracRpcException the first fault other than not found, with
+   *         any others suppressed
+   * @throws IOException 
+   */
+  private void fetch(Object[] ids) throws TracRpcException, IOException
+  {
+    TracRpcException failure = null;
+    for(int start = 0; start < ids.length; start += CHUNK_SIZE) {
+      int end = Math.min(start + CHUNK_SIZE, ids.length);
+      List<Object[]> paramsList = new ArrayList<Object[]>(end - start);
+      for(int i = start; i < end; ++i) {
+        paramsList.add(new Object[]{ids[i]});
+      }
+      
+      Object[] results = rpc.multicall("ticket.get", paramsList);
+      for(int i = 0; i < results.length; ++i) {
+        if(!(results[i] instanceof TracRpcException)) {
+          store.put(TracRpc.ticketFromResult(results[i]));
+          continue;
+        }
+        TracRpcException e = (TracRpcException)results[i];
+        if(e.isNotFound()) {
+          store.remove((Integer)ids[start + i]);
+        }
+        else if(failure == null) {
+          failure = e;
+        }
+        else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    if(failure != null) {
+      throw failure;
+    }
+  }
+  
+  /**
+   * Syncs on a daemon thread at a fixed interval until {@link close() close}
+   * is called. Failed syncs are retried at the next interval.
+   * @param interval milliseconds between the end of one sync and the next
+   */
+  public void start(long interval)
+  {
+    synchronized(syncerLock) {
+      if(syncer != null) {
+        return;
+      }
+      syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "trac-rpc-ticket-mirror");
+        t.setDaemon(true);
+        return t;
+      });
+      syncer.scheduleWithFixedDelay(() -> {
+        try {
+          this.sync();
+        } catch(TracRpcException | IOException e) {
+          // the high-water mark wasn't advanced, so the next sync retries
+        }
+      }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stops background syncing started by {@link start(long) start}
+   */
+  @Override
+  public void close()
+  {
+    ScheduledExecutorService s;
+    synchronized(syncerLock) {
+      s = syncer;
+      syncer = null;
+    }
+    if(s != null) {
+      s.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Publishes the tickets for a sequence of ids to Reactive Streams
+ * subscribers. Fetching is driven by demand: each multicall asks for at
+ * most as many tickets as the subscriber has requested and not yet
+ * received, up to the batch size, and nothing is fetched while there is no
+ * demand. So a slow subscriber holds back fetching rather than letting
+ * tickets pile up.
+ * 
+ * Each subscriber gets its own pass over the ids. Signals to a subscriber
+ * are made one at a time from the executor, never from inside request.
+ * Tickets that no longer exist when their batch is fetched are skipped;
+ * any other fault fetching a ticket ends the stream with onError.
+ * @author James Femia <badgerr@gmail.com>
+ */
+final class TicketPublisher implements Flow.Publisher<Ticket> {
+  private final TracRpc rpc;
+  private final Supplier<Iterator<Integer>> ids;
+  private final int batchSize;
+  private final Executor executor;
+  
+  /**
+   * @param rpc where to fetch tickets from
+   * @param ids supplies the tickets to fetch, once per subscriber
+   * @param batchSize most tickets fetched per request
+   * @param executor fetches tickets and signals subscribers
+   */
+  TicketPublisher(TracRpc rpc, Supplier<Iterator<Integer>> ids, int batchSize, 
+          Executor executor)
+  {
+    this.rpc = rpc;
+    this.ids = ids;
+    this.batchSize = batchSize;
+    this.executor = executor;
+  }
+  
+  @Override
+  public void subscribe(Flow.Subscriber<? super Ticket> subscriber)
+  {
+    if(subscriber == null) {
+      throw new NullPointerException("subscriber");
+    }
+    subscriber.onSubscribe(new Subscription(subscriber));
+  }
+  
+  /**
+   * One subscriber's pass over the ids. Work is serialised with a counter
+   * of pending drains: whoever takes it from zero runs the drain loop on
+   * the executor, and the loop goes round again for any drain requested
+   * while it ran.
+   */
+  private final class Subscription implements Flow.Subscription {
+    private final Flow.Subscriber<? super Ticket> subscriber;
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean cancelled = false;
+    private volatile Throwable badRequest = null;
+    // only touched by the drain loop
+    private Iterator<Integer> remaining = null;
+    private Iterator<Ticket> buffer = Collections.emptyIterator();
+    private boolean done = false;
+    
+    Subscription(Flow.Subscriber<? super Ticket> subscriber)
+    {
+      this.subscriber = subscriber;
+    }
+    
+    @Override
+    public void request(long n)
+    {
+      if(n <= 0) {
+        badRequest = new IllegalArgumentException(
+                "Requested " + n + " tickets, must be positive");
+      }
+      else {
+        demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+      }
+      this.schedule();
+    }
+    
+    @Override
+    public void cancel()
+    {
+      cancelled = true;
+      this.schedule();
+    }
+    
+    private void schedule()
+    {
+      if(pending.getAndIncrement() == 0) {
+        executor.execute(this::drain);
+      }
+    }
+    
+    private void drain()
+    {
+      int missed = 1;
+      do {
+        this.emit();
+        missed = pending.addAndGet(-missed);
+      } while(missed != 0);
+    }
+    
+    /**
+     * Delivers tickets while there is demand, fetching a batch sized by
+     * the demand whenever the last one is used up
+     */
+    private void emit()
+    {
+      while(!done) {
+        if(cancelled) {
+          this.finish();
+          return;
+        }
+        if(badRequest != null) {
+          this.finish();
+          subscriber.onError(badRequest);
+          return;
+        }
+        long wanted = demand.get();
+        if(wanted == 0) {
+          return;
+        }
+        
+        if(!buffer.hasNext()) {
+          List<Ticket> batch;
+          try {
+            batch = this.fetch((int)Math.min(wanted, batchSize));
+          } catch(UncheckedTracRpcException e) {
+            this.finish();
+            subscriber.onError(e.getCause());
+            return;
+          } catch(RuntimeException e) {
+            this.finish();
+            subscriber.onError(e);
+            return;
+          }
+          if(batch == null) {
+            this.finish();
+            subscriber.onComplete();
+            return;
+          }
+          buffer = batch.iterator();
+          continue;
+        }
+        
+        if(wanted != Long.MAX_VALUE) {
+          demand.decrementAndGet();
+        }
+        try {
+          subscriber.onNext(buffer.next());
+        } catch(RuntimeException e) {
+          // a subscriber that throws has broken its contract, so drop it
+          this.finish();
+          return;
+        }
+      }
+    }
+    
+    /**
+     * Fetches the tickets for up to count more ids
+     * @return the tickets, or null if there are no more ids
+     */
+    private List<Ticket> fetch(int count)
+    {
+      if(remaining == null) {
+        remaining = ids.get();
+      }
+      List<Integer> batch = new ArrayList<Integer>(count);
+      while(batch.size() < count && remaining.hasNext()) {
+        batch.add(remaining.next());
+      }
+      if(batch.isEmpty()) {
+        return null;
+      }
+      return TicketIterator.fetchExisting(rpc, batch);
+    }
+    
+    private void finish()
+    {
+      done = true;
+      remaining = null;
+      buffer = Collections.emptyIterator();
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * Splits a set of ticket ids into ranges for parallel streams. Each range
+ * fetches its own tickets in multicall batches, so the workers of a
+ * parallel stream fetch and process tickets side by side.
+ * 
+ * Ids are sorted, and a split hands over the lower half, so every split
+ * covers a contiguous range of ids and results keep ascending id order.
+ * Ranges aren't split below two batches, since smaller splits cost extra
+ * requests. Fetches inside a ForkJoinPool are made as managed blocks, so
+ * the pool can start another worker while one waits for the server.
+ * 
+ * Tickets that no longer exist when their batch is fetched are skipped;
+ * any other fault fetching a ticket is thrown.
+ * @author James Femia <badgerr@gmail.com>
+ */
+final class TicketSpliterator implements Spliterator<Ticket> {
+  private final TracRpc rpc;
+  private final int[] ids;
+  private final int batchSize;
+  private int origin;
+  private final int fence;
+  private Iterator<Ticket> buffer = Collections.emptyIterator();
+  
+  /**
+   * @param rpc where to fetch tickets from
+   * @param ids sorted distinct ticket ids
+   * @param origin index of the first id to cover
+   * @param fence index after the last id to cover
+   * @param batchSize tickets fetched per request
+   */
+  TicketSpliterator(TracRpc rpc, int[] ids, int origin, int fence, int batchSize)
+  {
+    this.rpc = rpc;
+    this.ids = ids;
+    this.origin = origin;
+    this.fence = fence;
+    this.batchSize = batchSize;
+  }
+  
+  @Override
+  public boolean tryAdvance(Consumer<? super Ticket> action)
+  {
+    while(!buffer.hasNext()) {
+      if(origin >= fence) {
+        return false;
+      }
+      this.fetchBatch();
+    }
+    action.accept(buffer.next());
+    return true;
+  }
+  
+  private void fetchBatch()
+  {
+    int end = Math.min(origin + batchSize, fence);
+    final List<Integer> batch = new ArrayList<Integer>(end - origin);
+    for(int i = origin; i < end; ++i) {
+      batch.add(ids[i]);
+    }
+    origin = end;
+    
+    final List<List<Ticket>> tickets = new ArrayList<List<Ticket>>(1);
+    try {
+      ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+        @Override
+        public boolean block() {
+          tickets.add(TicketIterator.fetchExisting(rpc, batch));
+          return true;
+        }
+        
+        @Override
+        public boolean isReleasable() {
+          return !tickets.isEmpty();
+        }
+      });
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UncheckedTracRpcException(
+              new TracRpcException("Interrupted fetching tickets", e));
+    }
+    buffer = tickets.get(0).iterator();
+  }
+  
+  @Override
+  public Spliterator<Ticket> trySplit()
+  {
+    int mid = (origin + fence) >>> 1;
+    if(buffer.hasNext() || fence - origin < 2 * batchSize) {
+      return null;
+    }
+    TicketSpliterator prefix = new TicketSpliterator(rpc, ids, origin, mid, batchSize);
+    origin = mid;
+    return prefix;
+  }
+  
+  @Override
+  public long estimateSize()
+  {
+    return fence - origin + (buffer.hasNext() ? 1 : 0);
+  }
+  
+  @Override
+  public int characteristics()
+  {
+    return ORDERED | DISTINCT | NONNULL | IMMUTABLE;
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
+
+/**
+ * Storage for a local copy of a Trac instance's tickets, as kept up to date
+ * by a {@link TicketMirror TicketMirror}. Along with the tickets, a store
+ * holds the high-water mark: the Trac change time up to which its contents
+ * are known to be current.
+ * @author James Femia <badgerr@gmail.com>
+ */
+public interface TicketStore {
+  /**
+   * Gets a stored ticket
+   * @param id the ticket id
+   * @return the ticket, or null if it isn't stored
+   */
+  Ticket get(Integer id);
+  
+  /**
+   * Stores a ticket, replacing any ticket with the same id
+   * @param t the ticket, which must have an id
+   * @throws IOException if the store can't be written
+   */
+  void put(Ticket t) throws IOException;
+  
+  /**
+   * Removes a ticket, e.g. because it was deleted from Trac
+   * @param id the ticket id
+   * @throws IOException if the store can't be written
+   */
+  void remove(Integer id) throws IOException;
+  
+  /**
+   * Gets the ids of all stored tickets
+   * @return ticket ids
+   */
+  Collection<Integer> getIds();
+  
+  /**
+   * Gets the number of stored tickets
+   * @return ticket count
+   */
+  int size();
+  
+  /**
+   * Gets the Trac change time up to which the stored tickets are current
+   * @return the high-water mark, or null if the store has never been filled
+   */
+  Date getHighWaterMark();
+  
+  /**
+   * Sets the Trac change time up to which the stored tickets are current
+   * @param highWaterMark the new high-water mark
+   */
+  void setHighWaterMark(Date highWaterMark);
+  
+  /**
+   * Makes all changes durable, for stores that persist their contents.
+   * Called by the mirror after each sync.
+   * @throws IOException 
+   */
+  void flush() throws IOException;
+}
@@ -28,12 +28,15 @@ package uk.co.badgerr.trac;
  * @author James Femia <badgerr@gmail.com>
  */
 public final class TicketVersion extends BasicStruct {
+  private static final AttribMap.Layout LAYOUT = new AttribMap.Layout(
+          "name", "time", "description");
+
   /**
    * Create an empty ticket version
    */
   public TicketVersion()
   {
-
+    super(LAYOUT);
   }
 
   /**
@@ -42,6 +45,7 @@ public final class TicketVersion extends BasicStruct {
    */
   public TicketVersion(String name)
   {
+    this();
     this.setName(name);
   }
 }
@@ -23,20 +23,73 @@
  */
 package uk.co.badgerr.trac;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.ProxySelector;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import org.apache.xmlrpc.XmlRpcException;
 import org.apache.xmlrpc.client.XmlRpcClient;
 import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+import org.apache.xmlrpc.client.XmlRpcClientException;
+import org.apache.xmlrpc.client.XmlRpcClientRequestImpl;
+import org.apache.xmlrpc.client.XmlRpcHttpTransportException;
+import org.apache.xmlrpc.client.XmlRpcSun15HttpTransport;
+import org.apache.xmlrpc.client.XmlRpcSun15HttpTransportFactory;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.client.XmlRpcTransportFactory;
 
 /**
  * Trac XML RPC wrapper class
  * @author James Femia <badgerr@gmail.com>
  */
-public class TracRpc {
+public class TracRpc implements Closeable {
   private final XmlRpcClient rpcClient;
+  private final int multicallBatchSize;
+  private final int queryPageSize;
+  private HttpClientTransport.ConnectionLimits connectionLimits = null;
+  private HttpClientTransport.Factory httpClientTransport = null;
+  private TicketCache ticketCache = null;
+  private Date ticketCacheSince = null;
+  private ScheduledExecutorService ticketCacheRefresher = null;
+  private final CallListener callListener;
+  private final CallPolicy callPolicy;
+  private final ConcurrencyLimiter concurrencyLimiter;
+  private ExecutorService backgroundExecutor = null;
+  private final Map<ReadKey, CompletableFuture<Object>> inFlightReads;
+  private EndpointPool endpoints = null;
+  private final ThreadLocal<Boolean> pinnedToPrimary = new ThreadLocal<Boolean>();
+  private final AttachmentTransfer attachments;
   
   /**
    * Construct a TracRpc object to operate on a Trac instance
@@ -45,23 +98,192 @@ public class TracRpc {
    */
   public TracRpc(TracRpcConfiguration config) throws TracRpcException
   {
+    if(config.getMulticallBatchSize() < 1) {
+      throw new TracRpcException("Multicall batch size must be at least 1");
+    }
+    this.multicallBatchSize = config.getMulticallBatchSize();
+    if(config.getQueryPageSize() < 1) {
+      throw new TracRpcException("Query page size must be at least 1");
+    }
+    this.queryPageSize = config.getQueryPageSize();
+    this.callListener = config.getCallListener();
+    this.callPolicy = CallPolicy.isEnabled(config) ? new CallPolicy(config) : null;
+    this.concurrencyLimiter = config.getConcurrencyLimiter();
+    this.inFlightReads = config.getCoalesceReads() 
+            ? new ConcurrentHashMap<ReadKey, CompletableFuture<Object>>() : null;
+    
     try {
       XmlRpcClientConfigImpl rpcConfig = new XmlRpcClientConfigImpl();
       rpcConfig.setServerURL(new URL(config.getServerAddress()));
       rpcConfig.setBasicUserName(config.getBasicUserName());
       rpcConfig.setBasicPassword(config.getBasicPassword());
+      rpcConfig.setConnectionTimeout(config.getConnectionTimeout());
+      rpcConfig.setReplyTimeout(config.getReplyTimeout());
 
       this.rpcClient = new XmlRpcClient();
       this.rpcClient.setConfig(rpcConfig);
+      this.rpcClient.setTypeFactory(new TracTypeFactory(this.rpcClient));
+      if(this.callListener != null) {
+        this.rpcClient.setXmlWriterFactory(new PayloadCounter.WriterFactory(
+                this.rpcClient.getXmlWriterFactory()));
+      }
+      this.rpcClient.setTransportFactory(this.newTransportFactory(config));
+      this.attachments = new AttachmentTransfer(rpcConfig, 
+              config.getProxyHost() == null ? null : new Proxy(Proxy.Type.HTTP, 
+                      new InetSocketAddress(config.getProxyHost(), config.getProxyPort())));
+      if(!config.getReplicaAddresses().isEmpty()) {
+        this.endpoints = new EndpointPool(this.rpcClient, rpcConfig, 
+                config.getReplicaAddresses(), config.getHealthCheckInterval());
+      }
     }
     catch(MalformedURLException e) {
       //rethrow as a TracRpcException
       throw new TracRpcException(e.getMessage());
     }
+    
+    if(config.getTicketCacheSize() > 0) {
+      this.ticketCache = new TicketCache(config.getTicketCacheSize());
+      if(config.getTicketCacheRefreshInterval() > 0) {
+        this.startTicketCacheRefresher(config.getTicketCacheRefreshInterval());
+      }
+    }
+  }
+  
+  /**
+   * Starts a daemon thread polling for changed tickets to evict
+   * @param interval polling interval in milliseconds
+   */
+  private void startTicketCacheRefresher(long interval)
+  {
+    this.ticketCacheRefresher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "trac-rpc-ticket-cache");
+      t.setDaemon(true);
+      return t;
+    });
+    this.ticketCacheRefresher.scheduleWithFixedDelay(() -> {
+      try {
+        this.refreshTicketCache();
+      } catch(TracRpcException e) {
+        // the next poll covers the same period again
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+  
+  /**
+   * Creates the XML-RPC transport factory for the configured transport
+   * @param config Connection configuration
+   * @return a transport factory for rpcClient
+   * @throws TracRpcException if the transport isn't supported
+   */
+  private XmlRpcTransportFactory newTransportFactory(TracRpcConfiguration config)
+          throws TracRpcException
+  {
+    TracRpcConfiguration.Transport transport = config.getTransport();
+    boolean json = config.getProtocol() == TracRpcConfiguration.Protocol.JSON_RPC;
+    if(json && transport != TracRpcConfiguration.Transport.HTTP_CLIENT) {
+      throw new TracRpcException("JSON-RPC requires the HTTP_CLIENT transport");
+    }
+    if(transport == null || transport == TracRpcConfiguration.Transport.DEFAULT) {
+      final Proxy proxy = config.getProxyHost() == null ? null : 
+              new Proxy(Proxy.Type.HTTP, new InetSocketAddress(
+                      config.getProxyHost(), config.getProxyPort()));
+      if(this.callListener == null) {
+        XmlRpcSun15HttpTransportFactory factory = 
+                new XmlRpcSun15HttpTransportFactory(this.rpcClient);
+        if(proxy != null) {
+          factory.setProxy(proxy);
+        }
+        return factory;
+      }
+      // as the stock factory, but counting response bytes
+      return new XmlRpcSun15HttpTransportFactory(this.rpcClient) {
+        @Override
+        public XmlRpcTransport getTransport() {
+          XmlRpcSun15HttpTransport ret = new XmlRpcSun15HttpTransport(getClient()) {
+            @Override
+            protected InputStream getInputStream() throws XmlRpcException {
+              return PayloadCounter.countResponse(super.getInputStream());
+            }
+          };
+          ret.setSSLSocketFactory(getSSLSocketFactory());
+          if(proxy != null) {
+            ret.setProxy(proxy);
+          }
+          return ret;
+        }
+      };
+    }
+    
+    if(transport == TracRpcConfiguration.Transport.POOLED) {
+      this.connectionLimits = new HttpClientTransport.ConnectionLimits(
+              config.getMaxConnectionsPerHost(), config.getMaxTotalConnections());
+      return new HttpClientTransport.Factory(this.rpcClient, 
+              newHttpClient(config, java.net.http.HttpClient.Version.HTTP_1_1), 
+              config.getReplyTimeout(), null, this.connectionLimits);
+    }
+    
+    if(transport == TracRpcConfiguration.Transport.HTTP_CLIENT) {
+      this.httpClientTransport = new HttpClientTransport.Factory(this.rpcClient, 
+              newHttpClient(config, java.net.http.HttpClient.Version.HTTP_2), 
+              config.getReplyTimeout(), json ? new JsonRpcCodec() : null, null);
+      return this.httpClientTransport;
+    }
+    
+    throw new TracRpcException("Unsupported transport " + transport);
+  }
+  
+  /**
+   * Creates the java.net.http client for the POOLED and HTTP_CLIENT
+   * transports
+   * @param config Connection configuration
+   * @param version the preferred HTTP version
+   * @return a new HttpClient
+   */
+  private static java.net.http.HttpClient newHttpClient(TracRpcConfiguration config, 
+          java.net.http.HttpClient.Version version)
+  {
+    java.net.http.HttpClient.Builder builder = java.net.http.HttpClient.newBuilder()
+            .version(version);
+    if(config.getConnectionTimeout() > 0) {
+      builder.connectTimeout(Duration.ofMillis(config.getConnectionTimeout()));
+    }
+    if(config.getProxyHost() != null) {
+      builder.proxy(ProxySelector.of(new InetSocketAddress(
+              config.getProxyHost(), config.getProxyPort())));
+    }
+    return builder.build();
   }
   
   /**
-   * Manually call a function in the Trac RPC
+   * Stops the background threads held by this object. Calls made after
+   * closing a {@link TracRpcConfiguration.Transport#POOLED POOLED} 
+   * transport will fail; its idle connections are closed by the HTTP
+   * client when they time out.
+   */
+  @Override
+  public void close()
+  {
+    if(this.ticketCacheRefresher != null) {
+      this.ticketCacheRefresher.shutdownNow();
+    }
+    if(this.endpoints != null) {
+      this.endpoints.close();
+    }
+    if(this.connectionLimits != null) {
+      this.connectionLimits.close();
+    }
+    synchronized(this) {
+      if(this.backgroundExecutor != null) {
+        this.backgroundExecutor.shutdownNow();
+      }
+    }
+  }
+  
+  /**
+   * Manually call a function in the Trac RPC. Idempotent calls are retried
+   * and hedged as configured, and if read coalescing is enabled share one
+   * request with identical calls already in flight. Each caller gets its
+   * own copy of a shared result.
    * @param func Name of the function to call
    * @param params Parameters to pass to the function
    * @return The result of the function call
@@ -69,12 +291,510 @@ public class TracRpc {
    */
   public Object call(String func, Object[] params) throws TracRpcException
   {
+    if(this.inFlightReads == null) {
+      return this.dispatch(func, params);
+    }
+    if(!CallPolicy.isIdempotent(func, params)) {
+      try {
+        return this.dispatch(func, params);
+      } finally {
+        // reads already in flight may have started before this write
+        this.inFlightReads.clear();
+      }
+    }
+    if(this.isPinnedToPrimary()) {
+      return this.dispatch(func, params);
+    }
+    
+    ReadKey key = new ReadKey(func, params);
+    CompletableFuture<Object> shared = new CompletableFuture<Object>();
+    CompletableFuture<Object> existing = this.inFlightReads.putIfAbsent(key, shared);
+    if(existing != null) {
+      try {
+        return copyResult(existing.join());
+      } catch(CompletionException e) {
+        throw translate(e.getCause());
+      }
+    }
+    try {
+      Object ret = this.dispatch(func, params);
+      shared.complete(ret);
+      return copyResult(ret);
+    } catch(Throwable e) {
+      shared.completeExceptionally(e);
+      throw e;
+    } finally {
+      this.inFlightReads.remove(key, shared);
+    }
+  }
+  
+  /**
+   * Joins an identical read already in flight, or starts a new one
+   * @param func Name of the function to call
+   * @param params Parameters to pass to the function
+   * @param start starts the call if none is in flight
+   * @return future for the shared result
+   */
+  private CompletableFuture<Object> coalesceAsync(String func, Object[] params,
+          Supplier<CompletableFuture<Object>> start)
+  {
+    if(this.inFlightReads == null) {
+      return start.get();
+    }
+    if(!CallPolicy.isIdempotent(func, params)) {
+      // reads already in flight may have started before this write
+      return start.get().whenComplete((value, error) -> this.inFlightReads.clear());
+    }
+    
+    ReadKey key = new ReadKey(func, params);
+    CompletableFuture<Object> shared = new CompletableFuture<Object>();
+    CompletableFuture<Object> existing = this.inFlightReads.putIfAbsent(key, shared);
+    if(existing != null) {
+      return existing.thenApply(TracRpc::copyResult);
+    }
+    CompletableFuture<Object> result;
+    try {
+      result = start.get();
+    } catch(RuntimeException e) {
+      result = CompletableFuture.failedFuture(e);
+    }
+    result.whenComplete((value, error) -> {
+      this.inFlightReads.remove(key, shared);
+      if(error == null) {
+        shared.complete(value);
+      }
+      else {
+        shared.completeExceptionally(translate(
+                error instanceof CompletionException && error.getCause() != null 
+                ? error.getCause() : error));
+      }
+    });
+    return shared.thenApply(TracRpc::copyResult);
+  }
+  
+  /**
+   * Copies a call result so that the copy can be modified without affecting
+   * the original. Arrays, maps, lists, dates and byte arrays are copied;
+   * everything else XML-RPC returns is immutable.
+   * @param result the result of a call
+   * @return an independent copy of result
+   */
+  static Object copyResult(Object result)
+  {
+    if(result instanceof Object[]) {
+      Object[] array = (Object[])result;
+      Object[] ret = new Object[array.length];
+      for(int i = 0; i < array.length; ++i) {
+        ret[i] = copyResult(array[i]);
+      }
+      return ret;
+    }
+    if(result instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>)result;
+      HashMap<Object, Object> ret = new HashMap<Object, Object>(map.size() * 4 / 3 + 1);
+      for(Map.Entry<?, ?> e : map.entrySet()) {
+        ret.put(e.getKey(), copyResult(e.getValue()));
+      }
+      return ret;
+    }
+    if(result instanceof List) {
+      List<Object> ret = new ArrayList<Object>();
+      for(Object o : (List<?>)result) {
+        ret.add(copyResult(o));
+      }
+      return ret;
+    }
+    if(result instanceof Date) {
+      return ((Date)result).clone();
+    }
+    if(result instanceof byte[]) {
+      return ((byte[])result).clone();
+    }
+    return result;
+  }
+  
+  /**
+   * Identifies a read by its method name and parameters
+   */
+  private static final class ReadKey {
+    private final String func;
+    private final Object[] params;
+    private final int hash;
+    
+    ReadKey(String func, Object[] params)
+    {
+      this.func = func;
+      this.params = params;
+      this.hash = 31 * func.hashCode() + Arrays.deepHashCode(params);
+    }
+    
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+    
+    @Override
+    public boolean equals(Object o)
+    {
+      if(!(o instanceof ReadKey)) {
+        return false;
+      }
+      ReadKey other = (ReadKey)o;
+      return hash == other.hash && func.equals(other.func) 
+             && Arrays.deepEquals(params, other.params);
+    }
+  }
+  
+  /**
+   * Sends the current thread's synchronous calls to the primary only, or
+   * stops doing so. Used where several reads must see the same data, such
+   * as a change time watermark and the changes after it, which replicas
+   * lagging by different amounts wouldn't give.
+   * @param pinned whether to pin calls to the primary
+   * @return whether calls were pinned before, to restore afterwards
+   */
+  boolean pinToPrimary(boolean pinned)
+  {
+    boolean was = this.isPinnedToPrimary();
+    if(pinned) {
+      this.pinnedToPrimary.set(Boolean.TRUE);
+    }
+    else {
+      this.pinnedToPrimary.remove();
+    }
+    return was;
+  }
+  
+  private boolean isPinnedToPrimary()
+  {
+    return this.pinnedToPrimary.get() != null;
+  }
+  
+  /**
+   * Makes a call, applying the call policy if there is one
+   */
+  private Object dispatch(String func, Object[] params) throws TracRpcException
+  {
+    if(this.callPolicy == null) {
+      return this.attempt(func, params);
+    }
+    // hedges run on other threads, where the pin doesn't apply
+    if(!this.callPolicy.isHedged(func, params) || this.isPinnedToPrimary()) {
+      return this.callPolicy.call(func, params, () -> this.attempt(func, params));
+    }
+    
+    ExecutorService executor = this.getBackgroundExecutor();
+    try {
+      return this.callPolicy.callAsync(func, params, 
+              () -> this.attemptAsync(func, params, executor)).join();
+    } catch(CompletionException e) {
+      throw translate(e.getCause());
+    }
+  }
+  
+  /**
+   * Gets the threads that make blocking calls in the background, for
+   * hedged synchronous calls and query prefetching
+   */
+  private synchronized ExecutorService getBackgroundExecutor()
+  {
+    if(this.backgroundExecutor == null) {
+      this.backgroundExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "trac-rpc-background");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return this.backgroundExecutor;
+  }
+  
+  /**
+   * Makes a single attempt at a call, reporting it to the call listener
+   */
+  private Object attempt(String func, Object[] params) throws TracRpcException
+  {
+    if(this.callListener == null) {
+      return this.execute(func, params);
+    }
+    
+    this.callListener.callStarted(func);
+    long start = System.nanoTime();
+    PayloadCounter counter = PayloadCounter.start();
+    TracRpcException error = null;
+    try {
+      return this.execute(func, params);
+    } catch(TracRpcException e) {
+      error = e;
+      throw e;
+    } finally {
+      PayloadCounter.stop();
+      this.callListener.callCompleted(func, System.nanoTime() - start, 
+              counter.getRequestBytes(), counter.getResponseBytes(), error);
+    }
+  }
+  
+  private Object execute(String func, Object[] params) throws TracRpcException
+  {
+    if(this.concurrencyLimiter == null && this.endpoints == null) {
+      try {
+        return rpcClient.execute(func, params);
+      }
+      catch(XmlRpcException e) {
+        throw translate(e);
+      }
+    }
+    
+    if(this.concurrencyLimiter != null) {
+      this.concurrencyLimiter.acquire();
+    }
+    EndpointPool.Endpoint endpoint = this.endpoints == null ? null 
+            : this.endpoints.acquire(!this.isPinnedToPrimary() 
+                                     && CallPolicy.isIdempotent(func, params));
+    long start = System.nanoTime();
+    boolean dropped = false;
     try {
-      return rpcClient.execute(func, params);
+      return endpoint == null ? rpcClient.execute(func, params) 
+              : rpcClient.execute(endpoint.getConfig(), func, params);
     }
     catch(XmlRpcException e) {
-      throw new TracRpcException(e.getMessage());
+      TracRpcException ex = translate(e);
+      dropped = !ex.isFault();
+      throw ex;
+    }
+    catch(RuntimeException e) {
+      dropped = true;
+      throw e;
+    }
+    finally {
+      if(endpoint != null) {
+        this.endpoints.release(endpoint, dropped);
+      }
+      if(this.concurrencyLimiter != null) {
+        this.concurrencyLimiter.release(System.nanoTime() - start, dropped);
+      }
+    }
+  }
+  
+  /**
+   * Converts an exception from the XML-RPC library, telling server faults
+   * apart from transport and client errors
+   * @param e exception thrown by the XML-RPC library
+   * @return the equivalent TracRpcException
+   */
+  static TracRpcException translate(Throwable e)
+  {
+    if(e instanceof TracRpcException) {
+      return (TracRpcException)e;
+    }
+    if(e instanceof XmlRpcException && !(e instanceof XmlRpcClientException) 
+            && !(e instanceof XmlRpcHttpTransportException)
+            && !(e.getCause() instanceof IOException)) {
+      return new TracRpcException(e.getMessage(), ((XmlRpcException)e).code, e);
+    }
+    return new TracRpcException(e.getMessage(), e);
+  }
+  
+  /**
+   * Call a function in the Trac RPC without blocking the calling thread.
+   * With the {@link TracRpcConfiguration.Transport#HTTP_CLIENT HTTP_CLIENT}
+   * transport no thread is held while waiting for the server; other
+   * transports run the blocking {@link call call} on the given executor.
+   * Idempotent calls are retried and hedged as configured.
+   * @param func Name of the function to call
+   * @param params Parameters to pass to the function
+   * @param executor Where to run blocking calls for transports that need it
+   * @return future for the result, completing exceptionally with a
+   *         TracRpcException on failure
+   */
+  public CompletableFuture<Object> callAsync(final String func, 
+          final Object[] params, Executor executor)
+  {
+    if(this.callPolicy != null) {
+      return this.coalesceAsync(func, params, () -> this.callPolicy.callAsync(
+              func, params, () -> this.attemptAsync(func, params, executor)));
+    }
+    if(this.httpClientTransport == null) {
+      // call coalesces identical reads itself
+      return CompletableFuture.supplyAsync(() -> {
+        try {
+          return this.call(func, params);
+        } catch(TracRpcException e) {
+          throw new CompletionException(e);
+        }
+      }, executor);
+    }
+    return this.coalesceAsync(func, params, () -> this.sendAsync(func, params));
+  }
+  
+  /**
+   * Makes a single asynchronous attempt at a call
+   */
+  private CompletableFuture<Object> attemptAsync(String func, Object[] params,
+          Executor executor)
+  {
+    if(this.httpClientTransport == null) {
+      return CompletableFuture.supplyAsync(() -> {
+        try {
+          return this.attempt(func, params);
+        } catch(TracRpcException e) {
+          throw new CompletionException(e);
+        }
+      }, executor);
+    }
+    return this.sendAsync(func, params);
+  }
+  
+  /**
+   * Sends a call over the HTTP_CLIENT transport once the concurrency
+   * limiter allows
+   */
+  private CompletableFuture<Object> sendAsync(String func, Object[] params)
+  {
+    final ConcurrencyLimiter limiter = this.concurrencyLimiter;
+    if(limiter == null) {
+      return this.send(func, params);
+    }
+    return limiter.acquireAsync().thenCompose(permit -> {
+      long start = System.nanoTime();
+      CompletableFuture<Object> response;
+      try {
+        response = this.send(func, params);
+      } catch(RuntimeException e) {
+        limiter.release(0, true);
+        throw e;
+      }
+      return response.whenComplete((result, error) -> limiter.release(
+              System.nanoTime() - start, 
+              error != null && !translate(error).isFault()));
+    });
+  }
+  
+  /**
+   * Sends a call over the HTTP_CLIENT transport, reporting it to the call
+   * listener
+   */
+  private CompletableFuture<Object> send(String func, Object[] params)
+  {
+    final EndpointPool.Endpoint endpoint = this.endpoints == null ? null 
+            : this.endpoints.acquire(CallPolicy.isIdempotent(func, params));
+    XmlRpcClientRequestImpl request = new XmlRpcClientRequestImpl(
+            endpoint == null ? this.rpcClient.getClientConfig() 
+                             : endpoint.getConfig(), func, params);
+    CompletableFuture<Object> ret = new CompletableFuture<Object>();
+    final CallListener listener = this.callListener;
+    final long start = System.nanoTime();
+    final PayloadCounter counter;
+    if(listener != null) {
+      listener.callStarted(func);
+      counter = PayloadCounter.start();
+    }
+    else {
+      counter = null;
+    }
+    CompletableFuture<Object> response;
+    try {
+      response = this.httpClientTransport.newTransport().sendRequestAsync(request);
+    } catch(RuntimeException e) {
+      response = CompletableFuture.failedFuture(e);
+    } finally {
+      if(listener != null) {
+        PayloadCounter.stop();
+      }
+    }
+    response.whenComplete((result, error) -> {
+      TracRpcException e = null;
+      if(error != null) {
+        e = translate(error instanceof CompletionException && 
+                error.getCause() != null ? error.getCause() : error);
+      }
+      if(endpoint != null) {
+        this.endpoints.release(endpoint, e != null && !e.isFault());
+      }
+      if(listener != null) {
+        listener.callCompleted(func, System.nanoTime() - start, 
+                counter.getRequestBytes(), counter.getResponseBytes(), e);
+      }
+      if(e == null) {
+        ret.complete(result);
+      }
+      else {
+        ret.completeExceptionally(e);
+      }
+    });
+    return ret;
+  }
+  
+  /**
+   * Calls the same function many times with different parameters, using
+   * system.multicall to send up to the configured batch size of calls in
+   * each HTTP request.
+   * @param func Name of the function to call
+   * @param paramsList Parameters for each call
+   * @return For each call, in order, either its result or the
+   *         {@link TracRpcException TracRpcException} describing its fault
+   * @throws TracRpcException when a whole batch fails
+   */
+  protected Object[] multicall(String func, List<Object[]> paramsList) 
+          throws TracRpcException
+  {
+    return this.multicall(Collections.nCopies(paramsList.size(), func), 
+                          paramsList);
+  }
+  
+  /**
+   * Calls several functions using system.multicall, sending up to the
+   * configured batch size of calls in each HTTP request.
+   * @param funcs Name of the function for each call
+   * @param paramsList Parameters for each call
+   * @return For each call, in order, either its result or the
+   *         {@link TracRpcException TracRpcException} describing its fault
+   * @throws TracRpcException when a whole batch fails
+   */
+  protected Object[] multicall(List<String> funcs, List<Object[]> paramsList) 
+          throws TracRpcException
+  {
+    Object[] ret = new Object[paramsList.size()];
+    for(int start = 0; start < ret.length; start += multicallBatchSize) {
+      int end = Math.min(start + multicallBatchSize, ret.length);
+      Object[] calls = new Object[end - start];
+      for(int i = start; i < end; ++i) {
+        HashMap<String, Object> call = new HashMap<String, Object>();
+        call.put("methodName", funcs.get(i));
+        call.put("params", paramsList.get(i));
+        calls[i - start] = call;
+      }
+      
+      Object[] results = (Object[])this.call("system.multicall", 
+                                             new Object[]{calls});
+      if(results.length != calls.length) {
+        throw new TracRpcException("Unexpected response to system.multicall");
+      }
+      for(int i = 0; i < results.length; ++i) {
+        ret[start + i] = multicallResult(funcs.get(start + i), results[i]);
+      }
     }
+    return ret;
+  }
+  
+  /**
+   * Unpacks a single entry of a system.multicall response
+   * @param func the function that was called
+   * @param result the response entry
+   * @return the call result, or a TracRpcException if the call faulted
+   */
+  private static Object multicallResult(String func, Object result)
+  {
+    if(result instanceof Object[] && ((Object[])result).length == 1) {
+      return ((Object[])result)[0];
+    }
+    if(result instanceof HashMap) {
+      HashMap<?, ?> fault = (HashMap<?, ?>)result;
+      Object code = fault.get("faultCode");
+      return new TracRpcException(func + " failed: " + fault.get("faultString"), 
+              code instanceof Integer ? (Integer)code : 0, null);
+    }
+    return new TracRpcException("Unexpected response to " + func);
   }
   
   /**
@@ -86,12 +806,282 @@ public class TracRpc {
   public Ticket getTicket(Integer id) throws TracRpcException
   {
     Object[] params = new Object[]{id};
-    Object[] result = (Object[])this.call("ticket.get", params);
+    if(this.ticketCache == null) {
+      return ticketFromResult(this.call("ticket.get", params));
+    }
+    
+    Ticket t = this.ticketCache.get(id);
+    if(t == null) {
+      long generation = this.ticketCache.generation();
+      t = ticketFromResult(this.call("ticket.get", params));
+      this.ticketCache.put(t, generation);
+    }
+    return t;
+  }
+  
+  /**
+   * Gets information for many tickets, fetching them in batches with
+   * system.multicall rather than one request per ticket.
+   * @param ids the tickets to query
+   * @return the populated {@link Ticket Ticket} objects keyed by id, and an
+   *         error for each id that could not be fetched
+   * @throws TracRpcException when a whole batch fails
+   */
+  public BatchResult<Integer, Ticket> getTickets(Collection<Integer> ids) 
+          throws TracRpcException
+  {
+    BatchResult<Integer, Ticket> ret = new BatchResult<Integer, Ticket>();
+    List<Integer> requested = new ArrayList<Integer>(ids);
+    Ticket[] cached = new Ticket[requested.size()];
+    List<Integer> idList = new ArrayList<Integer>(requested.size());
+    long generation = 0;
+    if(this.ticketCache != null) {
+      generation = this.ticketCache.generation();
+      for(int i = 0; i < cached.length; ++i) {
+        cached[i] = this.ticketCache.get(requested.get(i));
+        if(cached[i] == null) {
+          idList.add(requested.get(i));
+        }
+      }
+    }
+    else {
+      idList.addAll(requested);
+    }
+    
+    List<Object[]> paramsList = new ArrayList<Object[]>(idList.size());
+    for(Integer id : idList) {
+      paramsList.add(new Object[]{id});
+    }
     
-    if(result.length >= 4) {
+    Object[] results = this.multicall("ticket.get", paramsList);
+    // merge the cache hits back in so everything is recorded in request order
+    int fetched = 0;
+    for(int i = 0; i < cached.length; ++i) {
+      Integer id = requested.get(i);
+      if(cached[i] != null) {
+        ret.addResult(id, cached[i]);
+        continue;
+      }
+      Object result = results[fetched++];
+      try {
+        if(result instanceof TracRpcException) {
+          throw (TracRpcException)result;
+        }
+        Ticket t = ticketFromResult(result);
+        if(this.ticketCache != null) {
+          this.ticketCache.put(t, generation);
+        }
+        ret.addResult(id, t);
+      } catch(TracRpcException e) {
+        ret.addError(id, e);
+      }
+    }
+    return ret;
+  }
+  
+  /**
+   * Runs a Trac query, returning its tickets lazily. Ids are fetched a page
+   * at a time and tickets in multicall batches, with the next batch fetched
+   * in the background while the current one is used, so only a couple of
+   * batches are ever held in memory.
+   * 
+   * Tickets deleted since the query ran are skipped. Other failures,
+   * including any other fault fetching a ticket, surface from hasNext or
+   * next as an {@link UncheckedTracRpcException UncheckedTracRpcException}.
+   * @param tracQuery a Trac query string such as "status=new&amp;order=priority",
+   *        without max or page
+   * @return the matching tickets, in query order
+   */
+  public Iterator<Ticket> query(String tracQuery)
+  {
+    return new TicketIterator(this, new QueryIds(this, tracQuery, this.queryPageSize),
+                              this.multicallBatchSize, this.getBackgroundExecutor());
+  }
+  
+  /**
+   * Runs a Trac query, as {@link query(String) query}, as a sequential
+   * stream. Close the stream to stop a background fetch early.
+   * @param tracQuery a Trac query string, without max or page
+   * @return the matching tickets, in query order
+   */
+  public Stream<Ticket> queryStream(String tracQuery)
+  {
+    TicketIterator it = (TicketIterator)this.query(tracQuery);
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, 
+            Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), 
+            false).onClose(it::close);
+  }
+  
+  /**
+   * Runs a Trac query, publishing its tickets to Reactive Streams
+   * subscribers. Tickets are fetched only as subscribers request them, in
+   * multicalls sized by the outstanding demand up to the multicall batch
+   * size, so a slow subscriber never causes tickets to be buffered. Each
+   * subscriber runs the query afresh.
+   * 
+   * A failed query or fetch is signalled with onError as a
+   * {@link TracRpcException TracRpcException}.
+   * @param tracQuery a Trac query string, without max or page
+   * @return publishes the matching tickets, in query order
+   */
+  public Flow.Publisher<Ticket> queryPublisher(String tracQuery)
+  {
+    return new TicketPublisher(this, 
+            () -> new QueryIds(this, tracQuery, this.queryPageSize), 
+            this.multicallBatchSize, this.getBackgroundExecutor());
+  }
+  
+  /**
+   * Publishes many tickets to Reactive Streams subscribers, fetching them
+   * as they are requested, as {@link queryPublisher(String) queryPublisher}.
+   * Tickets that don't exist are skipped; any other fault fetching a
+   * ticket is signalled with onError.
+   * @param ids the tickets to fetch
+   * @return publishes the tickets, in the order given
+   */
+  public Flow.Publisher<Ticket> ticketPublisher(Collection<Integer> ids)
+  {
+    final List<Integer> idList = new ArrayList<Integer>(ids);
+    return new TicketPublisher(this, idList::iterator, 
+            this.multicallBatchSize, this.getBackgroundExecutor());
+  }
+  
+  /**
+   * Runs a Trac query, returning every matching id. Ids are fetched a page
+   * at a time, as for {@link query(String) query}.
+   * @param tracQuery a Trac query string, without max or page
+   * @return the matching ticket ids, in query order
+   * @throws TracRpcException 
+   */
+  public List<Integer> queryIds(String tracQuery) throws TracRpcException
+  {
+    List<Integer> ret = new ArrayList<Integer>();
+    try {
+      new QueryIds(this, tracQuery, this.queryPageSize).forEachRemaining(ret::add);
+    } catch(UncheckedTracRpcException e) {
+      throw e.getCause();
+    }
+    return ret;
+  }
+  
+  /**
+   * Gets a spliterator over many tickets for parallel processing. It splits
+   * by id range, and each split fetches its tickets in its own multicall
+   * batches. Tickets that don't exist are skipped.
+   * 
+   * Failures, including any fault fetching a ticket other than it not
+   * existing, surface as an
+   * {@link UncheckedTracRpcException UncheckedTracRpcException}.
+   * @param ids the tickets to fetch
+   * @return tickets in ascending id order
+   */
+  public Spliterator<Ticket> ticketSpliterator(Collection<Integer> ids)
+  {
+    int[] sorted = ids.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+    return new TicketSpliterator(this, sorted, 0, sorted.length, 
+                                 this.multicallBatchSize);
+  }
+  
+  /**
+   * Gets a stream of many tickets, as {@link ticketSpliterator(Collection)
+   * ticketSpliterator}. A parallel stream fetches and processes different
+   * id ranges on each of its workers.
+   * @param ids the tickets to fetch
+   * @param parallel whether the stream is parallel
+   * @return tickets in ascending id order
+   */
+  public Stream<Ticket> ticketStream(Collection<Integer> ids, boolean parallel)
+  {
+    return StreamSupport.stream(this.ticketSpliterator(ids), parallel);
+  }
+  
+  /**
+   * Polls Trac for tickets changed since the last poll and evicts them from
+   * the ticket cache. Does nothing if the cache is disabled.
+   * 
+   * The poll resumes from the change time of the most recently changed
+   * ticket as of the previous poll, taken from Trac itself, so it doesn't
+   * depend on the client clock or time zone. The first poll has nothing to
+   * resume from, so it evicts every ticket. With replicas, polls only go
+   * to the primary.
+   * @throws TracRpcException 
+   */
+  public synchronized void refreshTicketCache() throws TracRpcException
+  {
+    if(this.ticketCache == null) {
+      return;
+    }
+    
+    // the watermark and the changes after it must come from the same place
+    boolean pinned = this.pinToPrimary(true);
+    try {
+      // Anything changed after this point has a later change time, so it's
+      // a safe place for the next poll to resume from
+      Date mark = this.latestChangeTime();
+      if(this.ticketCacheSince == null) {
+        this.ticketCache.clear();
+      }
+      else {
+        // change times have one second resolution, so overlap by a second
+        Date since = new Date(this.ticketCacheSince.getTime() - 1000);
+        Object[] changed = (Object[])this.call("ticket.getRecentChanges", 
+                                               new Object[]{since});
+        if(changed.length > 0) {
+          List<Integer> ids = new ArrayList<Integer>(changed.length);
+          for(Object id : changed) {
+            ids.add((Integer)id);
+          }
+          this.ticketCache.invalidate(ids);
+        }
+      }
+      this.ticketCacheSince = mark != null ? mark : new Date(0);
+    } finally {
+      this.pinToPrimary(pinned);
+    }
+  }
+  
+  /**
+   * Gets the change time of the most recently changed ticket, by Trac's
+   * clock
+   * @return the change time, or null if there are no tickets
+   * @throws TracRpcException 
+   */
+  Date latestChangeTime() throws TracRpcException
+  {
+    Object[] ids = (Object[])this.call("ticket.query", 
+            new Object[]{"max=1&order=changetime&desc=1"});
+    if(ids.length == 0) {
+      return null;
+    }
+    Object result = this.call("ticket.get", new Object[]{ids[0]});
+    return ticketFromResult(result).getModified();
+  }
+  
+  /**
+   * Gets the ticket cache, if enabled
+   * @return the cache, or null
+   */
+  TicketCache getTicketCache()
+  {
+    return this.ticketCache;
+  }
+  
+  /**
+   * Builds a Ticket from the result of a ticket.get call
+   * @param result the call result
+   * @return a populated Ticket
+   * @throws TracRpcException if the result is not a ticket
+   */
+  static Ticket ticketFromResult(Object result) throws TracRpcException
+  {
+    if(result instanceof Object[] && ((Object[])result).length >= 4) {
+      Object[] fields = (Object[])result;
       Ticket t = new Ticket();
-      t.setId((Integer)result[0]);
-      t.setAttribs((HashMap)result[3]);
+      t.setId((Integer)fields[0]);
+      @SuppressWarnings("unchecked")
+      Map<String, Object> attribs = (Map<String, Object>)fields[3];
+      ValuePool.TICKETS.canonicalize(attribs);
+      t.loadAttribs(attribs);
       return t;
     }
     
@@ -107,9 +1097,264 @@ public class TracRpc {
   public void createTicket(Ticket t, Boolean notify) throws TracRpcException
   {
     Object[] params = new Object[]{t.getSummary(), t.getDescription(), 
-                                   t.getAttribs(), notify};
+                                   t.attribs, notify};
     Integer id = (Integer)this.call("ticket.create", params);
     t.setId(id);
+    t.clearChanges();
+  }
+  
+  /**
+   * Sends the attributes of a ticket that have changed since it was read
+   * to Trac. The ticket's change token (_ts) is sent along with them, so
+   * the update fails if someone else changed the ticket in the meantime.
+   * On success the ticket is refreshed with Trac's view of it.
+   * @param t ticket read with {@link getTicket getTicket} and then modified
+   * @param comment comment to add to the ticket, may be empty
+   * @param notify whether to send notification emails
+   * @throws TracRpcException if the update is rejected, including when the
+   *         ticket was changed concurrently
+   */
+  public void updateTicket(Ticket t, String comment, Boolean notify) 
+          throws TracRpcException
+  {
+    Object result = this.call("ticket.update", 
+                              ticketUpdateParams(t, comment, notify));
+    reloadTicket(t, result);
+    if(this.ticketCache != null) {
+      this.ticketCache.invalidate(Collections.singleton(t.getId()));
+    }
+  }
+  
+  /**
+   * Builds ticket.update parameters holding only the changed attributes
+   * @param t the modified ticket
+   * @param comment comment to add, may be null
+   * @param notify whether to send notification emails
+   * @return parameters for ticket.update
+   */
+  static Object[] ticketUpdateParams(Ticket t, String comment, Boolean notify)
+  {
+    Map<String, Object> attribs = t.attribs;
+    HashMap<String, Object> changes = new HashMap<String, Object>();
+    for(String name : t.getChangedAttribs()) {
+      // XML-RPC has no null and Trac can't drop a field, so clear it instead
+      Object value = attribs.get(name);
+      changes.put(name, value == null ? "" : value);
+    }
+    Object ts = attribs.get("_ts");
+    if(ts != null) {
+      changes.put("_ts", ts);
+    }
+    return new Object[]{t.getId(), comment == null ? "" : comment, 
+                        changes, notify};
+  }
+  
+  /**
+   * Replaces a ticket's attributes with the result of ticket.update
+   * @param t the ticket that was updated
+   * @param result the call result
+   * @throws TracRpcException if the result is not a ticket
+   */
+  static void reloadTicket(Ticket t, Object result) throws TracRpcException
+  {
+    t.loadAttribs(ticketFromResult(result).attribs);
+  }
+  
+  /**
+   * Attaches a file to a ticket. The file is streamed into the request as
+   * it is base64 encoded, so it is never held in memory. Requests carry a
+   * Content-Length, so a stream of unknown length is first spooled to a
+   * temporary file; when the length is known, pass it or a FileChannel
+   * instead. Always sent as XML-RPC, bypassing retries and the concurrency
+   * limiter.
+   * @param id the ticket
+   * @param filename name of the attachment
+   * @param description attachment description
+   * @param data the file contents, read to the end but not closed
+   * @param replace whether to replace an attachment of the same name
+   * @return the name the attachment was stored under
+   * @throws TracRpcException 
+   */
+  public String putTicketAttachment(Integer id, String filename, 
+          String description, InputStream data, boolean replace) 
+          throws TracRpcException
+  {
+    return (String)this.attachments.upload("ticket.putAttachment", 
+            new Object[]{id, filename, description}, data, new Object[]{replace});
+  }
+  
+  /**
+   * Attaches a file of known length to a ticket, streaming it as
+   * {@link putTicketAttachment(Integer, String, String, InputStream, boolean)
+   * putTicketAttachment} does without spooling it first
+   * @param id the ticket
+   * @param filename name of the attachment
+   * @param description attachment description
+   * @param data the file contents, of which length bytes are read; not closed
+   * @param length the number of bytes in the file
+   * @param replace whether to replace an attachment of the same name
+   * @return the name the attachment was stored under
+   * @throws TracRpcException 
+   */
+  public String putTicketAttachment(Integer id, String filename, 
+          String description, InputStream data, long length, boolean replace) 
+          throws TracRpcException
+  {
+    return (String)this.attachments.upload("ticket.putAttachment", 
+            new Object[]{id, filename, description}, data, length, 
+            new Object[]{replace});
+  }
+  
+  /**
+   * Attaches the rest of a file channel to a ticket, streaming it as
+   * {@link putTicketAttachment(Integer, String, String, InputStream, boolean)
+   * putTicketAttachment} does without spooling it first
+   * @param id the ticket
+   * @param filename name of the attachment
+   * @param description attachment description
+   * @param data the file, read from its position to the end but not closed
+   * @param replace whether to replace an attachment of the same name
+   * @return the name the attachment was stored under
+   * @throws TracRpcException 
+   */
+  public String putTicketAttachment(Integer id, String filename, 
+          String description, FileChannel data, boolean replace) 
+          throws TracRpcException
+  {
+    return (String)this.attachments.upload("ticket.putAttachment", 
+            new Object[]{id, filename, description}, data, new Object[]{replace});
+  }
+  
+  /**
+   * Downloads a ticket attachment, decoding it into out as the response
+   * arrives, so it is never held in memory; for a FileChannel use
+   * Channels.newOutputStream.
+   * @param id the ticket
+   * @param filename name of the attachment
+   * @param out where the attachment is written, not closed
+   * @throws TracRpcException 
+   */
+  public void getTicketAttachment(Integer id, String filename, OutputStream out) 
+          throws TracRpcException
+  {
+    this.attachments.download("ticket.getAttachment", 
+            new Object[]{id, filename}, out);
+  }
+  
+  /**
+   * Creates many tickets, sending them in system.multicall batches of the
+   * configured batch size rather than one request per ticket. Each created
+   * ticket has its id set, as with {@link createTicket createTicket}.
+   * @param tickets populated tickets to create, consumed a batch at a time
+   *        so a lazily generated source (e.g. Stream::iterator) is fine
+   * @param notify whether to send notification emails
+   * @return the new id for each created ticket, and an error for each ticket
+   *         that could not be created. If a whole batch fails every ticket
+   *         in it gets that error, and the remaining batches are still sent.
+   */
+  public BatchResult<Ticket, Integer> createTickets(Iterable<Ticket> tickets, 
+          Boolean notify)
+  {
+    return this.createTickets(tickets, notify, 1);
+  }
+  
+  /**
+   * Creates many tickets as {@link createTickets(Iterable, Boolean) 
+   * createTickets} does, with up to the given number of batches in flight
+   * at once. No more than that many batches are read ahead of the server.
+   * Results are recorded in the order batches complete. A batch that fails
+   * with an unexpected exception is recorded as an error for every ticket
+   * in it, as a failed request is.
+   * @param tickets populated tickets to create
+   * @param notify whether to send notification emails
+   * @param concurrency maximum number of batches sent concurrently
+   * @return the new id for each created ticket, and an error for each ticket
+   *         that could not be created
+   */
+  public BatchResult<Ticket, Integer> createTickets(Iterable<Ticket> tickets, 
+          Boolean notify, int concurrency)
+  {
+    BatchResult<Ticket, Integer> ret = new BatchResult<Ticket, Integer>();
+    Iterator<Ticket> it = tickets.iterator();
+    if(concurrency <= 1) {
+      while(it.hasNext()) {
+        this.createTicketBatch(nextBatch(it), notify, ret);
+      }
+      return ret;
+    }
+    
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency, r -> {
+      Thread t = new Thread(r, "trac-rpc-create-tickets");
+      t.setDaemon(true);
+      return t;
+    });
+    Semaphore inFlight = new Semaphore(concurrency);
+    try {
+      while(it.hasNext()) {
+        List<Ticket> batch = nextBatch(it);
+        inFlight.acquireUninterruptibly();
+        executor.execute(() -> {
+          try {
+            this.createTicketBatch(batch, notify, ret);
+          } finally {
+            inFlight.release();
+          }
+        });
+      }
+      inFlight.acquireUninterruptibly(concurrency);
+    } finally {
+      executor.shutdown();
+    }
+    return ret;
+  }
+  
+  private List<Ticket> nextBatch(Iterator<Ticket> it)
+  {
+    List<Ticket> batch = new ArrayList<Ticket>(multicallBatchSize);
+    while(batch.size() < multicallBatchSize && it.hasNext()) {
+      batch.add(it.next());
+    }
+    return batch;
+  }
+  
+  private void createTicketBatch(List<Ticket> batch, Boolean notify, 
+          BatchResult<Ticket, Integer> ret)
+  {
+    List<Object[]> paramsList = new ArrayList<Object[]>(batch.size());
+    for(Ticket t : batch) {
+      paramsList.add(new Object[]{t.getSummary(), t.getDescription(), 
+                                  t.attribs, notify});
+    }
+    
+    Object[] results;
+    try {
+      results = this.multicall("ticket.create", paramsList);
+    } catch(TracRpcException e) {
+      for(Ticket t : batch) {
+        ret.addError(t, e);
+      }
+      return;
+    } catch(RuntimeException e) {
+      TracRpcException error = new TracRpcException(e);
+      for(Ticket t : batch) {
+        ret.addError(t, error);
+      }
+      return;
+    }
+    for(int i = 0; i < results.length; ++i) {
+      Ticket t = batch.get(i);
+      if(results[i] instanceof Integer) {
+        t.setId((Integer)results[i]);
+        t.clearChanges();
+        ret.addResult(t, (Integer)results[i]);
+      }
+      else if(results[i] instanceof TracRpcException) {
+        ret.addError(t, (TracRpcException)results[i]);
+      }
+      else {
+        ret.addError(t, new TracRpcException("Unexpected response to ticket.create"));
+      }
+    }
   }
   
   /**
@@ -188,14 +1433,27 @@ public class TracRpc {
       String name, String func, Class<T> clazz) throws TracRpcException
   {
     Object[] params = new Object[]{name};
-    HashMap result = (HashMap)this.call(func, params);
+    return basicStructFromResult(this.call(func, params), clazz);
+  }
+  
+  /**
+   * Builds a basic struct from the result of a get call
+   * @param <T> Type of object to create
+   * @param result the call result
+   * @param clazz The class to instantiate a T
+   * @return A new T populated with attributes
+   * @throws TracRpcException when T can't be created
+   */
+  static <T extends BasicStruct> T basicStructFromResult(
+      Object result, Class<T> clazz) throws TracRpcException
+  {
     try {
-      T ret = clazz.newInstance();
-      ret.setAttribs(result);
+      T ret = clazz.getDeclaredConstructor().newInstance();
+      @SuppressWarnings("unchecked")
+      Map<String, Object> attribs = (Map<String, Object>)result;
+      ret.loadAttribs(attribs);
       return ret;
-    } catch(IllegalAccessException e) {
-      throw new TracRpcException(e.getMessage());
-    } catch (InstantiationException e) {
+    } catch(ReflectiveOperationException e) {
       throw new TracRpcException(e.getMessage());
     }
   }
@@ -210,10 +1468,22 @@ public class TracRpc {
   protected <T extends BasicStruct> void sendBasicStruct(T obj, String func) 
           throws TracRpcException
   {
-    Object[] params = new Object[]{obj.getName(), obj.getAttribs()};
-    Integer result = (Integer)this.call(func, params);
-    if(result > 0) {
-      throw new TracRpcException(func + " returned error " + result.toString());
+    Object[] params = new Object[]{obj.getName(), obj.attribs};
+    checkSendBasicStructResult(func, this.call(func, params));
+  }
+  
+  /**
+   * Checks the result of a call that sent a basic struct
+   * @param func The RPC function that was called
+   * @param result the call result
+   * @throws TracRpcException if the RPC reported an error
+   */
+  static void checkSendBasicStructResult(String func, Object result) 
+          throws TracRpcException
+  {
+    Integer code = (Integer)result;
+    if(code > 0) {
+      throw new TracRpcException(func + " returned error " + code.toString());
     }
   }
   
@@ -226,9 +1496,18 @@ public class TracRpc {
    */
   public void setWikiPage(String name, String content) throws TracRpcException
   {
-    Object[] params = new Object[]{name,content,new HashMap()};
-    Boolean result = (Boolean)this.call("wiki.putPage", params);
-    if(!result) {
+    Object[] params = new Object[]{name,content,new HashMap<String, Object>()};
+    checkPutPageResult(this.call("wiki.putPage", params));
+  }
+  
+  /**
+   * Checks the result of a wiki.putPage call
+   * @param result the call result
+   * @throws TracRpcException if the page wasn't written
+   */
+  static void checkPutPageResult(Object result) throws TracRpcException
+  {
+    if(!(Boolean)result) {
       throw new TracRpcException("wiki.putPage returned false");
     }
   }
@@ -257,4 +1536,78 @@ public class TracRpc {
     content += extraContent;
     this.setWikiPage(name, content);
   }
+  
+  /**
+   * Attaches a file to a wiki page, streaming it as with
+   * {@link putTicketAttachment putTicketAttachment}. An existing
+   * attachment of the same name is replaced.
+   * @param name name of the page
+   * @param filename name of the attachment
+   * @param data the file contents, read to the end but not closed
+   * @throws TracRpcException 
+   */
+  public void putWikiAttachment(String name, String filename, InputStream data) 
+          throws TracRpcException
+  {
+    checkWikiAttachmentResult(this.attachments.upload("wiki.putAttachment", 
+            new Object[]{name + "/" + filename}, data, new Object[0]));
+  }
+  
+  /**
+   * Attaches a file of known length to a wiki page, streaming it as
+   * {@link putTicketAttachment(Integer, String, String, InputStream, long, boolean)
+   * putTicketAttachment} does. An existing attachment of the same name is
+   * replaced.
+   * @param name name of the page
+   * @param filename name of the attachment
+   * @param data the file contents, of which length bytes are read; not closed
+   * @param length the number of bytes in the file
+   * @throws TracRpcException 
+   */
+  public void putWikiAttachment(String name, String filename, InputStream data, 
+          long length) throws TracRpcException
+  {
+    checkWikiAttachmentResult(this.attachments.upload("wiki.putAttachment", 
+            new Object[]{name + "/" + filename}, data, length, new Object[0]));
+  }
+  
+  /**
+   * Attaches the rest of a file channel to a wiki page, streaming it as
+   * {@link putTicketAttachment(Integer, String, String, FileChannel, boolean)
+   * putTicketAttachment} does. An existing attachment of the same name is
+   * replaced.
+   * @param name name of the page
+   * @param filename name of the attachment
+   * @param data the file, read from its position to the end but not closed
+   * @throws TracRpcException 
+   */
+  public void putWikiAttachment(String name, String filename, FileChannel data) 
+          throws TracRpcException
+  {
+    checkWikiAttachmentResult(this.attachments.upload("wiki.putAttachment", 
+            new Object[]{name + "/" + filename}, data, new Object[0]));
+  }
+  
+  private static void checkWikiAttachmentResult(Object result) 
+          throws TracRpcException
+  {
+    if(!Boolean.TRUE.equals(result)) {
+      throw new TracRpcException("wiki.putAttachment returned false");
+    }
+  }
+  
+  /**
+   * Downloads a wiki page attachment, streaming it as with
+   * {@link getTicketAttachment getTicketAttachment}.
+   * @param name name of the page
+   * @param filename name of the attachment
+   * @param out where the attachment is written, not closed
+   * @throws TracRpcException 
+   */
+  public void getWikiAttachment(String name, String filename, OutputStream out) 
+          throws TracRpcException
+  {
+    this.attachments.download("wiki.getAttachment", 
+            new Object[]{name + "/" + filename}, out);
+  }
 }
@@ -0,0 +1,501 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous facade over {@link TracRpc TracRpc}. Every operation returns
+ * a CompletableFuture which completes with the result, or exceptionally with
+ * the {@link TracRpcException TracRpcException} the blocking call threw.
+ * 
+ * Operations run on a pluggable executor, which defaults to virtual threads
+ * where the JVM supports them. Single-call operations made through the
+ * {@link TracRpcConfiguration.Transport#HTTP_CLIENT HTTP_CLIENT} transport
+ * don't occupy a thread at all while waiting for the server. At most a fixed
+ * number of operations are in flight at once; the rest wait in a queue
+ * without occupying a thread.
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class TracRpcAsync implements Closeable {
+  /**
+   * Maximum number of operations in flight when none is specified
+   */
+  public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+  
+  private final TracRpc rpc;
+  private final Executor executor;
+  private final ExecutorService ownedExecutor;
+  private final Semaphore inFlight;
+  private final Queue<Task<?>> pending = new ConcurrentLinkedQueue<Task<?>>();
+  private final AtomicInteger drainRequests = new AtomicInteger();
+
+  /**
+   * A blocking TracRpc operation
+   * @param <T> result type
+   */
+  private interface Operation<T> {
+    T run() throws TracRpcException;
+  }
+  
+  /**
+   * Interprets the result of a single RPC call
+   * @param <T> result type
+   */
+  private interface Converter<T> {
+    T convert(Object result) throws TracRpcException;
+  }
+  
+  /**
+   * Construct an async facade using the default executor and in-flight limit
+   * @param rpc the TracRpc to perform operations with
+   */
+  public TracRpcAsync(TracRpc rpc)
+  {
+    this(rpc, null, DEFAULT_MAX_IN_FLIGHT);
+  }
+  
+  /**
+   * Construct an async facade
+   * @param rpc the TracRpc to perform operations with
+   * @param executor executor to run operations on, or null to use virtual
+   *        threads (or daemon threads on JVMs without virtual threads).
+   *        A supplied executor is not shut down by {@link close() close}.
+   * @param maxInFlight maximum number of operations running at once
+   */
+  public TracRpcAsync(TracRpc rpc, Executor executor, int maxInFlight)
+  {
+    if(maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1");
+    }
+    this.rpc = rpc;
+    this.inFlight = new Semaphore(maxInFlight);
+    if(executor == null) {
+      this.ownedExecutor = newDefaultExecutor();
+      this.executor = this.ownedExecutor;
+    }
+    else {
+      this.ownedExecutor = null;
+      this.executor = executor;
+    }
+  }
+  
+  /**
+   * Creates a virtual thread per task executor when available (Java 21+),
+   * falling back to a cached pool of daemon threads.
+   * @return a new executor
+   */
+  private static ExecutorService newDefaultExecutor()
+  {
+    try {
+      Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService)m.invoke(null);
+    } catch(ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "trac-rpc-async");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+  }
+  
+  /**
+   * Gets the blocking TracRpc this facade delegates to
+   * @return the TracRpc
+   */
+  public TracRpc getRpc() {
+    return rpc;
+  }
+  
+  /**
+   * Queues a blocking operation to run on the executor
+   * @param <T> result type
+   * @param op the operation
+   * @return future for the operation's result
+   */
+  private <T> CompletableFuture<T> submit(final Operation<T> op)
+  {
+    return enqueue(() -> CompletableFuture.supplyAsync(() -> {
+      try {
+        return op.run();
+      } catch(TracRpcException e) {
+        throw new CompletionException(e);
+      }
+    }, executor));
+  }
+  
+  /**
+   * Queues a single RPC call, which is made without blocking when the
+   * transport allows it
+   * @param <T> result type
+   * @param func Name of the function to call
+   * @param params Parameters to pass to the function
+   * @param converter interprets the call result
+   * @return future for the converted result
+   */
+  private <T> CompletableFuture<T> submitCall(final String func, 
+          final Object[] params, final Converter<T> converter)
+  {
+    return enqueue(() -> rpc.callAsync(func, params, executor)
+            .thenApply(result -> {
+              try {
+                return converter.convert(result);
+              } catch(TracRpcException e) {
+                throw new CompletionException(e);
+              }
+            }));
+  }
+  
+  /**
+   * Queues an operation and starts as many queued operations as the
+   * in-flight limit allows
+   * @param <T> result type
+   * @param start starts the operation
+   * @return future for the operation's result
+   */
+  private <T> CompletableFuture<T> enqueue(Supplier<CompletableFuture<T>> start)
+  {
+    Task<T> task = new Task<T>(start);
+    pending.add(task);
+    drain();
+    return task.future;
+  }
+  
+  /**
+   * Starts queued operations while permits are available. Each finished
+   * operation releases its permit and drains again, so nothing is left
+   * queued while there is capacity. Only one thread drains at a time; a
+   * drain requested meanwhile (including by an operation that completed
+   * as it was started) makes that thread loop again rather than recurse.
+   */
+  private void drain()
+  {
+    if(drainRequests.getAndIncrement() != 0) {
+      return;
+    }
+    int missed = 1;
+    do {
+      while(!pending.isEmpty() && inFlight.tryAcquire()) {
+        Task<?> task = pending.poll();
+        if(task == null) {
+          inFlight.release();
+          continue;
+        }
+        task.start().whenComplete((result, error) -> {
+          inFlight.release();
+          drain();
+        });
+      }
+      missed = drainRequests.addAndGet(-missed);
+    } while(missed != 0);
+  }
+  
+  /**
+   * An operation waiting to start, and the future it completes
+   * @param <T> result type
+   */
+  private static final class Task<T> {
+    final Supplier<CompletableFuture<T>> start;
+    final CompletableFuture<T> future = new CompletableFuture<T>();
+    
+    Task(Supplier<CompletableFuture<T>> start)
+    {
+      this.start = start;
+    }
+    
+    /**
+     * Starts the operation, passing its outcome on to this task's future.
+     * An operation that fails to start fails the future.
+     * @return future completing when the operation finishes
+     */
+    CompletableFuture<T> start()
+    {
+      CompletableFuture<T> running;
+      try {
+        running = start.get();
+      } catch(RuntimeException e) {
+        running = CompletableFuture.failedFuture(e);
+      }
+      return running.whenComplete((result, error) -> {
+        if(error == null) {
+          future.complete(result);
+        }
+        else {
+          future.completeExceptionally(
+                  error instanceof CompletionException && error.getCause() != null
+                  ? error.getCause() : error);
+        }
+      });
+    }
+  }
+  
+  /**
+   * Asynchronously call a function in the Trac RPC
+   * @param func Name of the function to call
+   * @param params Parameters to pass to the function
+   * @return future for the result of the function call
+   * @see TracRpc#call
+   */
+  public CompletableFuture<Object> call(String func, Object[] params)
+  {
+    return submitCall(func, params, result -> result);
+  }
+  
+  /**
+   * Asynchronously gets ticket information
+   * @param id the ticket to query
+   * @return future for the populated ticket
+   * @see TracRpc#getTicket
+   */
+  public CompletableFuture<Ticket> getTicket(Integer id)
+  {
+    final TicketCache cache = rpc.getTicketCache();
+    if(cache == null) {
+      return submitCall("ticket.get", new Object[]{id}, TracRpc::ticketFromResult);
+    }
+    
+    Ticket cached = cache.get(id);
+    if(cached != null) {
+      return CompletableFuture.completedFuture(cached);
+    }
+    final long generation = cache.generation();
+    return submitCall("ticket.get", new Object[]{id}, result -> {
+      Ticket t = TracRpc.ticketFromResult(result);
+      cache.put(t, generation);
+      return t;
+    });
+  }
+  
+  /**
+   * Asynchronously gets information for many tickets using system.multicall
+   * @param ids the tickets to query
+   * @return future for the tickets and per-id errors
+   * @see TracRpc#getTickets
+   */
+  public CompletableFuture<BatchResult<Integer, Ticket>> getTickets(
+          Collection<Integer> ids)
+  {
+    return submit(() -> rpc.getTickets(ids));
+  }
+  
+  /**
+   * Asynchronously creates a ticket. The ticket id is set on completion.
+   * Its attributes are copied before this returns, so changing the ticket
+   * afterwards doesn't change what is sent.
+   * @param t ticket to create
+   * @param notify whether to send notification emails
+   * @return future completing when the ticket has been created
+   * @see TracRpc#createTicket
+   */
+  public CompletableFuture<Void> createTicket(Ticket t, Boolean notify)
+  {
+    // params are serialised later on another thread, so snapshot them now
+    Object[] params = new Object[]{t.getSummary(), t.getDescription(), 
+                                   new HashMap<String, Object>(t.attribs), notify};
+    return submitCall("ticket.create", params, result -> {
+      t.setId((Integer)result);
+      t.clearChanges();
+      return null;
+    });
+  }
+  
+  /**
+   * Asynchronously sends the changed attributes of a ticket. The ticket is
+   * refreshed with Trac's view of it on completion.
+   * @param t ticket read from Trac and then modified
+   * @param comment comment to add to the ticket, may be empty
+   * @param notify whether to send notification emails
+   * @return future completing when the ticket has been updated
+   * @see TracRpc#updateTicket
+   */
+  public CompletableFuture<Void> updateTicket(Ticket t, String comment, 
+          Boolean notify)
+  {
+    Object[] params = TracRpc.ticketUpdateParams(t, comment, notify);
+    return submitCall("ticket.update", params, result -> {
+      TracRpc.reloadTicket(t, result);
+      TicketCache cache = rpc.getTicketCache();
+      if(cache != null) {
+        cache.invalidate(Collections.singleton(t.getId()));
+      }
+      return null;
+    });
+  }
+  
+  /**
+   * Asynchronously creates a milestone
+   * @param m populated milestone object
+   * @return future completing when the milestone has been created
+   * @see TracRpc#createMilestone
+   */
+  public CompletableFuture<Void> createMilestone(Milestone m)
+  {
+    return sendBasicStruct(m, "ticket.milestone.create");
+  }
+  
+  /**
+   * Asynchronously gets a milestone by name
+   * @param name name of the milestone to get
+   * @return future for the populated milestone
+   * @see TracRpc#getMilestone
+   */
+  public CompletableFuture<Milestone> getMilestone(String name)
+  {
+    return submitCall("ticket.milestone.get", new Object[]{name}, 
+            result -> TracRpc.basicStructFromResult(result, Milestone.class));
+  }
+  
+  /**
+   * Asynchronously updates attributes on an existing milestone
+   * @param m milestone with updated values
+   * @return future completing when the milestone has been updated
+   * @see TracRpc#updateMilestone
+   */
+  public CompletableFuture<Void> updateMilestone(Milestone m)
+  {
+    return sendBasicStruct(m, "ticket.milestone.update");
+  }
+  
+  /**
+   * Asynchronously creates a new ticket version entry
+   * @param tv TicketVersion populated with attributes
+   * @return future completing when the version has been created
+   * @see TracRpc#createTicketVersion
+   */
+  public CompletableFuture<Void> createTicketVersion(TicketVersion tv)
+  {
+    return sendBasicStruct(tv, "ticket.version.create");
+  }
+  
+  /**
+   * Asynchronously gets a ticket version by name
+   * @param name name of the ticket version to get
+   * @return future for the populated ticket version
+   * @see TracRpc#getTicketVersion
+   */
+  public CompletableFuture<TicketVersion> getTicketVersion(String name)
+  {
+    return submitCall("ticket.version.get", new Object[]{name}, 
+            result -> TracRpc.basicStructFromResult(result, TicketVersion.class));
+  }
+  
+  /**
+   * Asynchronously updates values of a ticket version
+   * @param tv TicketVersion with updated attributes
+   * @return future completing when the version has been updated
+   * @see TracRpc#updateTicketVersion
+   */
+  public CompletableFuture<Void> updateTicketVersion(TicketVersion tv)
+  {
+    return sendBasicStruct(tv, "ticket.version.update");
+  }
+  
+  /**
+   * Asynchronously sets the contents of a wiki page
+   * @param name the name of the page
+   * @param content the new content of the page
+   * @return future completing when the page has been written
+   * @see TracRpc#setWikiPage
+   */
+  public CompletableFuture<Void> setWikiPage(String name, String content)
+  {
+    return submitCall("wiki.putPage", new Object[]{name, content, new HashMap<String, Object>()}, 
+            result -> {
+              TracRpc.checkPutPageResult(result);
+              return null;
+            });
+  }
+  
+  /**
+   * Asynchronously gets the contents of a wiki page
+   * @param name name of the page to get
+   * @return future for the page contents
+   * @see TracRpc#getWikiPage
+   */
+  public CompletableFuture<String> getWikiPage(String name)
+  {
+    return submitCall("wiki.getPage", new Object[]{name}, result -> (String)result);
+  }
+  
+  /**
+   * Asynchronously appends text to a wiki page
+   * @param name name of the page
+   * @param extraContent content to add to the page
+   * @return future completing when the page has been written
+   * @see TracRpc#appendWikiPage
+   */
+  public CompletableFuture<Void> appendWikiPage(String name, String extraContent)
+  {
+    return submit(() -> {
+      rpc.appendWikiPage(name, extraContent);
+      return null;
+    });
+  }
+  
+  /**
+   * Queues a call sending a basic struct to the RPC
+   * @param obj The object to send
+   * @param func The RPC function to call (expects name and struct params)
+   * @return future completing when the call succeeds
+   */
+  private CompletableFuture<Void> sendBasicStruct(BasicStruct obj, String func)
+  {
+    return submitCall(func, new Object[]{obj.getName(), 
+                                         new HashMap<String, Object>(obj.attribs)}, 
+            result -> {
+              TracRpc.checkSendBasicStructResult(func, result);
+              return null;
+            });
+  }
+  
+  /**
+   * Shuts down the default executor, if this facade created it.
+   * Operations already started are allowed to finish.
+   */
+  @Override
+  public void close()
+  {
+    if(ownedExecutor != null) {
+      ownedExecutor.shutdown();
+    }
+  }
+}
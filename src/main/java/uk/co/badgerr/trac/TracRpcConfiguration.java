@@ -23,14 +23,82 @@
  */
 package uk.co.badgerr.trac;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Configures the RPC connection
  * @author James Femia <badgerr@gmail.com>
  */
 public class TracRpcConfiguration {
+  /**
+   * HTTP transports available for talking to the Trac RPC
+   */
+  public enum Transport {
+    /**
+     * The JDK HttpURLConnection, as used by the XML-RPC library by default
+     */
+    DEFAULT,
+    /**
+     * java.net.http.HttpClient over HTTP/1.1, reusing a pool of persistent
+     * keep-alive connections bounded by
+     * {@link TracRpcConfiguration#setMaxConnectionsPerHost(int) setMaxConnectionsPerHost}
+     * and {@link TracRpcConfiguration#setMaxTotalConnections(int) setMaxTotalConnections}
+     */
+    POOLED,
+    /**
+     * The non-blocking java.net.http.HttpClient, which multiplexes requests
+     * over HTTP/2 where the server supports it. Required for
+     * {@link TracRpc#callAsync TracRpc.callAsync} to avoid holding a thread
+     * per call.
+     */
+    HTTP_CLIENT
+  }
+  
+  /**
+   * Wire formats the Trac RPC plugin serves
+   */
+  public enum Protocol {
+    /**
+     * XML-RPC, the default
+     */
+    XML_RPC,
+    /**
+     * JSON-RPC, which is several times smaller and quicker to parse for
+     * ticket structs. The plugin serves it from the same address, telling
+     * the two apart by Content-Type. Requires the
+     * {@link Transport#HTTP_CLIENT HTTP_CLIENT} transport.
+     */
+    JSON_RPC
+  }
+  
   private String serverAddress;
   private String basicUserName;
   private String basicPassword;
+  private int multicallBatchSize = 100;
+  private int queryPageSize = 1000;
+  private Transport transport = Transport.DEFAULT;
+  private Protocol protocol = Protocol.XML_RPC;
+  private int connectionTimeout = 0;
+  private int replyTimeout = 0;
+  private int maxConnectionsPerHost = 20;
+  private int maxTotalConnections = 100;
+  private String proxyHost;
+  private int proxyPort = 8080;
+  private int ticketCacheSize = 0;
+  private long ticketCacheRefreshInterval = 0;
+  private CallListener callListener = null;
+  private int maxRetries = 0;
+  private long retryBackoff = 100;
+  private long retryMaxBackoff = 5000;
+  private int circuitBreakerThreshold = 0;
+  private long circuitBreakerOpenTime = 30000;
+  private double hedgePercentile = 0;
+  private ConcurrencyLimiter concurrencyLimiter = null;
+  private boolean coalesceReads = false;
+  private List<String> replicaAddresses = Collections.emptyList();
+  private long healthCheckInterval = 5000;
 
   /**
    * Gets the configured server address string
@@ -80,4 +148,405 @@ public class TracRpcConfiguration {
   public void setBasicPassword(String basicPassword) {
     this.basicPassword = basicPassword;
   }
+
+  /**
+   * Gets the maximum number of calls sent in one system.multicall request
+   * @return The batch size set by {@link setMulticallBatchSize(int) setMulticallBatchSize}
+   */
+  public int getMulticallBatchSize() {
+    return multicallBatchSize;
+  }
+
+  /**
+   * Sets the maximum number of calls sent in one system.multicall request.
+   * Bulk operations such as {@link TracRpc#getTickets getTickets} split
+   * their work into batches of this size. Defaults to 100.
+   * @param multicallBatchSize The batch size, must be at least 1
+   */
+  public void setMulticallBatchSize(int multicallBatchSize) {
+    this.multicallBatchSize = multicallBatchSize;
+  }
+
+  /**
+   * Gets the number of ids fetched per ticket.query request
+   * @return The page size set by {@link setQueryPageSize(int) setQueryPageSize}
+   */
+  public int getQueryPageSize() {
+    return queryPageSize;
+  }
+
+  /**
+   * Sets the number of ticket ids fetched per ticket.query request by
+   * {@link TracRpc#query TracRpc.query}. Defaults to 1000.
+   * @param queryPageSize The page size, must be at least 1
+   */
+  public void setQueryPageSize(int queryPageSize) {
+    this.queryPageSize = queryPageSize;
+  }
+
+  /**
+   * Gets the configured HTTP transport
+   * @return The transport set by {@link setTransport(Transport) setTransport}
+   */
+  public Transport getTransport() {
+    return transport;
+  }
+
+  /**
+   * Sets the HTTP transport used to talk to the Trac RPC.
+   * Defaults to {@link Transport#DEFAULT DEFAULT}.
+   * @param transport The transport to use
+   */
+  public void setTransport(Transport transport) {
+    this.transport = transport;
+  }
+
+  /**
+   * Gets the configured wire format
+   * @return The protocol set by {@link setProtocol(Protocol) setProtocol}
+   */
+  public Protocol getProtocol() {
+    return protocol;
+  }
+
+  /**
+   * Sets the wire format used to talk to the Trac RPC.
+   * Defaults to {@link Protocol#XML_RPC XML_RPC}.
+   * @param protocol The protocol to use
+   */
+  public void setProtocol(Protocol protocol) {
+    this.protocol = protocol;
+  }
+
+  /**
+   * Gets the configured connection timeout
+   * @return The timeout set by {@link setConnectionTimeout(int) setConnectionTimeout}
+   */
+  public int getConnectionTimeout() {
+    return connectionTimeout;
+  }
+
+  /**
+   * Sets how long to wait for a connection to the server to be established.
+   * @param connectionTimeout Timeout in milliseconds, or 0 to wait forever
+   */
+  public void setConnectionTimeout(int connectionTimeout) {
+    this.connectionTimeout = connectionTimeout;
+  }
+
+  /**
+   * Gets the configured reply timeout
+   * @return The timeout set by {@link setReplyTimeout(int) setReplyTimeout}
+   */
+  public int getReplyTimeout() {
+    return replyTimeout;
+  }
+
+  /**
+   * Sets how long to wait for the server to reply to a request.
+   * @param replyTimeout Timeout in milliseconds, or 0 to wait forever
+   */
+  public void setReplyTimeout(int replyTimeout) {
+    this.replyTimeout = replyTimeout;
+  }
+
+  /**
+   * Gets the configured connection limit per host
+   * @return The limit set by {@link setMaxConnectionsPerHost(int) setMaxConnectionsPerHost}
+   */
+  public int getMaxConnectionsPerHost() {
+    return maxConnectionsPerHost;
+  }
+
+  /**
+   * Sets the maximum number of pooled connections to a single host. Calls
+   * beyond this wait for a connection to come free. Only used by the {@link Transport#POOLED POOLED} transport. Defaults to 20.
+   * @param maxConnectionsPerHost The connection limit per host
+   */
+  public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+  }
+
+  /**
+   * Gets the configured total connection limit
+   * @return The limit set by {@link setMaxTotalConnections(int) setMaxTotalConnections}
+   */
+  public int getMaxTotalConnections() {
+    return maxTotalConnections;
+  }
+
+  /**
+   * Sets the maximum number of pooled connections across all hosts. Calls
+   * beyond this wait for a connection to come free. Only used by the {@link Transport#POOLED POOLED} transport. Defaults to 100.
+   * @param maxTotalConnections The total connection limit
+   */
+  public void setMaxTotalConnections(int maxTotalConnections) {
+    this.maxTotalConnections = maxTotalConnections;
+  }
+
+  /**
+   * Gets the configured HTTP proxy host
+   * @return The host set by {@link setProxy(String, int) setProxy}, or null
+   */
+  public String getProxyHost() {
+    return proxyHost;
+  }
+
+  /**
+   * Gets the configured HTTP proxy port
+   * @return The port set by {@link setProxy(String, int) setProxy}
+   */
+  public int getProxyPort() {
+    return proxyPort;
+  }
+
+  /**
+   * Sets an HTTP proxy to connect to the Trac RPC through.
+   * @param proxyHost The proxy host name, or null to connect directly
+   * @param proxyPort The proxy port
+   */
+  public void setProxy(String proxyHost, int proxyPort) {
+    this.proxyHost = proxyHost;
+    this.proxyPort = proxyPort;
+  }
+
+  /**
+   * Gets the configured ticket cache size
+   * @return The size set by {@link setTicketCacheSize(int) setTicketCacheSize}
+   */
+  public int getTicketCacheSize() {
+    return ticketCacheSize;
+  }
+
+  /**
+   * Sets the number of tickets to keep in a read-through cache in front of
+   * {@link TracRpc#getTicket getTicket}. The least recently used tickets are
+   * evicted first. Defaults to 0, which disables the cache.
+   * @param ticketCacheSize Maximum number of cached tickets
+   */
+  public void setTicketCacheSize(int ticketCacheSize) {
+    this.ticketCacheSize = ticketCacheSize;
+  }
+
+  /**
+   * Gets the configured ticket cache refresh interval
+   * @return The interval set by {@link setTicketCacheRefreshInterval(long) setTicketCacheRefreshInterval}
+   */
+  public long getTicketCacheRefreshInterval() {
+    return ticketCacheRefreshInterval;
+  }
+
+  /**
+   * Sets how often to poll Trac for changed tickets and evict them from the
+   * ticket cache. Defaults to 0, in which case the cache is only refreshed
+   * by calling {@link TracRpc#refreshTicketCache refreshTicketCache}.
+   * @param ticketCacheRefreshInterval Interval in milliseconds
+   */
+  public void setTicketCacheRefreshInterval(long ticketCacheRefreshInterval) {
+    this.ticketCacheRefreshInterval = ticketCacheRefreshInterval;
+  }
+
+  /**
+   * Gets the configured call listener
+   * @return The listener set by {@link setCallListener(CallListener) setCallListener}
+   */
+  public CallListener getCallListener() {
+    return callListener;
+  }
+
+  /**
+   * Sets a listener told about every RPC call, e.g. a 
+   * {@link CallMetrics CallMetrics} to collect latency and size statistics.
+   * Defaults to null, for no instrumentation.
+   * @param callListener Listener for all calls, or null
+   */
+  public void setCallListener(CallListener callListener) {
+    this.callListener = callListener;
+  }
+
+  /**
+   * Gets the configured number of retries
+   * @return The retry count set by {@link setMaxRetries(int) setMaxRetries}
+   */
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * Sets how many times an idempotent call (a get... or query method) is
+   * retried after a transport error. Faults returned by Trac are never
+   * retried. Defaults to 0.
+   * @param maxRetries Number of retries, 0 to disable
+   */
+  public void setMaxRetries(int maxRetries) {
+    this.maxRetries = maxRetries;
+  }
+
+  /**
+   * Gets the configured base retry backoff
+   * @return The backoff set by {@link setRetryBackoff(long) setRetryBackoff}
+   */
+  public long getRetryBackoff() {
+    return retryBackoff;
+  }
+
+  /**
+   * Sets the base delay before retrying. The delay doubles with each retry,
+   * and a random wait up to it is chosen so that many clients don't retry
+   * together. Defaults to 100.
+   * @param retryBackoff Base delay in milliseconds
+   */
+  public void setRetryBackoff(long retryBackoff) {
+    this.retryBackoff = retryBackoff;
+  }
+
+  /**
+   * Gets the configured maximum retry backoff
+   * @return The backoff set by {@link setRetryMaxBackoff(long) setRetryMaxBackoff}
+   */
+  public long getRetryMaxBackoff() {
+    return retryMaxBackoff;
+  }
+
+  /**
+   * Sets the longest delay before retrying. Defaults to 5000.
+   * @param retryMaxBackoff Maximum delay in milliseconds
+   */
+  public void setRetryMaxBackoff(long retryMaxBackoff) {
+    this.retryMaxBackoff = retryMaxBackoff;
+  }
+
+  /**
+   * Gets the configured circuit breaker threshold
+   * @return The threshold set by {@link setCircuitBreakerThreshold(int) setCircuitBreakerThreshold}
+   */
+  public int getCircuitBreakerThreshold() {
+    return circuitBreakerThreshold;
+  }
+
+  /**
+   * Sets how many consecutive transport errors open the circuit breaker.
+   * While open, calls fail at once without contacting the server.
+   * Defaults to 0.
+   * @param circuitBreakerThreshold Number of failures, 0 to disable
+   */
+  public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+    this.circuitBreakerThreshold = circuitBreakerThreshold;
+  }
+
+  /**
+   * Gets the configured circuit breaker open time
+   * @return The time set by {@link setCircuitBreakerOpenTime(long) setCircuitBreakerOpenTime}
+   */
+  public long getCircuitBreakerOpenTime() {
+    return circuitBreakerOpenTime;
+  }
+
+  /**
+   * Sets how long the circuit breaker stays open before letting a single
+   * trial call through. Defaults to 30000.
+   * @param circuitBreakerOpenTime Open time in milliseconds
+   */
+  public void setCircuitBreakerOpenTime(long circuitBreakerOpenTime) {
+    this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+  }
+
+  /**
+   * Gets the configured hedging percentile
+   * @return The percentile set by {@link setHedgePercentile(double) setHedgePercentile}
+   */
+  public double getHedgePercentile() {
+    return hedgePercentile;
+  }
+
+  /**
+   * Sets when idempotent calls are hedged. If a call takes longer than this
+   * percentile of the method's recent latencies, a second request is sent
+   * and whichever answers first is used. 95 sends about one extra request
+   * in twenty. Defaults to 0.
+   * @param hedgePercentile Percentile between 0 and 100, 0 to disable
+   */
+  public void setHedgePercentile(double hedgePercentile) {
+    this.hedgePercentile = hedgePercentile;
+  }
+
+  /**
+   * Gets the configured concurrency limiter
+   * @return The limiter set by {@link setConcurrencyLimiter(ConcurrencyLimiter) setConcurrencyLimiter}
+   */
+  public ConcurrencyLimiter getConcurrencyLimiter() {
+    return concurrencyLimiter;
+  }
+
+  /**
+   * Sets a limiter adapting the number of requests in flight to the
+   * server's latency. Give every TracRpc using the same server the same
+   * limiter, e.g. {@link ConcurrencyLimiter#forServer(String) 
+   * ConcurrencyLimiter.forServer}. Defaults to null, for no limit.
+   * @param concurrencyLimiter The limiter, or null
+   */
+  public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+    this.concurrencyLimiter = concurrencyLimiter;
+  }
+
+  /**
+   * Gets whether identical concurrent reads are coalesced
+   * @return The setting set by {@link setCoalesceReads(boolean) setCoalesceReads}
+   */
+  public boolean getCoalesceReads() {
+    return coalesceReads;
+  }
+
+  /**
+   * Sets whether a read (a get... or query method) made while an identical
+   * one is in flight waits for and shares that call's result instead of
+   * sending its own request. Each caller gets its own copy of the result.
+   * A write made through the same TracRpc stops later reads from joining
+   * reads that were already in flight, but a read can still return data
+   * from before a write another client made while it was in flight.
+   * Defaults to false.
+   * @param coalesceReads true to coalesce identical reads
+   */
+  public void setCoalesceReads(boolean coalesceReads) {
+    this.coalesceReads = coalesceReads;
+  }
+
+  /**
+   * Gets the configured read replica addresses
+   * @return The addresses set by {@link setReplicaAddresses(List) setReplicaAddresses}
+   */
+  public List<String> getReplicaAddresses() {
+    return replicaAddresses;
+  }
+
+  /**
+   * Sets the addresses of further frontends serving the same Trac, such as
+   * read-only replicas. Reads (get... and query methods) are balanced over
+   * these and the {@link setServerAddress(String) server address}, while
+   * writes always go to the server address. Defaults to none.
+   * @param replicaAddresses RPC addresses in URL form
+   */
+  public void setReplicaAddresses(List<String> replicaAddresses) {
+    this.replicaAddresses = Collections.unmodifiableList(
+            new ArrayList<String>(replicaAddresses));
+  }
+
+  /**
+   * Gets the configured health check interval
+   * @return The interval set by {@link setHealthCheckInterval(long) setHealthCheckInterval}
+   */
+  public long getHealthCheckInterval() {
+    return healthCheckInterval;
+  }
+
+  /**
+   * Sets how often every frontend is probed when there are
+   * {@link setReplicaAddresses(List) replicas}. A frontend that fails with
+   * a transport error gets no reads until a probe reaches it again.
+   * Defaults to 5000.
+   * @param healthCheckInterval Interval in milliseconds, 0 to disable
+   */
+  public void setHealthCheckInterval(long healthCheckInterval) {
+    this.healthCheckInterval = healthCheckInterval;
+  }
 }
@@ -28,21 +28,94 @@ package uk.co.badgerr.trac;
  * @author James Femia <badgerr@gmail.com>
  */
 public class TracRpcException extends Exception {
+  private static final long serialVersionUID = 1L;
+  /**
+   * Fault code newer versions of the XML-RPC plugin give ResourceNotFound
+   */
+  private static final int NOT_FOUND_CODE = 404;
+  /**
+   * End of the message older versions give ResourceNotFound, which is all
+   * that tells it apart from other faults
+   */
+  private static final String NOT_FOUND_MESSAGE = "does not exist";
+  
+  private final boolean fault;
+  private final int faultCode;
 
   public TracRpcException(String message) {
     super(message);
+    this.fault = false;
+    this.faultCode = 0;
+  }
+
+  /**
+   * Creates an exception for a fault returned by the server
+   * @param message the fault string
+   * @param faultCode the fault code
+   * @param cause the underlying exception, may be null
+   */
+  public TracRpcException(String message, int faultCode, Throwable cause) {
+    super(message, cause);
+    this.fault = true;
+    this.faultCode = faultCode;
   }
 
   public TracRpcException(String message, Throwable cause) {
     super(message, cause);
+    this.fault = false;
+    this.faultCode = 0;
   }
 
   public TracRpcException(Throwable cause) {
     super(cause);
+    this.fault = false;
+    this.faultCode = 0;
   }
 
   public TracRpcException(String message, Throwable cause, 
           boolean enableSuppression, boolean writableStackTrace) {
     super(message, cause, enableSuppression, writableStackTrace);
+    this.fault = false;
+    this.faultCode = 0;
+  }
+  
+  /**
+   * Gets whether the server answered with an XML-RPC fault, as opposed to
+   * the call failing in transport or on the client
+   * @return true for a server fault
+   */
+  public boolean isFault() {
+    return fault;
+  }
+  
+  /**
+   * Gets the fault code returned by the server
+   * @return the fault code, or 0 if this is not a {@link isFault() fault}
+   */
+  public int getFaultCode() {
+    return faultCode;
+  }
+  
+  /**
+   * Gets whether this is the server saying the requested resource doesn't
+   * exist, as opposed to any other fault
+   * @return true for a not-found fault
+   */
+  boolean isNotFound() {
+    if(!fault) {
+      return false;
+    }
+    if(faultCode == NOT_FOUND_CODE) {
+      return true;
+    }
+    String message = this.getMessage();
+    if(message == null) {
+      return false;
+    }
+    message = message.trim();
+    if(message.endsWith(".")) {
+      message = message.substring(0, message.length() - 1);
+    }
+    return message.endsWith(NOT_FOUND_MESSAGE);
   }
 }
@@ -0,0 +1,162 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.TimeZone;
+import org.apache.ws.commons.util.NamespaceContextImpl;
+import org.apache.xmlrpc.common.TypeFactoryImpl;
+import org.apache.xmlrpc.common.XmlRpcController;
+import org.apache.xmlrpc.common.XmlRpcStreamConfig;
+import org.apache.xmlrpc.parser.AtomicParser;
+import org.apache.xmlrpc.parser.TypeParser;
+import org.apache.xmlrpc.serializer.DateSerializer;
+import org.apache.xmlrpc.util.XmlRpcDateTimeDateFormat;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Type factory tuned for Trac responses. Trac sends every ticket's time
+ * and changetime as dateTime.iso8601 in the fixed form yyyyMMddTHH:mm:ss,
+ * which the stock parser decodes through a newly created DateFormat and
+ * Calendar per value. This factory converts that form to epoch
+ * milliseconds with plain arithmetic instead, falling back to the stock
+ * format for anything else.
+ * @author James Femia <badgerr@gmail.com>
+ */
+class TracTypeFactory extends TypeFactoryImpl {
+  TracTypeFactory(XmlRpcController controller)
+  {
+    super(controller);
+  }
+
+  @Override
+  public TypeParser getParser(XmlRpcStreamConfig config, 
+          NamespaceContextImpl context, String uri, String localName)
+  {
+    if(DateSerializer.DATE_TAG.equals(localName)) {
+      return new DateParser(config.getTimeZone());
+    }
+    return super.getParser(config, context, uri, localName);
+  }
+  
+  /**
+   * Parses dateTime.iso8601 values into Dates
+   */
+  static final class DateParser extends AtomicParser {
+    private final TimeZone timeZone;
+    
+    DateParser(TimeZone timeZone)
+    {
+      this.timeZone = timeZone;
+    }
+    
+    @Override
+    protected void setResult(String value) throws SAXException
+    {
+      long millis = parse(value, timeZone);
+      if(millis != Long.MIN_VALUE) {
+        super.setResult(new Date(millis));
+        return;
+      }
+      
+      XmlRpcDateTimeDateFormat format = new XmlRpcDateTimeDateFormat() {
+        @Override
+        protected TimeZone getTimeZone() {
+          return timeZone;
+        }
+      };
+      try {
+        super.setResult(format.parseObject(value.trim()));
+      } catch(ParseException e) {
+        throw new SAXParseException("Failed to parse date value: " + value, 
+                getDocumentLocator());
+      }
+    }
+  }
+  
+  /**
+   * Converts yyyyMMddTHH:mm:ss, read in the given time zone, to epoch
+   * milliseconds
+   * @param value the text of a dateTime.iso8601 value
+   * @param timeZone zone the value is expressed in
+   * @return epoch milliseconds, or Long.MIN_VALUE if the value isn't in
+   *         exactly that form
+   */
+  static long parse(String value, TimeZone timeZone)
+  {
+    if(value.length() != 17 || value.charAt(8) != 'T' || 
+       value.charAt(11) != ':' || value.charAt(14) != ':') {
+      return Long.MIN_VALUE;
+    }
+    int year = digits(value, 0, 4);
+    int month = digits(value, 4, 2);
+    int day = digits(value, 6, 2);
+    int hour = digits(value, 9, 2);
+    int minute = digits(value, 12, 2);
+    int second = digits(value, 15, 2);
+    if(year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || 
+       hour < 0 || hour > 23 || minute < 0 || minute > 59 || 
+       second < 0 || second > 59) {
+      return Long.MIN_VALUE;
+    }
+    
+    long local = (daysFromCivil(year, month, day) * 86400L + 
+                  hour * 3600L + minute * 60L + second) * 1000L;
+    int offset = timeZone.getOffset(local - timeZone.getRawOffset());
+    offset = timeZone.getOffset(local - offset);
+    return local - offset;
+  }
+  
+  /**
+   * Reads a run of decimal digits
+   * @return the value, or -1 if any character is not a digit
+   */
+  private static int digits(String s, int start, int count)
+  {
+    int ret = 0;
+    for(int i = start; i < start + count; ++i) {
+      int d = s.charAt(i) - '0';
+      if(d < 0 || d > 9) {
+        return -1;
+      }
+      ret = ret * 10 + d;
+    }
+    return ret;
+  }
+  
+  /**
+   * Days since 1970-01-01 of a proleptic Gregorian date
+   */
+  private static long daysFromCivil(int year, int month, int day)
+  {
+    year -= month <= 2 ? 1 : 0;
+    int era = (year >= 0 ? year : year - 399) / 400;
+    int yearOfEra = year - era * 400;
+    int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097L + dayOfEra - 719468;
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares one String instance between all tickets that have the same value
+ * in a low-cardinality field such as status, priority or owner. Across a
+ * large set of tickets there are only a few hundred distinct values for
+ * these fields, so decoded tickets would otherwise hold many thousands of
+ * equal copies.
+ * 
+ * Pooling only saves memory; it is not a substitute for equals. The pool
+ * is shared by every client in the JVM and stops growing at a fixed size to
+ * protect against fields that turn out to have free-form values. After that,
+ * values it hasn't seen are returned as given, so two equal values are not
+ * guaranteed to be the same instance.
+ * @author James Femia <badgerr@gmail.com>
+ */
+public final class ValuePool {
+  /** The pool used when decoding tickets */
+  public static final ValuePool TICKETS = new ValuePool(8192, 
+          "status", "resolution", "owner", "reporter", "priority", "severity", 
+          "type", "component", "version", "milestone");
+  
+  private final Set<String> fields;
+  private final int maxSize;
+  private final ConcurrentHashMap<String, String> values = 
+          new ConcurrentHashMap<String, String>();
+  
+  /**
+   * @param maxSize the most distinct values to hold
+   * @param fields names of the attributes whose values are pooled
+   */
+  ValuePool(int maxSize, String... fields)
+  {
+    this.maxSize = maxSize;
+    this.fields = new HashSet<String>(Arrays.asList(fields));
+  }
+  
+  /**
+   * Gets the pooled instance of a value, adding it to the pool if there
+   * is room
+   * @param value value to look up, may be null
+   * @return the pooled instance equal to value, or value itself if the pool
+   *         is full
+   */
+  public String intern(String value)
+  {
+    if(value == null) {
+      return null;
+    }
+    String pooled = values.get(value);
+    if(pooled != null) {
+      return pooled;
+    }
+    if(values.size() >= maxSize) {
+      return value;
+    }
+    pooled = values.putIfAbsent(value, value);
+    return pooled == null ? value : pooled;
+  }
+  
+  /**
+   * Gets whether values of an attribute are pooled
+   * @param field attribute name
+   * @return true if the attribute's values are pooled
+   */
+  public boolean isPooled(String field)
+  {
+    return fields.contains(field);
+  }
+  
+  /**
+   * Gets the pooled instance of an attribute value if the attribute is
+   * pooled
+   * @param field attribute name
+   * @param value attribute value
+   * @return the canonical value, or value itself
+   */
+  Object canonical(String field, Object value)
+  {
+    if(value instanceof String && fields.contains(field)) {
+      return intern((String)value);
+    }
+    return value;
+  }
+  
+  /**
+   * Replaces the values of pooled attributes with their pooled instances
+   * @param attribs attributes to update in place
+   */
+  void canonicalize(Map<String, Object> attribs)
+  {
+    for(Map.Entry<String, Object> e : attribs.entrySet()) {
+      Object value = e.getValue();
+      if(value instanceof String && fields.contains(e.getKey())) {
+        e.setValue(intern((String)value));
+      }
+    }
+  }
+}
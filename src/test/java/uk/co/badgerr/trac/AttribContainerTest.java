@@ -23,7 +23,11 @@
  */
 package uk.co.badgerr.trac;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 import static junit.framework.Assert.assertNotNull;
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -62,11 +66,97 @@ public class AttribContainerTest extends TestCase
   public void testGetAttribStringNeverNull()
   {
     AttribContainer a = new AttribContainer();
-    HashMap<String, Object> map = new HashMap();
+    HashMap<String, Object> map = new HashMap<String, Object>();
     map.put("Test", "foo");
     a.setAttribs(map);
     assertEquals(a.getAttribString("nonexistant"), "");
     assertEquals(a.getAttribString("Test"), "foo");
     assertTrue(map.equals(a.getAttribs()));
   }
+  
+  public void testGetAttribsIsLiveView()
+  {
+    AttribContainer a = new AttribContainer();
+    HashMap<String, Object> map = a.getAttribs();
+    map.put("status", "new");
+    map.merge("owner", "alice", (x, y) -> y);
+    assertEquals("new", a.getAttribString("status"));
+    assertEquals("alice", a.getAttribString("owner"));
+    assertEquals(2, a.getChangedAttribs().size());
+    
+    map.keySet().remove("owner");
+    assertFalse(a.attribs.containsKey("owner"));
+    HashMap<?, ?> copy = (HashMap<?, ?>)map.clone();
+    map.put("status", "closed");
+    assertEquals("new", copy.get("status"));
+  }
+  
+  public void testSubclassMayReplaceMap()
+  {
+    AttribContainer a = new AttribContainer() {
+      {
+        attribs = new HashMap<String, Object>();
+      }
+    };
+    a.attribs.put("status", "new");
+    assertEquals("new", a.getAttribString("status"));
+    assertEquals(1, a.getChangedAttribs().size());
+    HashMap<String, Object> map = new HashMap<String, Object>();
+    map.put("owner", "alice");
+    a.setAttribs(map);
+    assertSame(map, a.getAttribs());
+  }
+  
+  public void testTracksChanges()
+  {
+    AttribContainer a = new AttribContainer();
+    HashMap<String, Object> map = new HashMap<String, Object>();
+    map.put("status", "new");
+    map.put("owner", "alice");
+    a.loadAttribs(map);
+    assertTrue(a.getChangedAttribs().isEmpty());
+    
+    a.attribs.put("status", "new");
+    assertTrue(a.getChangedAttribs().isEmpty());
+    for(Map.Entry<String, Object> e : a.attribs.entrySet()) {
+      e.setValue("closed");
+    }
+    a.attribs.keySet().remove("nonexistant");
+    assertEquals(2, a.getChangedAttribs().size());
+    
+    a.clearChanges();
+    a.setAttribs(map);
+    assertEquals(2, a.getChangedAttribs().size());
+    assertEquals("alice", a.getAttribString("owner"));
+  }
+  
+  public void testSlotsAndOverflowBehaveAsOneMap()
+  {
+    AttribMap a = new AttribMap(new AttribMap.Layout("status", "owner"));
+    HashMap<String, Object> expected = new HashMap<String, Object>();
+    for(Map<String, Object> m : Arrays.asList(a, expected)) {
+      m.put("status", "new");
+      m.put("owner", null);
+      m.put("estimate", 2.5);
+      m.put("blocking", "12");
+      m.remove("blocking");
+    }
+    assertEquals(expected, a);
+    assertEquals(a, expected);
+    assertEquals(expected.hashCode(), a.hashCode());
+    assertTrue(a.containsKey("owner"));
+    assertFalse(a.containsKey("blocking"));
+    
+    a.markClean();
+    Iterator<Map.Entry<String, Object>> it = a.entrySet().iterator();
+    while(it.hasNext()) {
+      if(it.next().getKey().equals("status")) {
+        it.remove();
+      }
+    }
+    a.entrySet().iterator().next().setValue("bob");
+    assertEquals(2, a.size());
+    assertEquals("bob", a.get("owner"));
+    assertEquals(new HashSet<String>(Arrays.asList("status", "owner")), a.getChanged());
+  }
 }
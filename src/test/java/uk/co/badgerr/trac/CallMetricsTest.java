@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ForkJoinPool;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the CallMetrics class and call instrumentation in TracRpc
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class CallMetricsTest extends TestCase
+{
+  public CallMetricsTest( String testName )
+  {
+    super( testName );
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite( CallMetricsTest.class );
+  }
+  
+  public void testHistogramPercentiles()
+  {
+    LatencyHistogram h = new LatencyHistogram();
+    for(long v = 1; v <= 10000; ++v) {
+      h.record(v);
+    }
+    long[] counts = h.snapshot();
+    assertEquals(5000, LatencyHistogram.valueAt(counts, 50), 5000 / 64);
+    assertEquals(9900, LatencyHistogram.valueAt(counts, 99), 9900 / 64);
+    assertEquals(10000, LatencyHistogram.valueAt(counts, 100), 10000 / 64);
+    for(long v : new long[]{0, 127, 128, 129, 1000, 123456789L}) {
+      int i = LatencyHistogram.index(v);
+      assertTrue(LatencyHistogram.highestValue(i) >= v);
+      assertTrue(i == 0 || LatencyHistogram.highestValue(i - 1) < v);
+    }
+    
+    // after halving twice, as many new values outweigh the old ones 3:1
+    h.decay();
+    h.decay();
+    for(int i = 0; i < 7500; ++i) {
+      h.record(100000);
+    }
+    counts = h.snapshot();
+    assertEquals(100000, LatencyHistogram.valueAt(counts, 50), 100000 / 64);
+    assertTrue(LatencyHistogram.valueAt(counts, 20) < 10000);
+  }
+  
+  private static void recordsCallsOn(TracRpcConfiguration.Transport transport) 
+          throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(3);
+    CallMetrics metrics = new CallMetrics();
+    TracRpcConfiguration config = new TracRpcConfiguration();
+    config.setTransport(transport);
+    config.setCallListener(metrics);
+    try(FakeTracServer server = new FakeTracServer(trac)) {
+      config.setServerAddress(server.getAddress());
+      try(TracRpc rpc = new TracRpc(config)) {
+        rpc.getTicket(1);
+        rpc.callAsync("ticket.get", new Object[]{2}, ForkJoinPool.commonPool()).get();
+        try {
+          rpc.getTicket(99);
+          fail("Missing ticket was returned");
+        } catch(TracRpcException e) {
+          assertTrue(e.isFault());
+        }
+        server.setErrorRate(1);
+        try {
+          rpc.getTicket(1);
+          fail("HTTP error was not reported");
+        } catch(TracRpcException e) {
+          assertFalse(e.isFault());
+        }
+      }
+    }
+    
+    CallMetrics.MethodStats stats = metrics.snapshot().get("ticket.get");
+    assertEquals(transport.toString(), 4, stats.getCalls());
+    assertEquals(0, stats.getInFlight());
+    assertEquals(1, stats.getFaults());
+    assertEquals(Long.valueOf(1), stats.getFaultCodes().get(1));
+    assertEquals(1, stats.getTransportErrors());
+    assertTrue(stats.getLatencyMax() > 0);
+    assertTrue(stats.getMaxRequestBytes() > 100);
+    assertTrue(stats.getMaxResponseBytes() > 500);
+  }
+  
+  public void testRecordsCallsOnEveryTransport() throws Exception
+  {
+    for(TracRpcConfiguration.Transport t : TracRpcConfiguration.Transport.values()) {
+      recordsCallsOn(t);
+    }
+  }
+  
+  public void testPublishesOverJmx() throws Exception
+  {
+    CallMetrics metrics = new CallMetrics();
+    metrics.callStarted("ticket.query");
+    metrics.callCompleted("ticket.query", 2000000, 10, 20, null);
+    ObjectName name = metrics.registerMBean("test");
+    try {
+      TabularData methods = (TabularData)ManagementFactory
+              .getPlatformMBeanServer().getAttribute(name, "Methods");
+      CompositeData row = methods.get(new Object[]{"ticket.query"});
+      CompositeData stats = (CompositeData)row.get("value");
+      assertEquals(1L, stats.get("calls"));
+      assertEquals(20L, stats.get("responseBytes"));
+      assertEquals(2000L, (long)(Long)stats.get("latencyMax"), 2000 / 64);
+    } finally {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    }
+  }
+}
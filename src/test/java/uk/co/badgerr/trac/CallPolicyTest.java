@@ -0,0 +1,233 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests retries, circuit breaking and hedging against the FakeTracServer
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class CallPolicyTest extends TestCase
+{
+  public CallPolicyTest( String testName )
+  {
+    super( testName );
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite( CallPolicyTest.class );
+  }
+  
+  private static TracRpcConfiguration config(FakeTracServer server)
+  {
+    TracRpcConfiguration config = new TracRpcConfiguration();
+    config.setServerAddress(server.getAddress());
+    config.setTransport(TracRpcConfiguration.Transport.POOLED);
+    config.setRetryBackoff(1);
+    return config;
+  }
+  
+  private static Map<String, Object> call(String methodName)
+  {
+    Map<String, Object> call = new HashMap<String, Object>();
+    call.put("methodName", methodName);
+    call.put("params", new Object[0]);
+    return call;
+  }
+  
+  public void testIdempotent()
+  {
+    assertTrue(CallPolicy.isIdempotent("ticket.get", null));
+    assertTrue(CallPolicy.isIdempotent("ticket.query", null));
+    assertTrue(CallPolicy.isIdempotent("wiki.getPageInfo", null));
+    assertFalse(CallPolicy.isIdempotent("ticket.update", null));
+    assertFalse(CallPolicy.isIdempotent("ticket.milestone.create", null));
+    assertTrue(CallPolicy.isIdempotent("system.multicall", new Object[] {
+      new Object[] { call("ticket.get"), call("ticket.getActions") }}));
+    assertFalse(CallPolicy.isIdempotent("system.multicall", new Object[] {
+      new Object[] { call("ticket.get"), call("ticket.delete") }}));
+  }
+  
+  public void testRetriesTransportErrors() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(5);
+    try(FakeTracServer server = new FakeTracServer(trac)) {
+      server.setErrorRate(0.3);
+      TracRpcConfiguration config = config(server);
+      config.setMaxRetries(10);
+      try(TracRpc rpc = new TracRpc(config)) {
+        for(int i = 0; i < 20; ++i) {
+          assertEquals(1 + i % 5, (int)rpc.getTicket(1 + i % 5).getId());
+        }
+        
+        // writes are never repeated
+        server.setErrorRate(1);
+        int before = server.getRequestCount();
+        try {
+          Ticket t = new Ticket();
+          t.setSummary("summary");
+          rpc.createTicket(t, false);
+          fail("Expected a transport error");
+        } catch(TracRpcException e) {
+          assertFalse(e.isFault());
+        }
+        assertEquals(before + 1, server.getRequestCount());
+      }
+    }
+  }
+  
+  public void testDoesNotRetryFaults() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(5);
+    try(FakeTracServer server = new FakeTracServer(trac)) {
+      server.setFaultRate(1);
+      TracRpcConfiguration config = config(server);
+      config.setMaxRetries(5);
+      try(TracRpc rpc = new TracRpc(config)) {
+        try {
+          rpc.getTicket(1);
+          fail("Expected a fault");
+        } catch(TracRpcException e) {
+          assertTrue(e.isFault());
+        }
+        assertEquals(1, server.getRequestCount());
+      }
+    }
+  }
+  
+  public void testRetriesAsync() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(5);
+    try(FakeTracServer server = new FakeTracServer(trac)) {
+      server.setErrorRate(0.3);
+      TracRpcConfiguration config = config(server);
+      config.setTransport(TracRpcConfiguration.Transport.HTTP_CLIENT);
+      config.setMaxRetries(10);
+      try(TracRpc rpc = new TracRpc(config)) {
+        for(int i = 0; i < 20; ++i) {
+          assertNotNull(rpc.callAsync("ticket.get", new Object[] { 1 }, 
+                                      ForkJoinPool.commonPool()).join());
+        }
+        
+        server.setErrorRate(1);
+        int before = server.getRequestCount();
+        try {
+          rpc.callAsync("ticket.get", new Object[] { 1 }, 
+                        ForkJoinPool.commonPool()).join();
+          fail("Expected retries to run out");
+        } catch(CompletionException e) {
+          assertFalse(((TracRpcException)e.getCause()).isFault());
+        }
+        assertEquals(before + 11, server.getRequestCount());
+      }
+    }
+  }
+  
+  public void testCircuitBreaker() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(5);
+    try(FakeTracServer server = new FakeTracServer(trac)) {
+      server.setErrorRate(1);
+      TracRpcConfiguration config = config(server);
+      config.setCircuitBreakerThreshold(3);
+      config.setCircuitBreakerOpenTime(200);
+      try(TracRpc rpc = new TracRpc(config)) {
+        for(int i = 0; i < 5; ++i) {
+          try {
+            rpc.getTicket(1);
+            fail("Expected a transport error");
+          } catch(TracRpcException e) {
+            assertFalse(e.isFault());
+          }
+        }
+        // the last two failed without contacting the server
+        assertEquals(3, server.getRequestCount());
+        
+        server.setErrorRate(0);
+        Thread.sleep(250);
+        assertEquals(1, (int)rpc.getTicket(1).getId());
+        assertEquals(2, (int)rpc.getTicket(2).getId());
+        assertEquals(5, server.getRequestCount());
+      }
+    }
+  }
+  
+  public void testAsyncDoesNotRetryOpenCircuit() throws Exception
+  {
+    TracRpcConfiguration config = new TracRpcConfiguration();
+    config.setMaxRetries(20);
+    config.setRetryBackoff(50);
+    config.setRetryMaxBackoff(50);
+    config.setCircuitBreakerThreshold(1);
+    config.setCircuitBreakerOpenTime(300);
+    CallPolicy policy = new CallPolicy(config);
+    AtomicInteger attempts = new AtomicInteger();
+    try {
+      policy.callAsync("ticket.get", new Object[] { 1 }, () -> {
+        attempts.incrementAndGet();
+        return CompletableFuture.failedFuture(new TracRpcException("down"));
+      }).join();
+      fail("Expected the open circuit to fail the call");
+    } catch(CompletionException e) {
+      assertTrue(e.getCause().getMessage().startsWith("Circuit breaker open"));
+    }
+    // retrying past the open time would have let a trial attempt through
+    assertEquals(1, attempts.get());
+  }
+  
+  public void testHedgesSlowCalls() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(5);
+    try(FakeTracServer server = new FakeTracServer(trac)) {
+      TracRpcConfiguration config = config(server);
+      config.setHedgePercentile(95);
+      try(TracRpc rpc = new TracRpc(config)) {
+        for(int i = 0; i < 30; ++i) {
+          rpc.getTicket(1);
+        }
+        int before = server.getRequestCount();
+        server.stallNext(1, 5000);
+        long start = System.currentTimeMillis();
+        assertEquals(2, (int)rpc.getTicket(2).getId());
+        assertTrue(System.currentTimeMillis() - start < 2500);
+        assertEquals(before + 2, server.getRequestCount());
+      }
+    }
+  }
+}
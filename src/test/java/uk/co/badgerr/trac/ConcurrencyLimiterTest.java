@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the adaptive concurrency limiter
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class ConcurrencyLimiterTest extends TestCase
+{
+  public ConcurrencyLimiterTest( String testName )
+  {
+    super( testName );
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite( ConcurrencyLimiterTest.class );
+  }
+  
+  public void testGrowsWhileLatencyHoldsAndShrinksWhenItRises() throws Exception
+  {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 100);
+    for(int i = 0; i < 50; ++i) {
+      for(int j = 0; j < limiter.getLimit(); ++j) {
+        limiter.acquire();
+      }
+      while(limiter.getInFlight() > 0) {
+        limiter.release(10000000L, false);
+      }
+    }
+    int grown = limiter.getLimit();
+    assertTrue(grown > 10);
+    
+    for(int i = 0; i < 20; ++i) {
+      limiter.acquire();
+      limiter.release(100000000L, false);
+    }
+    assertTrue(limiter.getLimit() < grown);
+    
+    int before = limiter.getLimit();
+    limiter.acquire();
+    limiter.release(0, true);
+    assertTrue(limiter.getLimit() < before);
+  }
+  
+  public void testQueuesCallsOverTheLimit() throws Exception
+  {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1);
+    limiter.acquire();
+    CompletableFuture<Void> waiting = limiter.acquireAsync();
+    assertFalse(waiting.isDone());
+    limiter.release(1000, false);
+    assertTrue(waiting.isDone());
+    assertEquals(1, limiter.getInFlight());
+  }
+  
+  public void testSharedPerServer()
+  {
+    assertSame(ConcurrencyLimiter.forServer("http://a/trac/rpc"), 
+               ConcurrencyLimiter.forServer("http://a/trac/rpc"));
+    assertNotSame(ConcurrencyLimiter.forServer("http://a/trac/rpc"), 
+                  ConcurrencyLimiter.forServer("http://b/trac/rpc"));
+  }
+  
+  public void testBoundsRequestsAcrossInstances() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(10);
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(3, 3, 3);
+    ExecutorService executor = Executors.newFixedThreadPool(12);
+    try(FakeTracServer server = new FakeTracServer(trac)) {
+      server.setLatency(20);
+      List<TracRpc> clients = new ArrayList<TracRpc>();
+      for(int i = 0; i < 2; ++i) {
+        TracRpcConfiguration config = new TracRpcConfiguration();
+        config.setServerAddress(server.getAddress());
+        config.setTransport(TracRpcConfiguration.Transport.POOLED);
+        config.setConcurrencyLimiter(limiter);
+        clients.add(new TracRpc(config));
+      }
+      List<Future<Ticket>> results = new ArrayList<Future<Ticket>>();
+      for(int i = 0; i < 36; ++i) {
+        final TracRpc rpc = clients.get(i % 2);
+        final int id = 1 + i % 10;
+        results.add(executor.submit(() -> rpc.getTicket(id)));
+      }
+      for(Future<Ticket> result : results) {
+        assertNotNull(result.get());
+      }
+      assertTrue(server.getMaxConcurrentRequests() <= 3);
+      assertEquals(0, limiter.getInFlight());
+      for(TracRpc rpc : clients) {
+        rpc.close();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+  
+  public void testBoundsAsyncRequests() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(10);
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 2, 2);
+    try(FakeTracServer server = new FakeTracServer(trac)) {
+      server.setLatency(20);
+      TracRpcConfiguration config = new TracRpcConfiguration();
+      config.setServerAddress(server.getAddress());
+      config.setTransport(TracRpcConfiguration.Transport.HTTP_CLIENT);
+      config.setConcurrencyLimiter(limiter);
+      try(TracRpc rpc = new TracRpc(config)) {
+        List<CompletableFuture<Object>> results = new ArrayList<CompletableFuture<Object>>();
+        for(int i = 0; i < 20; ++i) {
+          results.add(rpc.callAsync("ticket.get", new Object[] { 1 + i % 10 }, 
+                                    ForkJoinPool.commonPool()));
+        }
+        for(CompletableFuture<Object> result : results) {
+          assertNotNull(result.join());
+        }
+      }
+      assertTrue(server.getMaxConcurrentRequests() <= 2);
+      assertEquals(0, limiter.getInFlight());
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests balancing over a primary and a replica served from the same fake
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class EndpointPoolTest extends TestCase
+{
+  public EndpointPoolTest( String testName )
+  {
+    super( testName );
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite( EndpointPoolTest.class );
+  }
+  
+  private static TracRpcConfiguration config(FakeTracServer primary, 
+          FakeTracServer replica)
+  {
+    TracRpcConfiguration config = new TracRpcConfiguration();
+    config.setServerAddress(primary.getAddress());
+    config.setReplicaAddresses(Arrays.asList(replica.getAddress()));
+    config.setTransport(TracRpcConfiguration.Transport.POOLED);
+    config.setCoalesceReads(false);
+    return config;
+  }
+  
+  public void testBalancesReadsAndPinsWrites() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(10);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try(FakeTracServer primary = new FakeTracServer(trac);
+        FakeTracServer replica = new FakeTracServer(trac);
+        final TracRpc rpc = new TracRpc(config(primary, replica))) {
+      primary.setLatency(10);
+      replica.setLatency(10);
+      for(int i = 0; i < 40; ++i) {
+        final int id = 1 + i % 10;
+        executor.submit(() -> rpc.getTicket(id));
+      }
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+      assertEquals(40, primary.getRequestCount() + replica.getRequestCount());
+      assertTrue(primary.getRequestCount() > 5);
+      assertTrue(replica.getRequestCount() > 5);
+      
+      int before = replica.getRequestCount();
+      for(int i = 0; i < 10; ++i) {
+        rpc.setWikiPage("Page" + i, "Text");
+      }
+      assertEquals(before, replica.getRequestCount());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+  
+  public void testFailsOverAndRecovers() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(10);
+    try(FakeTracServer primary = new FakeTracServer(trac);
+        FakeTracServer replica = new FakeTracServer(trac)) {
+      replica.setErrorRate(1);
+      TracRpcConfiguration config = config(primary, replica);
+      config.setMaxRetries(1);
+      config.setRetryBackoff(1);
+      config.setHealthCheckInterval(50);
+      try(TracRpc rpc = new TracRpc(config)) {
+        for(int i = 0; i < 20; ++i) {
+          assertEquals(1 + i % 10, (int)rpc.getTicket(1 + i % 10).getId());
+        }
+        
+        // only health checks reach the replica while it is failing
+        int failed = replica.getRequestCount();
+        Thread.sleep(200);
+        assertTrue(replica.getRequestCount() - failed < 10);
+        
+        replica.setErrorRate(0);
+        Thread.sleep(200);
+        int recovered = replica.getRequestCount();
+        for(int i = 0; i < 20; ++i) {
+          rpc.getTicket(1 + i % 10);
+        }
+        assertTrue(replica.getRequestCount() > recovered);
+      }
+    }
+  }
+  
+  public void testSyncsIgnoreLaggingReplica() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(10);
+    FakeTrac stale = new FakeTrac();
+    stale.populate(10);
+    try(FakeTracServer primary = new FakeTracServer(trac);
+        FakeTracServer replica = new FakeTracServer(stale)) {
+      TracRpcConfiguration config = config(primary, replica);
+      config.setHealthCheckInterval(0);
+      config.setTicketCacheSize(10);
+      try(TracRpc rpc = new TracRpc(config);
+          TicketMirror mirror = new TicketMirror(rpc, new MemoryTicketStore())) {
+        mirror.sync();
+        rpc.refreshTicketCache();
+        for(int i = 0; i < 10; ++i) {
+          int id = 1 + i % 3;
+          rpc.getTicket(id);
+          trac.changeTicket(id, "summary", "Round " + i);
+          int replicaBefore = replica.getRequestCount();
+          mirror.sync();
+          assertEquals("Round " + i, mirror.getTicket(id).getSummary());
+          
+          rpc.refreshTicketCache();
+          assertEquals(replicaBefore, replica.getRequestCount());
+          int before = primary.getRequestCount() + replica.getRequestCount();
+          rpc.getTicket(id);
+          assertEquals(before + 1, 
+                       primary.getRequestCount() + replica.getRequestCount());
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,564 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory imitation of the Trac RPC plugin, answering calls the way a
+ * real Trac would so that TracRpc features can be tested without a server.
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class FakeTrac
+{
+  private final TreeMap<Integer, HashMap<String, Object>> tickets = 
+          new TreeMap<Integer, HashMap<String, Object>>();
+  private final Map<String, AtomicInteger> callCounts = 
+          new ConcurrentHashMap<String, AtomicInteger>();
+  private final Map<String, LinkedHashMap<String, HashMap<String, Object>>> structs = 
+          new HashMap<String, LinkedHashMap<String, HashMap<String, Object>>>();
+  private final Map<String, List<String>> enums = new HashMap<String, List<String>>();
+  private final TreeMap<String, List<HashMap<String, Object>>> pages = 
+          new TreeMap<String, List<HashMap<String, Object>>>();
+  private final Map<String, byte[]> attachments = new HashMap<String, byte[]>();
+  private final Set<Integer> denied = new HashSet<Integer>();
+  private Map<String, Object> lastUpdate = null;
+  private long now = 1500000000000L;
+  
+  /**
+   * Creates a fake with Trac's default priorities, severities and types
+   */
+  public FakeTrac()
+  {
+    for(String kind : new String[]{"milestone", "version", "component"}) {
+      structs.put(kind, new LinkedHashMap<String, HashMap<String, Object>>());
+    }
+    enums.put("priority", Arrays.asList("blocker", "critical", "major", "minor", "trivial"));
+    enums.put("severity", Collections.<String>emptyList());
+    enums.put("type", Arrays.asList("defect", "enhancement", "task"));
+  }
+  
+  /**
+   * Creates a TracRpc whose calls are answered by this fake
+   * @param config configuration; the server address is filled in if missing
+   * @return a TracRpc bound to this fake
+   * @throws TracRpcException 
+   */
+  public TracRpc connect(TracRpcConfiguration config) throws TracRpcException
+  {
+    if(config.getServerAddress() == null) {
+      config.setServerAddress("http://localhost/trac/rpc");
+    }
+    return new TracRpc(config) {
+      @Override
+      public Object call(String func, Object[] params) throws TracRpcException
+      {
+        return FakeTrac.this.invoke(func, params);
+      }
+    };
+  }
+  
+  /**
+   * Creates a TracRpc with default configuration bound to this fake
+   * @return a TracRpc bound to this fake
+   * @throws TracRpcException 
+   */
+  public TracRpc connect() throws TracRpcException
+  {
+    return connect(new TracRpcConfiguration());
+  }
+  
+  /**
+   * Gets how many times a function has been called, including calls made
+   * inside system.multicall
+   * @param func function name
+   * @return number of calls
+   */
+  public int getCallCount(String func)
+  {
+    AtomicInteger count = callCounts.get(func);
+    return count == null ? 0 : count.get();
+  }
+  
+  /**
+   * Advances the fake server clock, which starts at a fixed time and only
+   * moves when told to (or by one second per ticket change)
+   * @param millis milliseconds to advance by
+   */
+  public synchronized void advanceClock(long millis)
+  {
+    now += millis;
+  }
+  
+  /**
+   * Adds a ticket directly, as if created through the web interface
+   * @param summary ticket summary
+   * @param attribs other attributes
+   * @return the new ticket id
+   */
+  public synchronized int addTicket(String summary, Map<String, Object> attribs)
+  {
+    int id = tickets.isEmpty() ? 1 : tickets.lastKey() + 1;
+    HashMap<String, Object> t = new HashMap<String, Object>();
+    t.put("status", "new");
+    if(attribs != null) {
+      t.putAll(attribs);
+    }
+    t.put("summary", summary);
+    now += 1000;
+    t.put("time", new Date(now));
+    t.put("changetime", new Date(now));
+    tickets.put(id, t);
+    return id;
+  }
+  
+  /**
+   * Fills the fake with a realistic dataset: tickets spread over a handful
+   * of owners, statuses, components, milestones and versions, one minute
+   * apart
+   * @param ticketCount number of tickets to add
+   */
+  public synchronized void populate(int ticketCount)
+  {
+    String[] statuses = {"new", "assigned", "accepted", "reopened", "closed"};
+    String[] owners = {"alice", "bob", "carol", "dave", "erin"};
+    String[] milestones = {"1.0", "1.1", "2.0"};
+    String[] components = {"core", "ui", "docs"};
+    for(String name : milestones) {
+      HashMap<String, Object> m = new HashMap<String, Object>();
+      m.put("name", name);
+      m.put("description", "Milestone " + name);
+      m.put("due", 0);
+      m.put("completed", 0);
+      structs.get("milestone").put(name, m);
+      HashMap<String, Object> v = new HashMap<String, Object>();
+      v.put("name", name);
+      v.put("description", "");
+      v.put("time", 0);
+      structs.get("version").put(name, v);
+    }
+    for(String name : components) {
+      HashMap<String, Object> c = new HashMap<String, Object>();
+      c.put("name", name);
+      c.put("owner", owners[0]);
+      c.put("description", "");
+      structs.get("component").put(name, c);
+    }
+    
+    for(int i = 0; i < ticketCount; ++i) {
+      HashMap<String, Object> attribs = new HashMap<String, Object>();
+      attribs.put("description", "Steps to reproduce problem " + i);
+      attribs.put("status", statuses[i % statuses.length]);
+      attribs.put("owner", owners[i % owners.length]);
+      attribs.put("reporter", owners[(i + 1) % owners.length]);
+      attribs.put("milestone", milestones[i % milestones.length]);
+      attribs.put("version", milestones[i % milestones.length]);
+      attribs.put("component", components[i % components.length]);
+      attribs.put("priority", enums.get("priority").get(i % 5));
+      attribs.put("type", enums.get("type").get(i % 3));
+      attribs.put("resolution", i % statuses.length == 4 ? "fixed" : "");
+      addTicket("Generated ticket " + i, attribs);
+      now += 59000;
+    }
+  }
+  
+  /**
+   * Changes a ticket attribute directly, updating its change time
+   * @param id ticket id
+   * @param name attribute name
+   * @param value new value
+   */
+  public synchronized void changeTicket(int id, String name, Object value)
+  {
+    now += 1000;
+    tickets.get(id).put(name, value);
+    tickets.get(id).put("changetime", new Date(now));
+  }
+  
+  /**
+   * Makes reads of a ticket fault as if the caller lacked TICKET_VIEW
+   * @param id ticket id
+   */
+  public synchronized void denyTicket(int id)
+  {
+    denied.add(id);
+  }
+  
+  /**
+   * Deletes a ticket directly, as trac-admin would
+   * @param id ticket id
+   */
+  public synchronized void deleteTicket(int id)
+  {
+    tickets.remove(id);
+  }
+  
+  /**
+   * Gets the attributes sent by the most recent ticket.update call
+   * @return the attributes, or null if there has been no update
+   */
+  public synchronized Map<String, Object> getLastUpdate()
+  {
+    return lastUpdate;
+  }
+  
+  /**
+   * Answers an RPC call
+   * @param func function name
+   * @param params call parameters
+   * @return the call result
+   * @throws TracRpcException a fault, as a real server would return
+   */
+  public synchronized Object invoke(String func, Object[] params) 
+          throws TracRpcException
+  {
+    callCounts.computeIfAbsent(func, k -> new AtomicInteger()).incrementAndGet();
+    switch(func) {
+      case "system.multicall":
+        return multicall((Object[])params[0]);
+      case "system.getAPIVersion":
+        return new Object[] {1, 1, 8};
+      case "ticket.get":
+        return getTicket((Integer)params[0]);
+      case "ticket.create":
+        return createTicket(params);
+      case "ticket.update":
+        return updateTicket((Integer)params[0], struct(params[2]));
+      case "ticket.query":
+        return query(params.length > 0 ? (String)params[0] : "status!=closed");
+      case "ticket.getRecentChanges":
+        return recentChanges((Date)params[0]);
+      case "ticket.putAttachment":
+        getTicket((Integer)params[0]);
+        String name = "ticket:" + params[0] + "/" + params[1];
+        if(attachments.containsKey(name) 
+                && (params.length < 5 || !(Boolean)params[4])) {
+          throw new TracRpcException("Attachment " + name + " already exists");
+        }
+        attachments.put(name, (byte[])params[3]);
+        return params[1];
+      case "ticket.getAttachment":
+        return getAttachment("ticket:" + params[0] + "/" + params[1]);
+      default:
+        if(func.startsWith("wiki.")) {
+          return invokeWiki(func, params);
+        }
+        return invokeMetadata(func, params);
+    }
+  }
+  
+  /**
+   * Answers the wiki calls that deal with page text and page info
+   */
+  private Object invokeWiki(String func, Object[] params) 
+          throws TracRpcException
+  {
+    switch(func) {
+      case "wiki.getAllPages":
+        return pages.keySet().toArray();
+      case "wiki.putPage":
+        List<HashMap<String, Object>> history = pages.computeIfAbsent(
+                (String)params[0], k -> new ArrayList<HashMap<String, Object>>());
+        now += 1000;
+        HashMap<String, Object> version = new HashMap<String, Object>();
+        version.put("name", params[0]);
+        version.put("version", history.size() + 1);
+        version.put("lastModified", new Date(now));
+        version.put("author", "anonymous");
+        version.put("text", params[1]);
+        history.add(version);
+        return true;
+      case "wiki.deletePage":
+        return pages.remove((String)params[0]) != null;
+      case "wiki.putAttachment":
+        attachments.put("wiki:" + params[0], (byte[])params[1]);
+        return true;
+      case "wiki.getAttachment":
+        return getAttachment("wiki:" + params[0]);
+      default:
+        break;
+    }
+    
+    List<HashMap<String, Object>> history = pages.get((String)params[0]);
+    int v = params.length > 1 ? (Integer)params[1] : 0;
+    if(history == null || v > history.size()) {
+      throw new TracRpcException("Wiki page \"" + params[0] + "\" does not exist");
+    }
+    HashMap<String, Object> page = history.get((v > 0 ? v : history.size()) - 1);
+    switch(func) {
+      case "wiki.getPage":
+      case "wiki.getPageVersion":
+        return page.get("text");
+      case "wiki.getPageInfo":
+      case "wiki.getPageInfoVersion":
+        HashMap<String, Object> info = new HashMap<String, Object>(page);
+        info.remove("text");
+        return info;
+      default:
+        throw new TracRpcException("RPC method \"" + func + "\" not found");
+    }
+  }
+  
+  /**
+   * Answers the ticket.milestone, ticket.version and ticket.component struct
+   * calls and the getAll calls for the enumerations
+   */
+  private Object invokeMetadata(String func, Object[] params) 
+          throws TracRpcException
+  {
+    String[] parts = func.split("\\.");
+    if(parts.length != 3 || !parts[0].equals("ticket")) {
+      throw new TracRpcException("RPC method \"" + func + "\" not found");
+    }
+    String kind = parts[1];
+    String op = parts[2];
+    if(enums.containsKey(kind) && op.equals("getAll")) {
+      return enums.get(kind).toArray();
+    }
+    LinkedHashMap<String, HashMap<String, Object>> named = structs.get(kind);
+    if(named == null) {
+      throw new TracRpcException("RPC method \"" + func + "\" not found");
+    }
+    switch(op) {
+      case "getAll":
+        return named.keySet().toArray();
+      case "get":
+        HashMap<String, Object> s = named.get((String)params[0]);
+        if(s == null) {
+          throw new TracRpcException(kind + " " + params[0] + " does not exist.");
+        }
+        return new HashMap<String, Object>(s);
+      case "create":
+      case "update":
+        if(op.equals("update") != named.containsKey((String)params[0])) {
+          throw new TracRpcException(kind + " " + params[0] 
+                  + (op.equals("update") ? " does not exist." : " already exists."));
+        }
+        HashMap<String, Object> attribs = new HashMap<String, Object>(struct(params[1]));
+        attribs.put("name", params[0]);
+        named.put((String)params[0], attribs);
+        return 0;
+      case "delete":
+        named.remove((String)params[0]);
+        return 0;
+      default:
+        throw new TracRpcException("RPC method \"" + func + "\" not found");
+    }
+  }
+  
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> struct(Object param)
+  {
+    return (Map<String, Object>)param;
+  }
+  
+  private Object[] multicall(Object[] calls)
+  {
+    Object[] results = new Object[calls.length];
+    for(int i = 0; i < calls.length; ++i) {
+      Map<?, ?> call = (Map<?, ?>)calls[i];
+      try {
+        results[i] = new Object[]{invoke((String)call.get("methodName"), 
+                                         (Object[])call.get("params"))};
+      } catch(TracRpcException e) {
+        HashMap<String, Object> fault = new HashMap<String, Object>();
+        fault.put("faultCode", e.isFault() ? e.getFaultCode() : 1);
+        fault.put("faultString", e.getMessage());
+        results[i] = fault;
+      }
+    }
+    return results;
+  }
+  
+  private byte[] getAttachment(String name) throws TracRpcException
+  {
+    byte[] data = attachments.get(name);
+    if(data == null) {
+      throw new TracRpcException("Attachment " + name + " does not exist");
+    }
+    return data;
+  }
+  
+  private Object[] getTicket(Integer id) throws TracRpcException
+  {
+    if(denied.contains(id)) {
+      throw new TracRpcException("TICKET_VIEW privilege is required to "
+              + "perform this operation on Ticket #" + id, 403, null);
+    }
+    HashMap<String, Object> t = tickets.get(id);
+    if(t == null) {
+      throw new TracRpcException("Ticket " + id + " does not exist.");
+    }
+    HashMap<String, Object> attribs = new HashMap<String, Object>(t);
+    attribs.put("_ts", changeToken(t));
+    return new Object[]{id, t.get("time"), t.get("changetime"), attribs};
+  }
+  
+  private static String changeToken(Map<String, Object> t)
+  {
+    return String.valueOf(((Date)t.get("changetime")).getTime() * 1000);
+  }
+  
+  /**
+   * Applies an update, refusing it if a _ts token is given and the ticket
+   * has changed since
+   */
+  private Object[] updateTicket(Integer id, Map<String, Object> attribs) 
+          throws TracRpcException
+  {
+    HashMap<String, Object> t = tickets.get(id);
+    if(t == null) {
+      throw new TracRpcException("Ticket " + id + " does not exist.");
+    }
+    Object ts = attribs.get("_ts");
+    if(ts != null && !ts.equals(changeToken(t))) {
+      throw new TracRpcException("Ticket has been updated since last get().");
+    }
+    lastUpdate = new HashMap<String, Object>(attribs);
+    for(Map.Entry<String, Object> e : attribs.entrySet()) {
+      if(!e.getKey().equals("_ts")) {
+        t.put(e.getKey(), e.getValue());
+      }
+    }
+    now += 1000;
+    t.put("changetime", new Date(now));
+    return getTicket(id);
+  }
+  
+  private Integer createTicket(Object[] params) throws TracRpcException
+  {
+    if(params[0] == null || ((String)params[0]).isEmpty()) {
+      throw new TracRpcException("Tickets must contain a summary.");
+    }
+    HashMap<String, Object> attribs = new HashMap<String, Object>(struct(params[2]));
+    attribs.put("description", params[1]);
+    return addTicket((String)params[0], attribs);
+  }
+  
+  /**
+   * Supports field=value and field!=value constraints, order, desc, max
+   * and page
+   */
+  private Object[] query(String qstr) throws TracRpcException
+  {
+    int max = 100;
+    int page = 1;
+    String order = "id";
+    boolean desc = false;
+    Map<String, String> equal = new HashMap<String, String>();
+    Map<String, String> notEqual = new HashMap<String, String>();
+    for(String part : qstr.split("&")) {
+      if(part.isEmpty()) {
+        continue;
+      }
+      int eq = part.indexOf('=');
+      if(eq < 0) {
+        throw new TracRpcException("Query filter requires field and "
+                + "constraints separated by a \"=\"");
+      }
+      String key = part.substring(0, eq);
+      String value = part.substring(eq + 1);
+      if(key.endsWith("!")) {
+        notEqual.put(key.substring(0, key.length() - 1), value);
+      }
+      else if(key.equals("max")) {
+        max = Integer.parseInt(value);
+      }
+      else if(key.equals("page")) {
+        page = Integer.parseInt(value);
+      }
+      else if(key.equals("order")) {
+        order = value;
+      }
+      else if(key.equals("desc")) {
+        desc = value.equals("1");
+      }
+      else {
+        equal.put(key, value);
+      }
+    }
+    
+    List<Integer> ids = new ArrayList<Integer>();
+    for(Map.Entry<Integer, HashMap<String, Object>> e : tickets.entrySet()) {
+      if(matches(e.getValue(), equal, notEqual)) {
+        ids.add(e.getKey());
+      }
+    }
+    if(order.equals("changetime")) {
+      ids.sort((a, b) -> ((Date)tickets.get(a).get("changetime"))
+                         .compareTo((Date)tickets.get(b).get("changetime")));
+    }
+    if(desc) {
+      Collections.reverse(ids);
+    }
+    if(max > 0 && page > 1 && (page - 1) * max >= ids.size()) {
+      throw new TracRpcException("Page " + page 
+              + " is beyond the number of pages in the query", 1, null);
+    }
+    if(max > 0) {
+      int from = Math.min((page - 1) * max, ids.size());
+      ids = ids.subList(from, Math.min(from + max, ids.size()));
+    }
+    return ids.toArray();
+  }
+  
+  private static boolean matches(Map<String, Object> t, 
+          Map<String, String> equal, Map<String, String> notEqual)
+  {
+    for(Map.Entry<String, String> e : equal.entrySet()) {
+      if(!e.getValue().equals(t.get(e.getKey()))) {
+        return false;
+      }
+    }
+    for(Map.Entry<String, String> e : notEqual.entrySet()) {
+      if(e.getValue().equals(t.get(e.getKey()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  private Object[] recentChanges(Date since)
+  {
+    List<Integer> ids = new ArrayList<Integer>();
+    for(Map.Entry<Integer, HashMap<String, Object>> e : tickets.entrySet()) {
+      if(!((Date)e.getValue().get("changetime")).before(since)) {
+        ids.add(e.getKey());
+      }
+    }
+    return ids.toArray();
+  }
+}
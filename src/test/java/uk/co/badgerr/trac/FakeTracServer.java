@@ -0,0 +1,388 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+import org.apache.xmlrpc.common.TypeFactory;
+import org.apache.xmlrpc.common.TypeFactoryImpl;
+import org.apache.xmlrpc.parser.XmlRpcRequestParser;
+import org.apache.xmlrpc.serializer.DefaultXMLWriterFactory;
+import org.apache.xmlrpc.serializer.XmlRpcWriter;
+import org.apache.xmlrpc.util.SAXParsers;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+/**
+ * Serves a {@link FakeTrac FakeTrac} as a real XML-RPC endpoint on a
+ * loopback port, so that transports, concurrency and latency handling can
+ * be exercised end to end without a Trac install. Latency, jitter and
+ * failures can be injected to simulate a slow or unreliable server.
+ * Requests sent as application/json are answered as JSON-RPC.
+ * 
+ * Usage:
+ *   FakeTrac trac = new FakeTrac();
+ *   trac.populate(10000);
+ *   try(FakeTracServer server = new FakeTracServer(trac)) {
+ *     server.setLatency(20);
+ *     config.setServerAddress(server.getAddress());
+ *     ...
+ *   }
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class FakeTracServer implements Closeable
+{
+  private final FakeTrac trac;
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
+  private final TypeFactory typeFactory;
+  private final JsonFactory json = new JsonFactory();
+  private volatile long latency = 0;
+  private volatile long jitter = 0;
+  private volatile double errorRate = 0;
+  private volatile double faultRate = 0;
+  private final AtomicInteger stallCount = new AtomicInteger();
+  private volatile long stall = 0;
+  private final AtomicInteger requestCount = new AtomicInteger();
+  private final AtomicInteger concurrentRequests = new AtomicInteger();
+  private final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+  
+  /**
+   * Starts serving a fake on an ephemeral loopback port
+   * @param trac the fake answering calls
+   * @throws IOException if the server can't be started
+   */
+  public FakeTracServer(FakeTrac trac) throws IOException
+  {
+    this.trac = trac;
+    // Trac reads and writes dateTime values without a zone as UTC
+    config.setTimeZone(TimeZone.getTimeZone("UTC"));
+    XmlRpcClient client = new XmlRpcClient();
+    client.setConfig(config);
+    this.typeFactory = new TypeFactoryImpl(client);
+    
+    this.executor = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "fake-trac-server");
+      t.setDaemon(true);
+      return t;
+    });
+    this.server = HttpServer.create(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.server.createContext("/trac/rpc", this::handle);
+    this.server.setExecutor(executor);
+    this.server.start();
+  }
+  
+  /**
+   * Gets the URL to configure TracRpc with
+   * @return the XML-RPC endpoint address
+   */
+  public String getAddress()
+  {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/trac/rpc";
+  }
+  
+  /**
+   * Sets a fixed delay added before every response
+   * @param millis delay in milliseconds
+   */
+  public void setLatency(long millis)
+  {
+    this.latency = millis;
+  }
+  
+  /**
+   * Sets a random extra delay, uniformly distributed between zero and the
+   * given value, added before every response
+   * @param millis maximum extra delay in milliseconds
+   */
+  public void setJitter(long millis)
+  {
+    this.jitter = millis;
+  }
+  
+  /**
+   * Sets the fraction of requests answered with HTTP 500, as a server that
+   * is overloaded or behind a failing proxy would
+   * @param rate between 0 (never) and 1 (always)
+   */
+  public void setErrorRate(double rate)
+  {
+    this.errorRate = rate;
+  }
+  
+  /**
+   * Sets the fraction of requests answered with an XML-RPC fault instead
+   * of their result
+   * @param rate between 0 (never) and 1 (always)
+   */
+  public void setFaultRate(double rate)
+  {
+    this.faultRate = rate;
+  }
+  
+  /**
+   * Delays the next few requests by a long time, as a stalled server
+   * thread or a lost packet would
+   * @param count number of requests to stall
+   * @param millis delay in milliseconds
+   */
+  public void stallNext(int count, long millis)
+  {
+    this.stall = millis;
+    this.stallCount.set(count);
+  }
+  
+  /**
+   * Gets how many requests have been received
+   * @return the number of requests since the server started
+   */
+  public int getRequestCount()
+  {
+    return requestCount.get();
+  }
+  
+  /**
+   * Gets the most requests that have been handled at once
+   * @return the peak number of concurrent requests
+   */
+  public int getMaxConcurrentRequests()
+  {
+    return maxConcurrentRequests.get();
+  }
+  
+  private void handle(HttpExchange exchange) throws IOException
+  {
+    requestCount.incrementAndGet();
+    maxConcurrentRequests.accumulateAndGet(
+            concurrentRequests.incrementAndGet(), Math::max);
+    AtomicBoolean active = new AtomicBoolean(true);
+    try {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      long delay = latency + (jitter > 0 ? random.nextLong(jitter + 1) : 0);
+      if(stallCount.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+        delay += stall;
+      }
+      if(delay > 0) {
+        Thread.sleep(delay);
+      }
+      if(exchange.getRequestHeaders().getFirst("Content-Length") == null) {
+        // as mod_wsgi and tracd do with chunked request bodies
+        exchange.getRequestBody().readAllBytes();
+        this.sendHeaders(exchange, active, 411, -1);
+        return;
+      }
+      if(random.nextDouble() < errorRate) {
+        exchange.getRequestBody().readAllBytes();
+        this.sendHeaders(exchange, active, 500, -1);
+        return;
+      }
+      
+      String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+      if(contentType != null && contentType.startsWith("application/json")) {
+        this.handleJson(exchange, active, random.nextDouble() < faultRate);
+        return;
+      }
+      
+      byte[] response;
+      try(InputStream in = exchange.getRequestBody()) {
+        XmlRpcRequestParser request = this.parseRequest(in);
+        if(random.nextDouble() < faultRate) {
+          throw new TracRpcException("Injected fault");
+        }
+        List<?> params = request.getParams();
+        response = this.writeResponse(trac.invoke(request.getMethodName(), 
+                params == null ? new Object[0] : params.toArray()));
+      } catch(TracRpcException e) {
+        response = this.writeFault(e.getMessage());
+      }
+      exchange.getResponseHeaders().set("Content-Type", "text/xml");
+      this.sendHeaders(exchange, active, 200, response.length);
+      try(OutputStream out = exchange.getResponseBody()) {
+        out.write(response);
+      }
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch(Exception e) {
+      this.sendHeaders(exchange, active, 500, -1);
+    } finally {
+      if(active.getAndSet(false)) {
+        concurrentRequests.decrementAndGet();
+      }
+      exchange.close();
+    }
+  }
+  
+  /**
+   * Sends the response headers, from when the request no longer counts as
+   * in progress: the client can have its answer, and send another request,
+   * before this thread finishes closing the exchange
+   */
+  private void sendHeaders(HttpExchange exchange, AtomicBoolean active, 
+          int status, long length) throws IOException
+  {
+    if(active.getAndSet(false)) {
+      concurrentRequests.decrementAndGet();
+    }
+    exchange.sendResponseHeaders(status, length);
+  }
+  
+  /**
+   * Answers a JSON-RPC request as the Trac RPC plugin would, including its
+   * form of system.multicall
+   */
+  private void handleJson(HttpExchange exchange, AtomicBoolean active, 
+          boolean fault) throws Exception
+  {
+    String method = null;
+    Object[] params = new Object[0];
+    Object id = null;
+    try(JsonParser parser = json.createParser(exchange.getRequestBody())) {
+      parser.nextToken();
+      while(parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.currentName();
+        parser.nextToken();
+        Object value = JsonRpcCodec.readValue(parser);
+        if(field.equals("method")) {
+          method = (String)value;
+        }
+        else if(field.equals("params")) {
+          params = (Object[])value;
+        }
+        else if(field.equals("id")) {
+          id = value;
+        }
+      }
+    }
+    
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try(JsonGenerator gen = json.createGenerator(out)) {
+      if(method.equals("system.multicall") && !fault) {
+        gen.writeStartArray();
+        for(Object call : params) {
+          Map<?, ?> request = (Map<?, ?>)call;
+          this.writeJsonResponse(gen, request.get("id"), false, 
+                  (String)request.get("method"), (Object[])request.get("params"));
+        }
+        gen.writeEndArray();
+      }
+      else {
+        this.writeJsonResponse(gen, id, fault, method, params);
+      }
+    }
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    this.sendHeaders(exchange, active, 200, out.size());
+    try(OutputStream body = exchange.getResponseBody()) {
+      out.writeTo(body);
+    }
+  }
+  
+  private void writeJsonResponse(JsonGenerator gen, Object id, boolean fault, 
+          String method, Object[] params) throws IOException
+  {
+    gen.writeStartObject();
+    try {
+      if(fault) {
+        throw new TracRpcException("Injected fault");
+      }
+      Object result = trac.invoke(method, params);
+      gen.writeFieldName("result");
+      JsonRpcCodec.writeValue(gen, result);
+      gen.writeNullField("error");
+    } catch(TracRpcException e) {
+      gen.writeNullField("result");
+      gen.writeObjectFieldStart("error");
+      gen.writeStringField("name", "JSONRPCError");
+      gen.writeStringField("message", e.getMessage());
+      gen.writeNumberField("code", -32603);
+      gen.writeEndObject();
+    }
+    gen.writeFieldName("id");
+    JsonRpcCodec.writeValue(gen, id);
+    gen.writeEndObject();
+  }
+  
+  private XmlRpcRequestParser parseRequest(InputStream in) throws Exception
+  {
+    XmlRpcRequestParser parser = new XmlRpcRequestParser(config, typeFactory);
+    XMLReader reader = SAXParsers.newXMLReader();
+    reader.setContentHandler(parser);
+    reader.parse(new InputSource(in));
+    return parser;
+  }
+  
+  private byte[] writeResponse(Object result) throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    this.writer(out).write(config, result);
+    return out.toByteArray();
+  }
+  
+  private byte[] writeFault(String message) throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    this.writer(out).write(config, 1, message);
+    return out.toByteArray();
+  }
+  
+  private XmlRpcWriter writer(OutputStream out) throws XmlRpcException
+  {
+    return new XmlRpcWriter(config, 
+            new DefaultXMLWriterFactory().getXmlWriter(config, out), 
+            typeFactory);
+  }
+  
+  /**
+   * Stops the server, abandoning any requests in progress
+   */
+  @Override
+  public void close()
+  {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests TracRpc over real HTTP against the FakeTracServer
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class FakeTracServerTest extends TestCase
+{
+  public FakeTracServerTest( String testName )
+  {
+    super( testName );
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite( FakeTracServerTest.class );
+  }
+  
+  private static TracRpc connect(FakeTracServer server) throws TracRpcException
+  {
+    TracRpcConfiguration config = new TracRpcConfiguration();
+    config.setServerAddress(server.getAddress());
+    config.setTransport(TracRpcConfiguration.Transport.POOLED);
+    return new TracRpc(config);
+  }
+  
+  public void testServesTicketsMilestonesAndWiki() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(20);
+    try(FakeTracServer server = new FakeTracServer(trac);
+        TracRpc rpc = connect(server)) {
+      Ticket t = rpc.getTicket(3);
+      assertEquals("Generated ticket 2", t.getSummary());
+      assertNotNull(t.getCreated());
+      assertEquals(20, rpc.getTickets(Arrays.asList(
+              1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20))
+              .getResults().size());
+      
+      rpc.createMilestone(new Milestone("3.0", new Date()));
+      assertEquals("Milestone 1.0", rpc.getMilestone("1.0").getDescription());
+      assertEquals("3.0", rpc.getMilestone("3.0").getName());
+      
+      rpc.setWikiPage("Start", "Hello");
+      assertEquals("Hello", rpc.getWikiPage("Start"));
+    }
+  }
+  
+  public void testStreamsAttachments() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(5);
+    byte[] log = new byte[3 * 1024 * 1024 + 7];
+    new Random(42).nextBytes(log);
+    try(FakeTracServer server = new FakeTracServer(trac);
+        TracRpc rpc = connect(server)) {
+      assertEquals("build.log", rpc.putTicketAttachment(2, "build.log", 
+              "Log for <r&d> build", new ByteArrayInputStream(log), false));
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      rpc.getTicketAttachment(2, "build.log", out);
+      assertTrue(Arrays.equals(log, out.toByteArray()));
+      try {
+        rpc.putTicketAttachment(2, "build.log", "", 
+                new ByteArrayInputStream(new byte[1]), false);
+        fail("Expected the existing attachment to be kept");
+      } catch(TracRpcException e) {
+        assertTrue(e.isFault());
+      }
+      
+      rpc.putWikiAttachment("WikiStart", "notes.txt", 
+              new ByteArrayInputStream("Release notes".getBytes("UTF-8")));
+      out.reset();
+      rpc.getWikiAttachment("WikiStart", "notes.txt", out);
+      assertEquals("Release notes", out.toString("UTF-8"));
+      try {
+        rpc.getWikiAttachment("WikiStart", "missing.txt", out);
+        fail("Expected a missing attachment to fault");
+      } catch(TracRpcException e) {
+        assertTrue(e.getMessage().contains("missing.txt"));
+      }
+    }
+  }
+  
+  public void testStreamsAttachmentsOfKnownLength() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(2);
+    byte[] data = new byte[200 * 1024 + 1];
+    new Random(7).nextBytes(data);
+    File file = File.createTempFile("attachment", ".bin");
+    try(FakeTracServer server = new FakeTracServer(trac);
+        TracRpc rpc = connect(server)) {
+      Files.write(file.toPath(), data);
+      try(FileChannel channel = FileChannel.open(file.toPath())) {
+        channel.position(1);
+        rpc.putTicketAttachment(1, "tail.bin", "", channel, false);
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      rpc.getTicketAttachment(1, "tail.bin", out);
+      assertTrue(Arrays.equals(Arrays.copyOfRange(data, 1, data.length), 
+                               out.toByteArray()));
+      
+      rpc.putWikiAttachment("WikiStart", "head.bin", 
+              new ByteArrayInputStream(data), 10);
+      out.reset();
+      rpc.getWikiAttachment("WikiStart", "head.bin", out);
+      assertTrue(Arrays.equals(Arrays.copyOf(data, 10), out.toByteArray()));
+      
+      try {
+        rpc.putTicketAttachment(1, "short.bin", "", 
+                new ByteArrayInputStream(data), data.length + 1, false);
+        fail("Expected a stream shorter than its length to fail");
+      } catch(TracRpcException e) {
+        assertFalse(e.isFault());
+      }
+    } finally {
+      file.delete();
+    }
+  }
+  
+  public void testTicketCacheRefreshIgnoresClientTimeZone() throws Exception
+  {
+    TimeZone saved = TimeZone.getDefault();
+    TimeZone.setDefault(TimeZone.getTimeZone("Australia/Sydney"));
+    try {
+      FakeTrac trac = new FakeTrac();
+      trac.populate(5);
+      try(FakeTracServer server = new FakeTracServer(trac)) {
+        TracRpcConfiguration config = new TracRpcConfiguration();
+        config.setServerAddress(server.getAddress());
+        config.setTicketCacheSize(10);
+        try(TracRpc rpc = new TracRpc(config)) {
+          rpc.refreshTicketCache();
+          assertEquals("Generated ticket 2", rpc.getTicket(3).getSummary());
+          
+          trac.changeTicket(3, "summary", "Changed");
+          rpc.refreshTicketCache();
+          assertEquals("Changed", rpc.getTicket(3).getSummary());
+        }
+      }
+    } finally {
+      TimeZone.setDefault(saved);
+    }
+  }
+  
+  public void testPooledTransportCapsConnections() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(8);
+    try(FakeTracServer server = new FakeTracServer(trac)) {
+      server.setLatency(50);
+      TracRpcConfiguration config = new TracRpcConfiguration();
+      config.setServerAddress(server.getAddress());
+      config.setTransport(TracRpcConfiguration.Transport.POOLED);
+      config.setMaxConnectionsPerHost(2);
+      TracRpc rpc = new TracRpc(config);
+      ExecutorService executor = Executors.newFixedThreadPool(8);
+      try {
+        List<Future<Ticket>> tickets = new ArrayList<Future<Ticket>>();
+        for(int id = 1; id <= 8; ++id) {
+          final int ticket = id;
+          tickets.add(executor.submit(() -> rpc.getTicket(ticket)));
+        }
+        for(int id = 1; id <= 8; ++id) {
+          assertEquals(id, (int)tickets.get(id - 1).get().getId());
+        }
+      } finally {
+        executor.shutdown();
+      }
+      assertEquals(2, server.getMaxConcurrentRequests());
+      
+      rpc.close();
+      try {
+        rpc.getTicket(1);
+        fail("Expected calls after close to fail");
+      } catch(TracRpcException e) {
+        assertFalse(e.isFault());
+      }
+    }
+  }
+  
+  public void testInjectsLatencyAndErrors() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(1);
+    try(FakeTracServer server = new FakeTracServer(trac);
+        TracRpc rpc = connect(server)) {
+      server.setLatency(100);
+      long start = System.nanoTime();
+      rpc.getTicket(1);
+      assertTrue(System.nanoTime() - start >= 100000000L);
+      
+      server.setLatency(0);
+      server.setErrorRate(1);
+      try {
+        rpc.getTicket(1);
+        fail("Injected error was not reported");
+      } catch(TracRpcException e) {
+        assertNotNull(e.getMessage());
+      }
+      
+      server.setErrorRate(0);
+      server.setFaultRate(1);
+      try {
+        rpc.getTicket(1);
+        fail("Injected fault was not reported");
+      } catch(TracRpcException e) {
+        assertEquals("Injected fault", e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the HttpClientTransport class against a canned local HTTP server
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class HttpClientTransportTest extends TestCase
+{
+  private HttpServer server;
+  
+  public HttpClientTransportTest( String testName )
+  {
+    super( testName );
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite( HttpClientTransportTest.class );
+  }
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/rpc", exchange -> {
+      String request = readAll(exchange.getRequestBody());
+      String body;
+      if(request.contains("wiki.getPage") || request.contains("wiki.getAttachment")) {
+        body = "<?xml version='1.0'?><methodResponse><params><param>"
+             + "<value><string>= Hello =</string></value>"
+             + "</param></params></methodResponse>";
+      }
+      else {
+        body = "<?xml version='1.0'?><methodResponse><fault><value><struct>"
+             + "<member><name>faultCode</name><value><int>1</int></value></member>"
+             + "<member><name>faultString</name><value><string>no such method"
+             + "</string></value></member></struct></value></fault></methodResponse>";
+      }
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/xml");
+      exchange.sendResponseHeaders(200, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    });
+    server.start();
+  }
+
+  @Override
+  protected void tearDown()
+  {
+    server.stop(0);
+  }
+  
+  private static String readAll(InputStream in) throws java.io.IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    in.transferTo(out);
+    return out.toString(StandardCharsets.UTF_8);
+  }
+  
+  private TracRpc newRpc() throws TracRpcException
+  {
+    TracRpcConfiguration config = new TracRpcConfiguration();
+    config.setServerAddress("http://127.0.0.1:" + server.getAddress().getPort() + "/rpc");
+    config.setTransport(TracRpcConfiguration.Transport.HTTP_CLIENT);
+    config.setReplyTimeout(5000);
+    return new TracRpc(config);
+  }
+  
+  public void testBlockingCall() throws TracRpcException
+  {
+    assertEquals("= Hello =", newRpc().getWikiPage("WikiStart"));
+  }
+  
+  public void testNonBlockingCalls() throws Exception
+  {
+    TracRpc rpc = newRpc();
+    List<CompletableFuture<Object>> futures = new ArrayList<CompletableFuture<Object>>();
+    for(int i = 0; i < 20; ++i) {
+      futures.add(rpc.callAsync("wiki.getPage", new Object[]{"WikiStart"}, 
+                                ForkJoinPool.commonPool()));
+    }
+    for(CompletableFuture<Object> f : futures) {
+      assertEquals("= Hello =", f.get());
+    }
+  }
+  
+  public void testFaultCompletesExceptionally() throws Exception
+  {
+    try {
+      newRpc().callAsync("bogus", new Object[0], ForkJoinPool.commonPool()).get();
+      fail("Should not have reached this line without throwing");
+    }
+    catch(ExecutionException e) {
+      assertTrue(e.getCause() instanceof TracRpcException);
+      assertEquals("no such method", e.getCause().getMessage());
+    }
+  }
+  
+  public void testDownloadWithoutFileFails() throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      newRpc().getWikiAttachment("WikiStart", "notes.txt", out);
+      fail("Should not have reached this line without throwing");
+    }
+    catch(TracRpcException e) {
+      assertFalse(e.isFault());
+    }
+    assertEquals(0, out.size());
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * Tests the JSON-RPC codec on its own and against the FakeTracServer
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class JsonRpcCodecTest extends TestCase
+{
+  public JsonRpcCodecTest( String testName )
+  {
+    super( testName );
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite( JsonRpcCodecTest.class );
+  }
+  
+  private static Object read(String json, String method) throws Exception
+  {
+    return new JsonRpcCodec().readResponse(new ByteArrayInputStream(
+            json.getBytes(StandardCharsets.UTF_8)), method);
+  }
+  
+  public void testWritesRequests() throws Exception
+  {
+    Map<String, Object> attribs = new HashMap<String, Object>();
+    attribs.put("due", new Date(1296705906000L));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new JsonRpcCodec().writeRequest(out, "ticket.milestone.update", 
+            new Object[] { "1.0", attribs, new byte[] { 1, 2, 3 } });
+    assertEquals("{\"method\":\"ticket.milestone.update\",\"params\":[\"1.0\","
+            + "{\"due\":{\"__jsonclass__\":[\"datetime\",\"2011-02-03T04:05:06\"]}},"
+            + "{\"__jsonclass__\":[\"binary\",\"AQID\"]}],\"id\":1}", 
+            out.toString("UTF-8"));
+    
+    Map<String, Object> call = new HashMap<String, Object>();
+    call.put("methodName", "ticket.get");
+    call.put("params", new Object[] { 7 });
+    out.reset();
+    new JsonRpcCodec().writeRequest(out, "system.multicall", 
+            new Object[] { new Object[] { call } });
+    assertEquals("{\"method\":\"system.multicall\",\"params\":["
+            + "{\"method\":\"ticket.get\",\"params\":[7],\"id\":0}],\"id\":1}", 
+            out.toString("UTF-8"));
+  }
+  
+  public void testReadsResults() throws Exception
+  {
+    Object[] result = (Object[])read("{\"id\":1,\"error\":null,\"result\":"
+            + "[7,{\"__jsonclass__\":[\"datetime\",\"2011-02-03T04:05:06\"]},"
+            + "{\"__jsonclass__\":[\"datetime\",\"2011-02-03T05:05:06+01:00\"]},"
+            + "{\"summary\":\"Hi\",\"big\":12345678901,\"ratio\":0.5,\"ok\":true}]}", 
+            "ticket.get");
+    assertEquals(7, result[0]);
+    assertEquals(new Date(1296705906000L), result[1]);
+    assertEquals(new Date(1296705906000L), result[2]);
+    Map<?, ?> attribs = (Map<?, ?>)result[3];
+    assertEquals("Hi", attribs.get("summary"));
+    assertEquals(12345678901L, attribs.get("big"));
+    assertEquals(0.5, attribs.get("ratio"));
+    assertEquals(Boolean.TRUE, attribs.get("ok"));
+  }
+  
+  public void testReadsFaults() throws Exception
+  {
+    try {
+      read("{\"result\":null,\"error\":{\"name\":\"JSONRPCError\","
+              + "\"message\":\"Ticket 9 does not exist.\",\"code\":-32603},\"id\":1}", 
+              "ticket.get");
+      fail("Expected a fault");
+    } catch(XmlRpcException e) {
+      assertEquals(-32603, e.code);
+      assertEquals("Ticket 9 does not exist.", e.getMessage());
+    }
+    
+    Object[] results = (Object[])read("[{\"result\":\"a\",\"error\":null,\"id\":0},"
+            + "{\"result\":null,\"error\":{\"message\":\"No\",\"code\":2},\"id\":1}]", 
+            "system.multicall");
+    assertTrue(Arrays.equals(new Object[] { "a" }, (Object[])results[0]));
+    assertEquals(2, ((Map)results[1]).get("faultCode"));
+    assertEquals("No", ((Map)results[1]).get("faultString"));
+  }
+  
+  public void testTalksToFakeServer() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(20);
+    try(FakeTracServer server = new FakeTracServer(trac)) {
+      TracRpcConfiguration config = new TracRpcConfiguration();
+      config.setServerAddress(server.getAddress());
+      config.setTransport(TracRpcConfiguration.Transport.HTTP_CLIENT);
+      config.setProtocol(TracRpcConfiguration.Protocol.JSON_RPC);
+      config.setMulticallBatchSize(5);
+      try(TracRpc rpc = new TracRpc(config)) {
+        Ticket t = rpc.getTicket(3);
+        assertEquals("Generated ticket 2", t.getSummary());
+        assertNotNull(t.getCreated());
+        
+        BatchResult<Integer, Ticket> batch = rpc.getTickets(
+                Arrays.asList(1, 2, 3, 4, 5, 6, 7, 99));
+        assertEquals(7, batch.getResults().size());
+        assertTrue(batch.getErrors().get(99).isFault());
+        
+        rpc.createMilestone(new Milestone("3.0", new Date(1296705906000L)));
+        assertEquals(new Date(1296705906000L), rpc.getMilestone("3.0").getDue());
+        
+        Ticket created = new Ticket();
+        created.setSummary("Over JSON");
+        rpc.createTicket(created, false);
+        assertEquals("Over JSON", rpc.getTicket(created.getId()).getSummary());
+        
+        server.setFaultRate(1);
+        try {
+          rpc.getTicket(1);
+          fail("Expected a fault");
+        } catch(TracRpcException e) {
+          assertTrue(e.isFault());
+          assertEquals("Injected fault", e.getMessage());
+        }
+      }
+    }
+  }
+  
+  public void testRequiresHttpClientTransport()
+  {
+    TracRpcConfiguration config = new TracRpcConfiguration();
+    config.setServerAddress("http://localhost/trac/rpc");
+    config.setProtocol(TracRpcConfiguration.Protocol.JSON_RPC);
+    try {
+      new TracRpc(config);
+      fail("Expected JSON-RPC over the default transport to be refused");
+    } catch(TracRpcException e) {
+      assertNotNull(e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the LogTicketStore class
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class LogTicketStoreTest extends TestCase
+{
+  private File dir;
+  
+  public LogTicketStoreTest( String testName )
+  {
+    super( testName );
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite( LogTicketStoreTest.class );
+  }
+
+  @Override
+  protected void setUp() throws IOException
+  {
+    dir = File.createTempFile("tickets", "");
+    dir.delete();
+  }
+
+  @Override
+  protected void tearDown()
+  {
+    File[] files = dir.listFiles();
+    if(files != null) {
+      for(File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+  
+  private static Ticket ticket(int id, String summary)
+  {
+    Ticket t = new Ticket();
+    t.setId(id);
+    t.setSummary(summary);
+    t.setCreated(new Date(1500000000000L + id));
+    t.attribs.put("estimate", 2.5);
+    t.attribs.put("blocking", null);
+    return t;
+  }
+  
+  public void testPutAndGet() throws IOException
+  {
+    try (LogTicketStore store = new LogTicketStore(dir)) {
+      assertNull(store.get(1));
+      store.put(ticket(1, "First"));
+      store.put(ticket(2, "Second é"));
+      store.put(ticket(1, "First again"));
+      assertEquals(2, store.size());
+      assertEquals("First again", store.get(1).getSummary());
+      assertEquals("Second é", store.get(2).getSummary());
+      assertEquals(new Date(1500000000002L), store.get(2).getCreated());
+      assertEquals(2.5, store.get(2).getAttribs().get("estimate"));
+      assertTrue(store.get(2).getAttribs().containsKey("blocking"));
+      
+      store.remove(1);
+      assertNull(store.get(1));
+      assertEquals(1, store.size());
+    }
+  }
+  
+  public void testSurvivesReopen() throws IOException
+  {
+    try (LogTicketStore store = new LogTicketStore(dir)) {
+      store.put(ticket(1, "First"));
+      store.put(ticket(7, "Seventh"));
+      store.setHighWaterMark(new Date(1234000));
+    }
+    try (LogTicketStore store = new LogTicketStore(dir)) {
+      assertEquals(2, store.size());
+      assertEquals("Seventh", store.get(7).getSummary());
+      assertEquals(new Date(1234000), store.getHighWaterMark());
+    }
+  }
+  
+  public void testReplaysRecordsAfterIndex() throws IOException
+  {
+    LogTicketStore store = new LogTicketStore(dir);
+    store.put(ticket(1, "First"));
+    store.flush();
+    store.put(ticket(2, "Second"));
+    store.remove(1);
+    
+    // reopen without flushing the index, as after a crash
+    LogTicketStore reopened = new LogTicketStore(dir);
+    assertEquals(1, reopened.size());
+    assertNull(reopened.get(1));
+    assertEquals("Second", reopened.get(2).getSummary());
+    reopened.close();
+    store.close();
+  }
+  
+  public void testDiscardsTornRecord() throws IOException
+  {
+    try (LogTicketStore store = new LogTicketStore(dir)) {
+      store.put(ticket(1, "First"));
+      store.put(ticket(2, "Second"));
+    }
+    
+    File log = new File(dir, "tickets.log");
+    try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+      raf.setLength(raf.length() - 3);
+    }
+    new File(dir, "tickets.idx").delete();
+    
+    try (LogTicketStore store = new LogTicketStore(dir)) {
+      assertEquals(1, store.size());
+      assertEquals("First", store.get(1).getSummary());
+      store.put(ticket(3, "Third"));
+      assertEquals("Third", store.get(3).getSummary());
+    }
+  }
+  
+  public void testRecordsDontSpanSegments() throws IOException
+  {
+    try (LogTicketStore store = new LogTicketStore(dir, 256)) {
+      for(int i = 1; i <= 50; ++i) {
+        store.put(ticket(i, "Ticket number " + i));
+        assertEquals("Ticket number " + i, store.get(i).getSummary());
+      }
+    }
+    try (LogTicketStore store = new LogTicketStore(dir, 256)) {
+      assertEquals(50, store.size());
+      for(int i = 1; i <= 50; ++i) {
+        assertEquals("Ticket number " + i, store.get(i).getSummary());
+      }
+    }
+  }
+  
+  public void testCompactKeepsLatest() throws IOException
+  {
+    try (LogTicketStore store = new LogTicketStore(dir)) {
+      for(int i = 0; i < 10; ++i) {
+        store.put(ticket(1, "Version " + i));
+      }
+      store.put(ticket(2, "Other"));
+      long before = new File(dir, "tickets.log").length();
+      store.compact();
+      assertTrue(new File(dir, "tickets.log").length() < before);
+      assertEquals("Version 9", store.get(1).getSummary());
+      store.put(ticket(3, "After"));
+    }
+    try (LogTicketStore store = new LogTicketStore(dir)) {
+      assertEquals(3, store.size());
+      assertEquals("Version 9", store.get(1).getSummary());
+      assertEquals("After", store.get(3).getSummary());
+    }
+  }
+  
+  public void testCompactRemovesIndexBeforeReplacingLog() throws IOException
+  {
+    try (LogTicketStore store = new LogTicketStore(dir)) {
+      store.put(ticket(2, "Second"));
+      store.put(ticket(1, "First"));
+      store.setHighWaterMark(new Date(1234000));
+      store.flush();
+      File staleIndex = new File(dir, "stale.idx");
+      Files.copy(new File(dir, "tickets.idx").toPath(), staleIndex.toPath());
+      store.compact();
+      
+      // the index as it was if the process died just after the log swap
+      Files.move(staleIndex.toPath(), new File(dir, "tickets.idx").toPath(), 
+                 StandardCopyOption.REPLACE_EXISTING);
+      try (LogTicketStore reopened = new LogTicketStore(dir)) {
+        assertEquals(2, reopened.size());
+        assertEquals("First", reopened.get(1).getSummary());
+        assertEquals("Second", reopened.get(2).getSummary());
+        assertNull(reopened.getHighWaterMark());
+      }
+    }
+  }
+  
+  public void testIgnoresCorruptIndex() throws IOException
+  {
+    long logLength;
+    try (LogTicketStore store = new LogTicketStore(dir)) {
+      store.put(ticket(1, "First"));
+      store.put(ticket(2, "Second"));
+      store.setHighWaterMark(new Date(1234000));
+      logLength = new File(dir, "tickets.log").length();
+    }
+    long[][] entries = {
+      {-1, 12}, {1, -12}, {1, logLength + 12}, {1 << 30, 12}, {2, 12}
+    };
+    for(long[] entry : entries) {
+      try (DataOutputStream out = new DataOutputStream(
+              new FileOutputStream(new File(dir, "tickets.idx")))) {
+        out.writeInt(0x54524958);
+        out.writeInt(1);
+        out.writeLong(logLength);
+        out.writeLong(1234000);
+        out.writeInt(1);
+        out.writeInt((int)entry[0]);
+        out.writeLong(entry[1]);
+      }
+      try (LogTicketStore reopened = new LogTicketStore(dir)) {
+        assertEquals(2, reopened.size());
+        assertEquals("First", reopened.get(1).getSummary());
+        assertEquals("Second", reopened.get(2).getSummary());
+        assertNull(reopened.getHighWaterMark());
+      }
+    }
+  }
+  
+  public void testBacksTicketMirror() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.addTicket("Mirrored", null);
+    try (LogTicketStore store = new LogTicketStore(dir)) {
+      new TicketMirror(trac.connect(), store).sync();
+    }
+    try (LogTicketStore store = new LogTicketStore(dir)) {
+      assertEquals("Mirrored", new TicketMirror(trac.connect(), store)
+                               .getTicket(1).getSummary());
+      assertNotNull(store.getHighWaterMark());
+    }
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests that identical concurrent reads share one request
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class ReadCoalescingTest extends TestCase
+{
+  public ReadCoalescingTest( String testName )
+  {
+    super( testName );
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite( ReadCoalescingTest.class );
+  }
+  
+  private static TracRpcConfiguration config(FakeTracServer server)
+  {
+    TracRpcConfiguration config = new TracRpcConfiguration();
+    config.setServerAddress(server.getAddress());
+    config.setTransport(TracRpcConfiguration.Transport.POOLED);
+    config.setCoalesceReads(true);
+    return config;
+  }
+  
+  /**
+   * Runs a task on several threads at once
+   */
+  private static <T> List<T> concurrently(int threads, final Callable<T> task) 
+          throws Exception
+  {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Future<T>> futures = new ArrayList<Future<T>>();
+      for(int i = 0; i < threads; ++i) {
+        futures.add(executor.submit(() -> {
+          start.await();
+          return task.call();
+        }));
+      }
+      start.countDown();
+      List<T> results = new ArrayList<T>();
+      for(Future<T> future : futures) {
+        results.add(future.get());
+      }
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+  
+  public void testCoalescesConcurrentReads() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(5);
+    try(FakeTracServer server = new FakeTracServer(trac)) {
+      server.setLatency(300);
+      try(final TracRpc rpc = new TracRpc(config(server))) {
+        List<Ticket> tickets = concurrently(10, () -> rpc.getTicket(3));
+        assertTrue(server.getRequestCount() < 10);
+        for(int i = 1; i < tickets.size(); ++i) {
+          assertEquals(3, (int)tickets.get(i).getId());
+          assertNotSame(tickets.get(0), tickets.get(i));
+        }
+        
+        server.setFaultRate(1);
+        int before = server.getRequestCount();
+        List<Boolean> faults = concurrently(10, () -> {
+          try {
+            rpc.getMilestone("1.0");
+            return false;
+          } catch(TracRpcException e) {
+            return e.isFault();
+          }
+        });
+        assertFalse(faults.contains(false));
+        assertTrue(server.getRequestCount() - before < 10);
+      }
+    }
+  }
+  
+  public void testDoesNotCoalesceWrites() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    try(FakeTracServer server = new FakeTracServer(trac)) {
+      server.setLatency(100);
+      try(final TracRpc rpc = new TracRpc(config(server))) {
+        concurrently(5, () -> {
+          rpc.setWikiPage("Start", "Hello");
+          return null;
+        });
+        assertEquals(5, server.getRequestCount());
+      }
+    }
+  }
+  
+  public void testOffByDefault() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(5);
+    try(FakeTracServer server = new FakeTracServer(trac)) {
+      server.setLatency(100);
+      TracRpcConfiguration config = new TracRpcConfiguration();
+      config.setServerAddress(server.getAddress());
+      try(final TracRpc rpc = new TracRpc(config)) {
+        concurrently(5, () -> rpc.getTicket(1));
+        assertEquals(5, server.getRequestCount());
+      }
+    }
+  }
+  
+  public void testCoalescedCallersGetOwnCopies() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(5);
+    try(FakeTracServer server = new FakeTracServer(trac)) {
+      server.setLatency(300);
+      try(final TracRpc rpc = new TracRpc(config(server))) {
+        List<Object> results = concurrently(10, () -> {
+          Object result = rpc.call("ticket.get", new Object[]{3});
+          Map<?, ?> attribs = (Map<?, ?>)((Object[])result)[3];
+          attribs.clear();
+          return result;
+        });
+        assertTrue(server.getRequestCount() < 10);
+        for(int i = 1; i < results.size(); ++i) {
+          assertNotSame(results.get(0), results.get(i));
+        }
+        assertEquals("Generated ticket 2", rpc.getTicket(3).getSummary());
+      }
+    }
+  }
+  
+  public void testReadAfterWriteDoesNotJoinEarlierRead() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    try(FakeTracServer server = new FakeTracServer(trac)) {
+      try(final TracRpc rpc = new TracRpc(config(server))) {
+        rpc.setWikiPage("Start", "Before");
+        server.stallNext(1, 500);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+          Future<String> early = executor.submit(() -> rpc.getWikiPage("Start"));
+          Thread.sleep(100);
+          rpc.setWikiPage("Start", "After");
+          assertEquals("After", rpc.getWikiPage("Start"));
+          early.get();
+          assertEquals(4, server.getRequestCount());
+        } finally {
+          executor.shutdownNow();
+        }
+      }
+    }
+  }
+  
+  public void testCoalescesAsyncReads() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    try(FakeTracServer server = new FakeTracServer(trac)) {
+      server.setLatency(200);
+      TracRpcConfiguration config = config(server);
+      config.setTransport(TracRpcConfiguration.Transport.HTTP_CLIENT);
+      try(TracRpc rpc = new TracRpc(config)) {
+        rpc.setWikiPage("Start", "Hello");
+        List<CompletableFuture<Object>> pages = new ArrayList<CompletableFuture<Object>>();
+        for(int i = 0; i < 10; ++i) {
+          pages.add(rpc.callAsync("wiki.getPage", new Object[] { "Start" }, 
+                                  ForkJoinPool.commonPool()));
+        }
+        for(CompletableFuture<Object> page : pages) {
+          assertEquals("Hello", page.join());
+        }
+        assertEquals(2, server.getRequestCount());
+      }
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.Arrays;
+import java.util.Date;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the TicketCache class
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class TicketCacheTest extends TestCase
+{
+  public TicketCacheTest( String testName )
+  {
+    super( testName );
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite( TicketCacheTest.class );
+  }
+  
+  private static Ticket ticket(int id, long changetime)
+  {
+    Ticket t = new Ticket();
+    t.setId(id);
+    t.attribs.put("changetime", new Date(changetime));
+    t.setSummary("Ticket " + id);
+    return t;
+  }
+  
+  public void testEvictsLeastRecentlyUsed()
+  {
+    TicketCache cache = new TicketCache(2);
+    cache.put(ticket(1, 0), cache.generation());
+    cache.put(ticket(2, 0), cache.generation());
+    assertNotNull(cache.get(1));
+    cache.put(ticket(3, 0), cache.generation());
+    assertEquals(2, cache.size());
+    assertNotNull(cache.get(1));
+    assertNull(cache.get(2));
+    assertNotNull(cache.get(3));
+  }
+  
+  public void testReturnsCopies()
+  {
+    TicketCache cache = new TicketCache(10);
+    cache.put(ticket(1, 0), cache.generation());
+    cache.get(1).setSummary("changed");
+    assertEquals("Ticket 1", cache.get(1).getSummary());
+    
+    cache.get(1).getModified().setTime(5000);
+    assertEquals(new Date(0), cache.get(1).getModified());
+    Ticket cached = ticket(2, 2000);
+    cache.put(cached, cache.generation());
+    cached.getModified().setTime(0);
+    Ticket old = ticket(2, 1000);
+    old.setSummary("old");
+    cache.put(old, cache.generation());
+    assertEquals("Ticket 2", cache.get(2).getSummary());
+  }
+  
+  public void testOlderVersionDoesNotReplaceNewer()
+  {
+    TicketCache cache = new TicketCache(10);
+    cache.put(ticket(1, 2000), cache.generation());
+    Ticket old = ticket(1, 1000);
+    old.setSummary("old");
+    cache.put(old, cache.generation());
+    assertEquals("Ticket 1", cache.get(1).getSummary());
+  }
+  
+  public void testFetchBeforeInvalidationIsNotCached()
+  {
+    TicketCache cache = new TicketCache(10);
+    long generation = cache.generation();
+    cache.invalidate(Arrays.asList(1));
+    cache.put(ticket(1, 0), generation);
+    assertNull(cache.get(1));
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the TicketCatalog class
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class TicketCatalogTest extends TestCase
+{
+  public TicketCatalogTest( String testName )
+  {
+    super( testName );
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite( TicketCatalogTest.class );
+  }
+  
+  private static TracRpc populated(FakeTrac trac) throws TracRpcException
+  {
+    TracRpc rpc = trac.connect();
+    Milestone m = new Milestone("1.0", null);
+    m.setDescription("First release");
+    rpc.createMilestone(m);
+    rpc.createMilestone(new Milestone("2.0", null));
+    rpc.createTicketVersion(new TicketVersion("0.9"));
+    trac.invoke("ticket.component.create", 
+            new Object[]{"core", new HashMap<String, Object>()});
+    return rpc;
+  }
+  
+  public void testRefreshLoadsEverythingInTwoRoundTrips() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    TracRpc rpc = populated(trac);
+    TicketCatalog catalog = new TicketCatalog(rpc);
+    catalog.refresh();
+    
+    assertEquals(2, trac.getCallCount("system.multicall"));
+    assertEquals(2, trac.getCallCount("ticket.milestone.get"));
+    assertEquals("First release", catalog.getMilestone("1.0").getDescription());
+    assertEquals(2, catalog.getMilestones().size());
+    assertEquals("0.9", catalog.getTicketVersion("0.9").getName());
+    assertEquals("core", catalog.getComponent("core").getName());
+    assertNull(catalog.getMilestone("3.0"));
+    assertEquals(Arrays.asList("defect", "enhancement", "task"), catalog.getTypes());
+    assertEquals(5, catalog.getPriorities().size());
+    assertTrue(catalog.getSeverities().isEmpty());
+  }
+  
+  public void testRefreshReplacesContents() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    TracRpc rpc = populated(trac);
+    TicketCatalog catalog = new TicketCatalog(rpc);
+    catalog.refresh();
+    
+    trac.invoke("ticket.milestone.delete", new Object[]{"2.0"});
+    rpc.createMilestone(new Milestone("3.0", null));
+    assertNotNull(catalog.getMilestone("2.0"));
+    
+    catalog.refresh();
+    assertNull(catalog.getMilestone("2.0"));
+    assertNotNull(catalog.getMilestone("3.0"));
+  }
+  
+  public void testLookupsCannotChangeCatalog() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    TracRpc rpc = populated(trac);
+    rpc.updateMilestone(new Milestone("2.0", new Date(1000)));
+    TicketCatalog catalog = new TicketCatalog(rpc);
+    catalog.refresh();
+    
+    catalog.getMilestone("1.0").setDescription("Changed");
+    catalog.getMilestones().iterator().next().setName("Renamed");
+    catalog.getMilestone("2.0").getDue().setTime(2000);
+    catalog.getComponent("core").setName("Renamed");
+    catalog.getTicketVersions().iterator().next().setName("Renamed");
+    
+    assertEquals("First release", catalog.getMilestone("1.0").getDescription());
+    assertEquals("1.0", catalog.getMilestones().iterator().next().getName());
+    assertEquals(1000, catalog.getMilestone("2.0").getDue().getTime());
+    assertEquals("core", catalog.getComponent("core").getName());
+    assertEquals("0.9", catalog.getTicketVersions().iterator().next().getName());
+    assertTrue(catalog.getMilestone("1.0").getChangedAttribs().isEmpty());
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.io.File;
+import java.util.Date;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the TicketMirror and MemoryTicketStore classes
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class TicketMirrorTest extends TestCase
+{
+  public TicketMirrorTest( String testName )
+  {
+    super( testName );
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite( TicketMirrorTest.class );
+  }
+  
+  private static FakeTrac tracWithTickets(int count)
+  {
+    FakeTrac trac = new FakeTrac();
+    for(int i = 1; i <= count; ++i) {
+      trac.addTicket("Ticket " + i, null);
+      trac.advanceClock(60000);
+    }
+    return trac;
+  }
+  
+  public void testInitialSyncLoadsEverything() throws Exception
+  {
+    FakeTrac trac = tracWithTickets(5);
+    TicketMirror mirror = new TicketMirror(trac.connect(), new MemoryTicketStore());
+    mirror.sync();
+    assertEquals(5, mirror.getStore().size());
+    assertEquals("Ticket 3", mirror.getTicket(3).getSummary());
+    assertNotNull(mirror.getStore().getHighWaterMark());
+  }
+  
+  public void testLaterSyncsFetchOnlyChanges() throws Exception
+  {
+    FakeTrac trac = tracWithTickets(5);
+    TicketMirror mirror = new TicketMirror(trac.connect(), new MemoryTicketStore());
+    mirror.sync();
+    int fetched = trac.getCallCount("ticket.get");
+    
+    trac.advanceClock(60000);
+    trac.changeTicket(2, "summary", "Changed");
+    trac.addTicket("Ticket 6", null);
+    mirror.sync();
+    
+    assertEquals(6, mirror.getStore().size());
+    assertEquals("Changed", mirror.getTicket(2).getSummary());
+    // the two changed tickets, ticket 5 again because syncs overlap by a
+    // second, and one get to find the latest change time
+    assertEquals(fetched + 4, trac.getCallCount("ticket.get"));
+  }
+  
+  public void testEmptyTracGetsHighWaterMark() throws Exception
+  {
+    TicketMirror mirror = new TicketMirror(new FakeTrac().connect(), 
+                                           new MemoryTicketStore());
+    mirror.sync();
+    assertEquals(0, mirror.getStore().size());
+    assertEquals(new Date(0), mirror.getStore().getHighWaterMark());
+  }
+  
+  public void testFaultsKeepStoredTickets() throws Exception
+  {
+    FakeTrac trac = tracWithTickets(3);
+    TicketMirror mirror = new TicketMirror(trac.connect(), new MemoryTicketStore());
+    mirror.sync();
+    Date mark = mirror.getStore().getHighWaterMark();
+    
+    trac.advanceClock(60000);
+    trac.changeTicket(1, "summary", "Hidden");
+    trac.changeTicket(2, "summary", "Changed");
+    trac.denyTicket(1);
+    try {
+      mirror.sync();
+      fail("Expected the permission fault to fail the sync");
+    } catch(TracRpcException e) {
+      assertEquals(403, e.getFaultCode());
+    }
+    assertEquals(3, mirror.getStore().size());
+    assertEquals("Ticket 1", mirror.getTicket(1).getSummary());
+    assertEquals("Changed", mirror.getTicket(2).getSummary());
+    assertEquals(mark, mirror.getStore().getHighWaterMark());
+  }
+  
+  public void testResyncRemovesDeletedTickets() throws Exception
+  {
+    FakeTrac trac = tracWithTickets(3);
+    TicketMirror mirror = new TicketMirror(trac.connect(), new MemoryTicketStore());
+    mirror.sync();
+    
+    trac.deleteTicket(2);
+    mirror.sync();
+    assertNotNull(mirror.getTicket(2));
+    mirror.resync();
+    assertNull(mirror.getTicket(2));
+    assertEquals(2, mirror.getStore().size());
+  }
+  
+  public void testSnapshotResumesAfterRestart() throws Exception
+  {
+    File snapshot = File.createTempFile("tickets", ".snapshot");
+    snapshot.delete();
+    try {
+      FakeTrac trac = tracWithTickets(3);
+      new TicketMirror(trac.connect(), new MemoryTicketStore(snapshot)).sync();
+      
+      MemoryTicketStore store = new MemoryTicketStore(snapshot);
+      assertEquals(3, store.size());
+      assertEquals("Ticket 1", store.get(1).getSummary());
+      assertNotNull(store.getHighWaterMark());
+      
+      new TicketMirror(trac.connect(), store).sync();
+      assertEquals(1, trac.getCallCount("ticket.getRecentChanges"));
+    }
+    finally {
+      snapshot.delete();
+    }
+  }
+}
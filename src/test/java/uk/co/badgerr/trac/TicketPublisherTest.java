@@ -0,0 +1,170 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests that ticket publishers fetch only what subscribers request
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class TicketPublisherTest extends TestCase
+{
+  public TicketPublisherTest( String testName )
+  {
+    super( testName );
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite( TicketPublisherTest.class );
+  }
+  
+  /**
+   * Records every signal, leaving demand to the test
+   */
+  private static class Recorder implements Flow.Subscriber<Ticket>
+  {
+    final BlockingQueue<Ticket> tickets = new LinkedBlockingQueue<Ticket>();
+    final CountDownLatch finished = new CountDownLatch(1);
+    volatile Flow.Subscription subscription;
+    volatile Throwable error;
+    
+    @Override
+    public void onSubscribe(Flow.Subscription subscription)
+    {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(Ticket item)
+    {
+      tickets.add(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable)
+    {
+      error = throwable;
+      finished.countDown();
+    }
+
+    @Override
+    public void onComplete()
+    {
+      finished.countDown();
+    }
+    
+    Ticket take() throws InterruptedException
+    {
+      Ticket t = tickets.poll(5, TimeUnit.SECONDS);
+      assertNotNull(t);
+      return t;
+    }
+  }
+  
+  public void testDemandSizesFetches() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(60);
+    TracRpcConfiguration config = new TracRpcConfiguration();
+    config.setMulticallBatchSize(25);
+    TracRpc rpc = trac.connect(config);
+    
+    Recorder recorder = new Recorder();
+    rpc.queryPublisher("").subscribe(recorder);
+    Thread.sleep(100);
+    assertEquals(0, trac.getCallCount("system.multicall"));
+    
+    recorder.subscription.request(3);
+    for(int id = 1; id <= 3; ++id) {
+      assertEquals(id, (int)recorder.take().getId());
+    }
+    Thread.sleep(100);
+    assertTrue(recorder.tickets.isEmpty());
+    assertEquals(1, trac.getCallCount("system.multicall"));
+    
+    recorder.subscription.request(Long.MAX_VALUE);
+    assertTrue(recorder.finished.await(5, TimeUnit.SECONDS));
+    assertNull(recorder.error);
+    assertEquals(57, recorder.tickets.size());
+    assertEquals(4, trac.getCallCount("system.multicall"));
+  }
+  
+  public void testCancelStopsFetching() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(10);
+    List<Integer> ids = Arrays.asList(5, 404, 3);
+    
+    Recorder recorder = new Recorder();
+    trac.connect().ticketPublisher(ids).subscribe(recorder);
+    recorder.subscription.request(1);
+    assertEquals(5, (int)recorder.take().getId());
+    recorder.subscription.request(1);
+    assertEquals(3, (int)recorder.take().getId());
+    recorder.subscription.cancel();
+    recorder.subscription.request(1);
+    Thread.sleep(100);
+    assertEquals(3, trac.getCallCount("system.multicall"));
+    assertEquals(1, recorder.finished.getCount());
+  }
+  
+  public void testFailuresAreSignalled() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    trac.populate(10);
+    TracRpc rpc = trac.connect();
+    
+    Recorder failed = new Recorder();
+    rpc.queryPublisher("bad").subscribe(failed);
+    failed.subscription.request(1);
+    assertTrue(failed.finished.await(5, TimeUnit.SECONDS));
+    assertTrue(failed.error instanceof TracRpcException);
+    
+    Recorder invalid = new Recorder();
+    rpc.queryPublisher("").subscribe(invalid);
+    invalid.subscription.request(0);
+    assertTrue(invalid.finished.await(5, TimeUnit.SECONDS));
+    assertTrue(invalid.error instanceof IllegalArgumentException);
+    
+    trac.denyTicket(3);
+    Recorder denied = new Recorder();
+    rpc.ticketPublisher(Arrays.asList(2, 404, 3)).subscribe(denied);
+    denied.subscription.request(Long.MAX_VALUE);
+    assertTrue(denied.finished.await(5, TimeUnit.SECONDS));
+    assertTrue(denied.error instanceof TracRpcException);
+    assertEquals(403, ((TracRpcException)denied.error).getFaultCode());
+    assertTrue(denied.tickets.isEmpty());
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the TracRpcAsync class
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class TracRpcAsyncTest extends TestCase
+{
+  public TracRpcAsyncTest( String testName )
+  {
+    super( testName );
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite( TracRpcAsyncTest.class );
+  }
+  
+  private static TracRpcConfiguration config()
+  {
+    TracRpcConfiguration config = new TracRpcConfiguration();
+    config.setServerAddress("http://localhost/trac/rpc");
+    return config;
+  }
+  
+  public void testInFlightLimitIsRespected() throws Exception
+  {
+    WikiStub rpc = new WikiStub(config());
+    try (TracRpcAsync async = new TracRpcAsync(rpc, null, 2)) {
+      List<CompletableFuture<String>> futures = 
+              new ArrayList<CompletableFuture<String>>();
+      for(int i = 0; i < 10; ++i) {
+        futures.add(async.getWikiPage("Page" + i));
+      }
+      for(int i = 0; i < 10; ++i) {
+        assertEquals("content of Page" + i, futures.get(i).get());
+      }
+    }
+    assertTrue(rpc.maxConcurrent.get() <= 2);
+    assertEquals(10, rpc.calls.get());
+  }
+  
+  public void testFailureCompletesExceptionally() throws Exception
+  {
+    try (TracRpcAsync async = new TracRpcAsync(new WikiStub(config()))) {
+      async.getWikiPage("Missing").get();
+      fail("Should not have reached this line without throwing");
+    }
+    catch(ExecutionException e) {
+      assertTrue(e.getCause() instanceof TracRpcException);
+    }
+  }
+  
+  public void testQueuedOperationsFailingToStartDoNotRecurse() throws Exception
+  {
+    final List<Runnable> accepted = new ArrayList<Runnable>();
+    final boolean[] rejecting = {false};
+    Executor executor = command -> {
+      if(rejecting[0]) {
+        throw new RejectedExecutionException("shut down");
+      }
+      accepted.add(command);
+    };
+    TracRpcAsync async = new TracRpcAsync(new WikiStub(config()), executor, 1);
+    CompletableFuture<Object> first = async.call("wiki.getPage", new Object[]{"First"});
+    List<CompletableFuture<Object>> queued = new ArrayList<CompletableFuture<Object>>();
+    for(int i = 0; i < 100000; ++i) {
+      queued.add(async.call("wiki.getPage", new Object[]{"Page" + i}));
+    }
+    assertEquals(1, accepted.size());
+    
+    // every queued operation now fails as it starts, on this thread
+    rejecting[0] = true;
+    accepted.get(0).run();
+    assertEquals("content of First", first.get());
+    for(CompletableFuture<Object> f : queued) {
+      assertTrue(f.isCompletedExceptionally());
+    }
+    try {
+      queued.get(queued.size() - 1).get();
+      fail("Should not have reached this line without throwing");
+    }
+    catch(ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+  }
+  
+  public void testOperationThrowingOnStartReleasesPermit() throws Exception
+  {
+    final AtomicInteger submitted = new AtomicInteger();
+    Executor executor = command -> {
+      if(submitted.incrementAndGet() == 1) {
+        throw new IllegalStateException("executor broken");
+      }
+      command.run();
+    };
+    TracRpcAsync async = new TracRpcAsync(new WikiStub(config()), executor, 1);
+    try {
+      async.call("wiki.getPage", new Object[]{"First"}).get();
+      fail("Should not have reached this line without throwing");
+    }
+    catch(ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    assertEquals("content of Second", 
+            async.call("wiki.getPage", new Object[]{"Second"}).get());
+  }
+  
+  public void testCreateTicketSendsAttributesAsCalled() throws Exception
+  {
+    FakeTrac trac = new FakeTrac();
+    final List<Runnable> accepted = new ArrayList<Runnable>();
+    TracRpcAsync async = new TracRpcAsync(trac.connect(), accepted::add, 1);
+    Ticket t = new Ticket();
+    t.setSummary("Summary");
+    t.attribs.put("component", "before");
+    CompletableFuture<Void> created = async.createTicket(t, false);
+    t.attribs.put("component", "after");
+    t.attribs.put("keywords", "after");
+    
+    while(!created.isDone()) {
+      assertFalse(accepted.isEmpty());
+      accepted.remove(0).run();
+    }
+    created.get();
+    Ticket fetched = trac.connect().getTicket(t.getId());
+    assertEquals("before", fetched.getAttribString("component"));
+    assertNull(fetched.getAttribs().get("keywords"));
+  }
+  
+  /**
+   * Answers wiki.getPage slowly, recording how many calls overlap
+   */
+  private static class WikiStub extends TracRpc
+  {
+    final AtomicInteger calls = new AtomicInteger();
+    final AtomicInteger concurrent = new AtomicInteger();
+    final AtomicInteger maxConcurrent = new AtomicInteger();
+    
+    WikiStub(TracRpcConfiguration config) throws TracRpcException
+    {
+      super(config);
+    }
+
+    @Override
+    public Object call(String func, Object[] params) throws TracRpcException
+    {
+      calls.incrementAndGet();
+      int now = concurrent.incrementAndGet();
+      maxConcurrent.accumulateAndGet(now, Math::max);
+      try {
+        Thread.sleep(10);
+        if("Missing".equals(params[0])) {
+          throw new TracRpcException("Page Missing does not exist");
+        }
+        return "content of " + params[0];
+      } catch(InterruptedException e) {
+        throw new TracRpcException(e);
+      } finally {
+        concurrent.decrementAndGet();
+      }
+    }
+  }
+}
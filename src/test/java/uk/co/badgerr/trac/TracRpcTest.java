@@ -23,6 +23,15 @@
  */
 package uk.co.badgerr.trac;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -73,4 +82,411 @@ public class TracRpcTest
         assertNotNull(e);
       }
     }
+    
+    public void testCanConstructTracRpcWithPooledTransport()
+    {
+      TracRpcConfiguration config = new TracRpcConfiguration();
+      config.setServerAddress("http://localhost/trac/rpc");
+      config.setTransport(TracRpcConfiguration.Transport.POOLED);
+      config.setConnectionTimeout(1000);
+      config.setReplyTimeout(5000);
+      try (TracRpc rpc = new TracRpc(config)) {
+        assertNotNull(rpc);
+      }
+      catch(TracRpcException e) {
+        fail(e.getMessage());
+      }
+    }
+    
+    public void testGetTicketsBatchesMulticall() throws TracRpcException
+    {
+      TracRpcConfiguration config = new TracRpcConfiguration();
+      config.setServerAddress("http://localhost/trac/rpc");
+      config.setMulticallBatchSize(2);
+      MulticallStub rpc = new MulticallStub(config);
+      
+      BatchResult<Integer, Ticket> result = 
+              rpc.getTickets(Arrays.asList(1, 2, 3, 404, 5));
+      assertEquals(3, rpc.requests);
+      assertEquals(4, result.getResults().size());
+      assertEquals("Ticket 5", result.getResults().get(5).getSummary());
+      assertTrue(result.hasErrors());
+      assertTrue(result.getErrors().containsKey(404));
+    }
+    
+    public void testCannotConstructTracRpcWithInvalidBatchSize()
+    {
+      TracRpcConfiguration config = new TracRpcConfiguration();
+      config.setServerAddress("http://localhost/trac/rpc");
+      config.setMulticallBatchSize(0);
+      try {
+        new TracRpc(config);
+        fail("Should not have reached this line without throwing");
+      }
+      catch(TracRpcException e) {
+        assertNotNull(e);
+      }
+    }
+    
+    public void testTicketCacheServesRepeatReadsUntilChanged() 
+            throws TracRpcException
+    {
+      TracRpcConfiguration config = new TracRpcConfiguration();
+      config.setServerAddress("http://localhost/trac/rpc");
+      config.setTicketCacheSize(10);
+      MulticallStub rpc = new MulticallStub(config);
+      rpc.refreshTicketCache();
+      
+      assertEquals("Ticket 7", rpc.getTicket(7).getSummary());
+      assertEquals("Ticket 7", rpc.getTicket(7).getSummary());
+      assertEquals(1, rpc.requests);
+      
+      rpc.getTickets(Arrays.asList(7, 8));
+      assertEquals(2, rpc.requests);
+      rpc.getTicket(8);
+      assertEquals(2, rpc.requests);
+      
+      rpc.changed = new Object[]{7};
+      rpc.refreshTicketCache();
+      rpc.getTicket(7);
+      rpc.getTicket(8);
+      assertEquals(3, rpc.requests);
+    }
+    
+    public void testGetTicketsKeepsRequestOrderWithCacheHits() 
+            throws TracRpcException
+    {
+      FakeTrac trac = new FakeTrac();
+      trac.populate(5);
+      TracRpcConfiguration config = new TracRpcConfiguration();
+      config.setTicketCacheSize(10);
+      TracRpc rpc = trac.connect(config);
+      rpc.refreshTicketCache();
+      rpc.getTicket(4);
+      
+      BatchResult<Integer, Ticket> result = rpc.getTickets(Arrays.asList(2, 4, 9, 3));
+      assertEquals(Arrays.asList(2, 4, 3), 
+              new ArrayList<Integer>(result.getResults().keySet()));
+      assertEquals(Arrays.asList(9), 
+              new ArrayList<Integer>(result.getErrors().keySet()));
+      assertEquals("Generated ticket 2", result.getResults().get(3).getSummary());
+    }
+    
+    private static List<Ticket> newTickets(int count)
+    {
+      List<Ticket> tickets = new ArrayList<Ticket>();
+      for(int i = 1; i <= count; ++i) {
+        Ticket t = new Ticket();
+        t.setSummary(i % 10 == 0 ? "" : "Imported " + i);
+        tickets.add(t);
+      }
+      return tickets;
+    }
+    
+    public void testCreateTicketsBatchesAndAssignsIds() throws TracRpcException
+    {
+      FakeTrac trac = new FakeTrac();
+      TracRpcConfiguration config = new TracRpcConfiguration();
+      config.setMulticallBatchSize(25);
+      TracRpc rpc = trac.connect(config);
+      List<Ticket> tickets = newTickets(100);
+      
+      BatchResult<Ticket, Integer> result = rpc.createTickets(tickets, false);
+      assertEquals(4, trac.getCallCount("system.multicall"));
+      assertEquals(90, result.getResults().size());
+      assertEquals(10, result.getErrors().size());
+      assertNull(tickets.get(9).getId());
+      assertEquals("Imported 11", rpc.getTicket(tickets.get(10).getId()).getSummary());
+    }
+    
+    public void testCreateTicketsConcurrently() throws TracRpcException
+    {
+      FakeTrac trac = new FakeTrac();
+      TracRpcConfiguration config = new TracRpcConfiguration();
+      config.setMulticallBatchSize(10);
+      TracRpc rpc = trac.connect(config);
+      List<Ticket> tickets = newTickets(95);
+      
+      BatchResult<Ticket, Integer> result = rpc.createTickets(tickets, false, 4);
+      assertEquals(10, trac.getCallCount("system.multicall"));
+      assertEquals(86, result.getResults().size());
+      for(Map.Entry<Ticket, Integer> e : result.getResults().entrySet()) {
+        assertEquals(e.getValue(), e.getKey().getId());
+        assertEquals(e.getKey().getSummary(), rpc.getTicket(e.getValue()).getSummary());
+      }
+    }
+    
+    public void testCreateTicketsConcurrentlyRecordsBatchThatThrows() throws TracRpcException
+    {
+      FakeTrac trac = new FakeTrac();
+      TracRpcConfiguration config = new TracRpcConfiguration();
+      config.setMulticallBatchSize(10);
+      final TracRpc fake = trac.connect(config);
+      TracRpc rpc = new TracRpc(config) {
+        @Override
+        public Object call(String func, Object[] params) throws TracRpcException
+        {
+          Map<?, ?> first = (Map<?, ?>)((Object[])params[0])[0];
+          if("Imported 21".equals(((Object[])first.get("params"))[0])) {
+            throw new IllegalStateException("Malformed response");
+          }
+          return fake.call(func, params);
+        }
+      };
+      List<Ticket> tickets = newTickets(50);
+      
+      BatchResult<Ticket, Integer> result = rpc.createTickets(tickets, false, 4);
+      assertEquals(50, result.getResults().size() + result.getErrors().size());
+      for(Ticket t : tickets.subList(20, 30)) {
+        TracRpcException error = result.getErrors().get(t);
+        assertNotNull(error);
+        assertTrue(error.getCause() instanceof IllegalStateException);
+      }
+      assertNotNull(tickets.get(30).getId());
+    }
+    
+    public void testUpdateTicketSendsOnlyChanges() throws TracRpcException
+    {
+      FakeTrac trac = new FakeTrac();
+      HashMap<String, Object> attribs = new HashMap<String, Object>();
+      attribs.put("description", "A long description");
+      attribs.put("owner", "alice");
+      int id = trac.addTicket("Broken", attribs);
+      TracRpc rpc = trac.connect();
+      
+      Ticket t = rpc.getTicket(id);
+      assertTrue(t.getChangedAttribs().isEmpty());
+      t.setOwner("alice");
+      t.attribs.put("status", "assigned");
+      t.setOwner("bob");
+      assertEquals(2, t.getChangedAttribs().size());
+      rpc.updateTicket(t, "Reassigned", false);
+      
+      Map<String, Object> sent = trac.getLastUpdate();
+      assertEquals(3, sent.size());
+      assertEquals("bob", sent.get("owner"));
+      assertEquals("assigned", sent.get("status"));
+      assertNotNull(sent.get("_ts"));
+      assertTrue(t.getChangedAttribs().isEmpty());
+      assertEquals("bob", rpc.getTicket(id).getOwner());
+    }
+    
+    public void testUpdateTicketRejectsStaleTicket() throws TracRpcException
+    {
+      FakeTrac trac = new FakeTrac();
+      int id = trac.addTicket("Broken", null);
+      TracRpc rpc = trac.connect();
+      
+      Ticket t = rpc.getTicket(id);
+      trac.changeTicket(id, "owner", "carol");
+      t.setOwner("bob");
+      try {
+        rpc.updateTicket(t, "", false);
+        fail("Stale update was accepted");
+      }
+      catch(TracRpcException e) {
+        assertEquals("carol", rpc.getTicket(id).getOwner());
+      }
+    }
+    
+    public void testDecodedTicketsShareFieldValues() throws TracRpcException
+    {
+      FakeTrac trac = new FakeTrac();
+      for(int i = 0; i < 2; ++i) {
+        HashMap<String, Object> attribs = new HashMap<String, Object>();
+        attribs.put("status", new String("assigned"));
+        attribs.put("description", new String("Same description"));
+        trac.addTicket("Ticket", attribs);
+      }
+      TracRpc rpc = trac.connect();
+      Map<Integer, Ticket> tickets = rpc.getTickets(Arrays.asList(1, 2)).getResults();
+      
+      String assigned = ValuePool.TICKETS.intern(new String("assigned"));
+      assertSame(assigned, tickets.get(1).getAttribs().get("status"));
+      assertSame(assigned, tickets.get(2).getAttribs().get("status"));
+      assertSame(assigned, rpc.getTicket(1).getAttribs().get("status"));
+      assertNotSame(tickets.get(1).getDescription(), tickets.get(2).getDescription());
+    }
+    
+    public void testQueryPagesLazily() throws TracRpcException
+    {
+      FakeTrac trac = new FakeTrac();
+      trac.populate(250);
+      TracRpcConfiguration config = new TracRpcConfiguration();
+      config.setQueryPageSize(40);
+      config.setMulticallBatchSize(25);
+      TracRpc rpc = trac.connect(config);
+      
+      Iterator<Ticket> it = rpc.query("");
+      for(int id = 1; id <= 250; ++id) {
+        assertTrue(it.hasNext());
+        assertEquals(id, (int)it.next().getId());
+      }
+      assertFalse(it.hasNext());
+      assertEquals(7, trac.getCallCount("ticket.query"));
+      assertEquals(10, trac.getCallCount("system.multicall"));
+      
+      try(Stream<Ticket> closed = rpc.queryStream("status=closed")) {
+        assertEquals(50, closed.peek(t -> assertEquals("closed", t.getAttribString("status")))
+                               .count());
+      }
+    }
+    
+    public void testQueryReportsFailures() throws TracRpcException
+    {
+      FakeTrac trac = new FakeTrac();
+      trac.populate(10);
+      Iterator<Ticket> it = trac.connect().query("bad");
+      try {
+        it.hasNext();
+        fail("Expected the query to fail");
+      } catch(UncheckedTracRpcException e) {
+        assertNotNull(e.getCause());
+      }
+    }
+    
+    public void testQuerySkipsOnlyMissingTickets() throws TracRpcException
+    {
+      FakeTrac trac = new FakeTrac();
+      trac.populate(10);
+      TracRpc rpc = trac.connect();
+      List<Integer> ids = Arrays.asList(2, 404, 4);
+      assertEquals(2, rpc.ticketStream(ids, false).count());
+      
+      trac.denyTicket(4);
+      try {
+        rpc.ticketStream(ids, false).count();
+        fail("Expected the permission fault to fail the stream");
+      } catch(UncheckedTracRpcException e) {
+        assertEquals(403, e.getCause().getFaultCode());
+      }
+      Iterator<Ticket> it = rpc.query("");
+      try {
+        while(it.hasNext()) {
+          it.next();
+        }
+        fail("Expected the permission fault to fail the query");
+      } catch(UncheckedTracRpcException e) {
+        assertEquals(403, e.getCause().getFaultCode());
+      }
+    }
+    
+    public void testTicketSpliteratorSplitsByIdRange() throws TracRpcException
+    {
+      FakeTrac trac = new FakeTrac();
+      trac.populate(100);
+      TracRpcConfiguration config = new TracRpcConfiguration();
+      config.setMulticallBatchSize(10);
+      TracRpc rpc = trac.connect(config);
+      
+      List<Integer> ids = new ArrayList<Integer>();
+      for(int id = 100; id >= 1; --id) {
+        ids.add(id);
+      }
+      ids.add(150);
+      Spliterator<Ticket> upper = rpc.ticketSpliterator(ids);
+      Spliterator<Ticket> lower = upper.trySplit();
+      assertNotNull(lower);
+      assertEquals(50, lower.estimateSize());
+      lower.tryAdvance(t -> assertEquals(1, (int)t.getId()));
+      assertNull(lower.trySplit());
+      upper.tryAdvance(t -> assertEquals(51, (int)t.getId()));
+      assertEquals(2, trac.getCallCount("system.multicall"));
+      
+      List<Integer> fetched = rpc.ticketStream(ids, true)
+                                 .map(Ticket::getId)
+                                 .collect(Collectors.toList());
+      assertEquals(100, fetched.size());
+      for(int i = 0; i < fetched.size(); ++i) {
+        assertEquals(i + 1, (int)fetched.get(i));
+      }
+      assertEquals(fetched, rpc.queryIds(""));
+    }
+    
+    public void testQueryFailsOnFaultForLaterPage() throws TracRpcException
+    {
+      final FakeTrac trac = new FakeTrac();
+      trac.populate(80);
+      TracRpcConfiguration config = new TracRpcConfiguration();
+      config.setServerAddress("http://localhost/trac/rpc");
+      config.setQueryPageSize(40);
+      TracRpc rpc = new TracRpc(config) {
+        @Override
+        public Object call(String func, Object[] params) throws TracRpcException
+        {
+          if(func.equals("ticket.query") && ((String)params[0]).endsWith("page=2")) {
+            throw new TracRpcException("database is locked", 1, null);
+          }
+          return trac.invoke(func, params);
+        }
+      };
+      try {
+        rpc.queryIds("");
+        fail("Expected the fault for page 2 to fail the query");
+      } catch(TracRpcException e) {
+        assertEquals("database is locked", e.getMessage());
+      }
+      
+      // past the last page is the end of the results, not an error
+      int before = trac.getCallCount("ticket.query");
+      assertEquals(80, trac.connect(config).queryIds("").size());
+      assertEquals(before + 3, trac.getCallCount("ticket.query"));
+    }
+    
+    /**
+     * Answers ticket.get, system.multicall of ticket.get,
+     * ticket.getRecentChanges and ticket.query (with no tickets) locally,
+     * failing ticket 404
+     */
+    private static class MulticallStub extends TracRpc
+    {
+      int requests = 0;
+      Object[] changed = new Object[0];
+      
+      MulticallStub(TracRpcConfiguration config) throws TracRpcException
+      {
+        super(config);
+      }
+
+      @Override
+      public Object call(String func, Object[] params) throws TracRpcException
+      {
+        if(func.equals("ticket.getRecentChanges")) {
+          return changed;
+        }
+        if(func.equals("ticket.query")) {
+          return new Object[0];
+        }
+        ++requests;
+        if(func.equals("ticket.get")) {
+          return ticketResult((Integer)params[0]);
+        }
+        
+        assertEquals("system.multicall", func);
+        Object[] calls = (Object[])params[0];
+        Object[] results = new Object[calls.length];
+        for(int i = 0; i < calls.length; ++i) {
+          Map<?, ?> call = (Map<?, ?>)calls[i];
+          assertEquals("ticket.get", call.get("methodName"));
+          Integer id = (Integer)((Object[])call.get("params"))[0];
+          if(id == 404) {
+            HashMap<String, Object> fault = new HashMap<String, Object>();
+            fault.put("faultCode", 404);
+            fault.put("faultString", "Ticket 404 does not exist.");
+            results[i] = fault;
+          }
+          else {
+            results[i] = new Object[]{ticketResult(id)};
+          }
+        }
+        return results;
+      }
+      
+      private static Object[] ticketResult(Integer id)
+      {
+        HashMap<String, Object> attribs = new HashMap<String, Object>();
+        attribs.put("summary", "Ticket " + id);
+        return new Object[]{id, null, null, attribs};
+      }
+    }
 }
@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 James Femia <badgerr@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package uk.co.badgerr.trac;
+
+import java.util.Date;
+import java.util.TimeZone;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.xmlrpc.util.XmlRpcDateTimeDateFormat;
+
+/**
+ * Tests the TracTypeFactory class
+ * @author James Femia <badgerr@gmail.com>
+ */
+public class TracTypeFactoryTest extends TestCase
+{
+  public TracTypeFactoryTest( String testName )
+  {
+    super( testName );
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite( TracTypeFactoryTest.class );
+  }
+  
+  private static XmlRpcDateTimeDateFormat stockFormat(final TimeZone tz)
+  {
+    return new XmlRpcDateTimeDateFormat() {
+      @Override
+      protected TimeZone getTimeZone() {
+        return tz;
+      }
+    };
+  }
+  
+  public void testDatesMatchStockParser() throws Exception
+  {
+    for(String zone : new String[]{"UTC", "Europe/London", "America/New_York", 
+                                   "Australia/Adelaide"}) {
+      TimeZone tz = TimeZone.getTimeZone(zone);
+      XmlRpcDateTimeDateFormat format = stockFormat(tz);
+      // steps of just over 7 hours cover every hour of the day and both
+      // sides of daylight saving changes across several years
+      for(long t = 946684800000L; t < 1600000000000L; t += 25261000L) {
+        String text = format.format(new Date(t));
+        Date expected = (Date)format.parseObject(text);
+        assertEquals(zone + " " + text, expected.getTime(), 
+                     TracTypeFactory.parse(text, tz));
+      }
+    }
+  }
+  
+  public void testUnusualFormsAreLeftToStockParser()
+  {
+    TimeZone utc = TimeZone.getTimeZone("UTC");
+    assertEquals(0L, TracTypeFactory.parse("19700101T00:00:00", utc));
+    assertEquals(Long.MIN_VALUE, TracTypeFactory.parse("1970-01-01T00:00:00", utc));
+    assertEquals(Long.MIN_VALUE, TracTypeFactory.parse("19701301T00:00:00", utc));
+    assertEquals(Long.MIN_VALUE, TracTypeFactory.parse("19700101T0a:00:00", utc));
+  }
+}